@@ -0,0 +1,101 @@
+package be.cytomine.appengine.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.cytomine.appengine.utils.ZipArchiveBuilder;
+
+/**
+ * Compares the sequential zip creation, a single {@code ZipOutputStream} as used until now,
+ * with the parallel creation, for a collection of many small files and for a few huge files.
+ *
+ * <p>Run with {@code gradle jmh}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ZipArchiveBenchmark {
+
+    private static final String[] WORDS = {
+        "cell", "nucleus", "tissue", "stroma", "tumor", "0.42", "1337", "[12, 34]", "true", "\n"
+    };
+
+    @Param({"small-files", "huge-files"})
+    private String collection;
+
+    @Param({"1", "4"})
+    private int parallelism;
+
+    private Path directory;
+
+    private final List<Path> files = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        directory = Files.createTempDirectory("zip-benchmark-");
+        boolean small = collection.equals("small-files");
+        int count = small ? 2000 : 4;
+        int size = small ? 4 * 1024 : 64 * 1024 * 1024;
+
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            files.add(Files.write(directory.resolve("item-" + i), text(random, size)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void zip() throws IOException {
+        ZipArchiveBuilder archive = new ZipArchiveBuilder(parallelism, 6);
+        archive.addDirectory("collection");
+        for (Path file : files) {
+            archive.addFile("collection/" + file.getFileName(), file, false);
+        }
+
+        archive.writeTo(OutputStream.nullOutputStream());
+    }
+
+    /* Text made of random words, compressible as the text-valued provisions are */
+    private static byte[] text(Random random, int size) {
+        StringBuilder builder = new StringBuilder(size + 16);
+        while (builder.length() < size) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+
+        return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -2,8 +2,10 @@ package be.cytomine.appengine;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class AppEngineApplication {
     public static void main(String[] args) {
         SpringApplication.run(AppEngineApplication.class, args);
@@ -11,6 +11,7 @@ import be.cytomine.appengine.handlers.StorageHandler;
 import be.cytomine.appengine.handlers.registry.impl.DefaultRegistryHandler;
 import be.cytomine.appengine.handlers.registry.impl.DockerRegistryHandler;
 import be.cytomine.appengine.handlers.scheduler.impl.KubernetesScheduler;
+import be.cytomine.appengine.handlers.storage.impl.ContentAddressedStorageHandler;
 import be.cytomine.appengine.handlers.storage.impl.FileSystemStorageHandler;
 
 @Configuration
@@ -43,9 +44,21 @@ public class ImplementationConfig {
     @Value("${registry-client.password}")
     private String registryPassword;
 
+    @Value("${registry-client.push.parallelism:4}")
+    private int registryPushParallelism;
+
+    @Value("${registry-client.push.retries:3}")
+    private int registryPushRetries;
+
+    @Value("${registry-client.push.retry-backoff:1000}")
+    private long registryPushRetryBackoff;
+
     @Bean
     @Primary
     public StorageHandler loadStorageImpl() throws Exception {
+        if (storageImplementationSelector.equalsIgnoreCase("content-addressed")) {
+            return new ContentAddressedStorageHandler();
+        }
         return new FileSystemStorageHandler();
     }
 
@@ -59,7 +72,10 @@ public class ImplementationConfig {
                 registryScheme,
                 authenticated,
                 registryUsername,
-                registryPassword
+                registryPassword,
+                registryPushParallelism,
+                registryPushRetries,
+                registryPushRetryBackoff
             );
         }
         return new DefaultRegistryHandler();
@@ -0,0 +1,84 @@
+package be.cytomine.appengine.config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import be.cytomine.appengine.models.task.Task;
+
+/**
+ * Retention policy of the storages of the finished runs.
+ *
+ * <p>The global time-to-live of the inputs and of the outputs can be overridden per task, the
+ * tasks being keyed by namespace. The outputs are never purged before the inputs.</p>
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "retention")
+public class RetentionProperties {
+
+    private boolean enabled = false;
+
+    private Duration inputsTtl = Duration.ofDays(7);
+
+    private Duration outputsTtl = Duration.ofDays(30);
+
+    /* The temporary files of the engine when not set */
+    private String tempPath;
+
+    private Duration tempTtl = Duration.ofDays(1);
+
+    /* Since the last chunk of the resumable uploads or the queuing of the bundles */
+    private Duration uploadsTtl = Duration.ofDays(1);
+
+    private int batchSize = 100;
+
+    private boolean deleteRuns = false;
+
+    private Map<String, TaskRetention> tasks = new HashMap<>();
+
+    @Data
+    public static class TaskRetention {
+
+        private Duration inputsTtl;
+
+        private Duration outputsTtl;
+    }
+
+    public Duration getInputsTtl(Task task) {
+        TaskRetention retention = task == null ? null : tasks.get(task.getNamespace());
+        if (retention == null || retention.getInputsTtl() == null) {
+            return inputsTtl;
+        }
+
+        return retention.getInputsTtl();
+    }
+
+    public Duration getOutputsTtl(Task task) {
+        TaskRetention retention = task == null ? null : tasks.get(task.getNamespace());
+        Duration ttl = retention == null || retention.getOutputsTtl() == null
+            ? outputsTtl
+            : retention.getOutputsTtl();
+
+        // outputs are kept at least as long as inputs
+        Duration inputs = getInputsTtl(task);
+        return ttl.compareTo(inputs) < 0 ? inputs : ttl;
+    }
+
+    /* The shortest time-to-live, below which no run needs to be considered */
+    public Duration getShortestTtl() {
+        Duration shortest = inputsTtl;
+        for (TaskRetention retention : tasks.values()) {
+            Duration ttl = retention.getInputsTtl();
+            if (ttl != null && ttl.compareTo(shortest) < 0) {
+                shortest = ttl;
+            }
+        }
+
+        return shortest;
+    }
+}
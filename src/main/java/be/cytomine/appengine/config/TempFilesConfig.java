@@ -0,0 +1,33 @@
+package be.cytomine.appengine.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import be.cytomine.appengine.utils.FileHelper;
+
+/**
+ * Directory of the temporary files of the engine, kept apart from the JVM temporary directory
+ * so that the retention purges them without touching anything else.
+ */
+@Slf4j
+@Configuration
+public class TempFilesConfig {
+
+    @Value("${app-engine.temp-path:/tmp/appengine/tmp}")
+    private String tempPath;
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path directory = Paths.get(tempPath).toAbsolutePath().normalize();
+        Files.createDirectories(directory);
+        FileHelper.setTempDirectory(directory);
+        log.info("Temporary Files: created in {}", directory);
+    }
+}
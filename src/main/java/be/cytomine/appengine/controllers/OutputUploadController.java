@@ -0,0 +1,161 @@
+package be.cytomine.appengine.controllers;
+
+import java.io.IOException;
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import be.cytomine.appengine.dto.inputs.task.TaskRunParameterValue;
+import be.cytomine.appengine.dto.misc.OutputUpload;
+import be.cytomine.appengine.dto.responses.errors.AppEngineError;
+import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
+import be.cytomine.appengine.dto.responses.errors.ErrorCode;
+import be.cytomine.appengine.exceptions.ProvisioningException;
+import be.cytomine.appengine.services.OutputUploadService;
+
+/**
+ * Resumable upload of the outputs archive of a run, next to the single-shot
+ * {@code outputs.zip} endpoint of {@link TaskRunController}.
+ *
+ * <p>An upload is created, then its chunks are sent with the offset they start at and their
+ * checksum. After an interruption, the offset reached is asked with a HEAD request and the
+ * upload goes on from there. The archive is ingested once the upload is completed.</p>
+ */
+@Slf4j
+@RequiredArgsConstructor
+@RestController
+@RequestMapping(path = "${app-engine.api_prefix}${app-engine.api_version}/")
+public class OutputUploadController {
+
+    public static final String UPLOAD_OFFSET = "Upload-Offset";
+
+    public static final String UPLOAD_LENGTH = "Upload-Length";
+
+    public static final String UPLOAD_CHECKSUM = "Upload-Checksum";
+
+    private final OutputUploadService outputUploadService;
+
+    @PostMapping(value = "/task-runs/{run_id}/{secret}/outputs-uploads")
+    @ResponseStatus(code = HttpStatus.CREATED)
+    public ResponseEntity<OutputUpload> createUpload(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @RequestHeader(value = UPLOAD_LENGTH, required = false) Long length
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs-uploads POST");
+        OutputUpload upload = outputUploadService.createUpload(runId, secret, length);
+        log.info("/task-runs/{run_id}/outputs-uploads POST Ended");
+
+        return ResponseEntity.status(HttpStatus.CREATED)
+            .headers(toHeaders(upload))
+            .body(upload);
+    }
+
+    @RequestMapping(
+        value = "/task-runs/{run_id}/{secret}/outputs-uploads/{upload_id}",
+        method = { RequestMethod.HEAD, RequestMethod.GET }
+    )
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<OutputUpload> getUpload(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable("upload_id") String uploadId
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id} GET");
+        OutputUpload upload = outputUploadService.getUpload(runId, secret, uploadId);
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id} GET Ended");
+
+        return ResponseEntity.ok()
+            .headers(toHeaders(upload))
+            .body(upload);
+    }
+
+    @PatchMapping(value = "/task-runs/{run_id}/{secret}/outputs-uploads/{upload_id}")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<OutputUpload> appendChunk(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable("upload_id") String uploadId,
+        @RequestHeader(UPLOAD_OFFSET) long offset,
+        @RequestHeader(value = UPLOAD_CHECKSUM, required = false) String checksum,
+        HttpServletRequest request
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id} PATCH");
+        OutputUpload upload;
+        try {
+            upload = outputUploadService.appendChunk(
+                runId,
+                secret,
+                uploadId,
+                offset,
+                checksum,
+                request.getInputStream()
+            );
+        } catch (IOException e) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.STORAGE_STORING_INPUT_FAILED);
+            throw new ProvisioningException(error);
+        }
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id} PATCH Ended");
+
+        return ResponseEntity.ok()
+            .headers(toHeaders(upload))
+            .body(upload);
+    }
+
+    @PostMapping(value = "/task-runs/{run_id}/{secret}/outputs-uploads/{upload_id}/complete")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<?> completeUpload(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable("upload_id") String uploadId
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id}/complete POST");
+        List<TaskRunParameterValue> taskOutputs = outputUploadService.completeUpload(
+            runId,
+            secret,
+            uploadId
+        );
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id}/complete POST Ended");
+
+        return new ResponseEntity<>(taskOutputs, HttpStatus.OK);
+    }
+
+    @DeleteMapping(value = "/task-runs/{run_id}/{secret}/outputs-uploads/{upload_id}")
+    @ResponseStatus(code = HttpStatus.NO_CONTENT)
+    public ResponseEntity<?> cancelUpload(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable("upload_id") String uploadId
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id} DELETE");
+        outputUploadService.cancelUpload(runId, secret, uploadId);
+        log.info("/task-runs/{run_id}/outputs-uploads/{upload_id} DELETE Ended");
+
+        return ResponseEntity.noContent().build();
+    }
+
+    private static HttpHeaders toHeaders(OutputUpload upload) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(UPLOAD_OFFSET, Long.toString(upload.getOffset()));
+        if (upload.getLength() != null) {
+            headers.add(UPLOAD_LENGTH, Long.toString(upload.getLength()));
+        }
+        headers.setCacheControl("no-store");
+
+        return headers;
+    }
+}
@@ -0,0 +1,32 @@
+package be.cytomine.appengine.controllers;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import be.cytomine.appengine.dto.misc.RetentionReport;
+import be.cytomine.appengine.services.RetentionService;
+
+@Slf4j
+@RequiredArgsConstructor
+@RestController
+@RequestMapping(path = "${app-engine.api_prefix}${app-engine.api_version}/")
+public class RetentionController {
+
+    private final RetentionService retentionService;
+
+    @GetMapping(value = "/retention/report")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<RetentionReport> getRetentionReport() {
+        log.info("/retention/report GET");
+        RetentionReport report = retentionService.purge(true);
+        log.info("/retention/report GET Ended");
+
+        return ResponseEntity.ok(report);
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Optional;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -22,6 +23,7 @@ import org.springframework.web.multipart.MultipartFile;
 
 import be.cytomine.appengine.dto.inputs.task.TaskDescription;
 import be.cytomine.appengine.dto.inputs.task.TaskRun;
+import be.cytomine.appengine.dto.misc.TaskUploadJob;
 import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
 import be.cytomine.appengine.dto.responses.errors.ErrorCode;
 import be.cytomine.appengine.exceptions.BundleArchiveException;
@@ -32,6 +34,7 @@ import be.cytomine.appengine.exceptions.ValidationException;
 import be.cytomine.appengine.handlers.StorageData;
 import be.cytomine.appengine.models.task.Task;
 import be.cytomine.appengine.services.TaskService;
+import be.cytomine.appengine.services.TaskUploadJobService;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -41,16 +44,47 @@ public class TaskController {
 
     private final TaskService taskService;
 
+    private final TaskUploadJobService taskUploadJobService;
+
+    @Value("${app-engine.task-uploads.async:false}")
+    private boolean asyncUploads;
+
     @PostMapping(path = "tasks")
     public ResponseEntity<?> upload(
-        @RequestParam MultipartFile task
+        @RequestParam MultipartFile task,
+        @RequestParam(required = false) Boolean async
     ) throws TaskServiceException, ValidationException, BundleArchiveException {
         log.info("Task Upload POST");
+        if (async == null ? asyncUploads : async) {
+            Optional<TaskUploadJob> job = taskUploadJobService.submit(task);
+            log.info("Task Upload POST Ended");
+            return job.<ResponseEntity<?>>map(accepted -> ResponseEntity
+                    .status(HttpStatus.ACCEPTED)
+                    .body(accepted))
+                .orElseGet(() -> new ResponseEntity<>(
+                    ErrorBuilder.build(ErrorCode.INTERNAL_TASK_UPLOAD_QUEUE_FULL),
+                    HttpStatus.SERVICE_UNAVAILABLE
+                ));
+        }
+
         Optional<TaskDescription> taskDescription = taskService.uploadTask(task);
         log.info("Task Upload POST Ended");
         return ResponseEntity.ok(taskDescription);
     }
 
+    @GetMapping(value = "task-uploads/{id}")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<?> findTaskUploadById(@PathVariable String id) {
+        log.info("task-uploads/{id} GET");
+        Optional<TaskUploadJob> job = taskUploadJobService.getJob(id);
+        log.info("task-uploads/{id} GET Ended");
+        return job.<ResponseEntity<?>>map(ResponseEntity::ok)
+            .orElseGet(() -> new ResponseEntity<>(
+                ErrorBuilder.build(ErrorCode.INTERNAL_TASK_UPLOAD_NOT_FOUND),
+                HttpStatus.NOT_FOUND
+            ));
+    }
+
     @GetMapping(value = "tasks")
     @ResponseStatus(code = HttpStatus.OK)
     public ResponseEntity<List<TaskDescription>> findAllTasks() {
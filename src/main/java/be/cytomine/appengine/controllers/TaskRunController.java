@@ -2,15 +2,18 @@ package be.cytomine.appengine.controllers;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -25,11 +28,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import be.cytomine.appengine.dto.inputs.task.State;
 import be.cytomine.appengine.dto.inputs.task.StateAction;
 import be.cytomine.appengine.dto.inputs.task.TaskRunParameterValue;
 import be.cytomine.appengine.dto.inputs.task.TaskRunResponse;
+import be.cytomine.appengine.dto.misc.CachedArchive;
 import be.cytomine.appengine.dto.responses.errors.AppEngineError;
 import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
 import be.cytomine.appengine.dto.responses.errors.ErrorCode;
@@ -40,6 +45,9 @@ import be.cytomine.appengine.exceptions.TypeValidationException;
 import be.cytomine.appengine.handlers.StorageData;
 import be.cytomine.appengine.models.task.ParameterType;
 import be.cytomine.appengine.services.TaskProvisioningService;
+import be.cytomine.appengine.utils.ArchiveFormat;
+import be.cytomine.appengine.utils.FileHelper;
+import be.cytomine.appengine.utils.GzipHelper;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -49,6 +57,9 @@ public class TaskRunController {
 
     private final TaskProvisioningService taskRunService;
 
+    @Value("${app-engine.archives.mode:streaming}")
+    private String archivesMode;
+
     @PutMapping(
         value = "/task-runs/{run_id}/input-provisions/{param_name}",
         consumes = MediaType.APPLICATION_JSON_VALUE
@@ -82,7 +93,7 @@ public class TaskRunController {
     ) throws IOException, ProvisioningException {
         log.info("/task-runs/{run_id}/input-provisions/{param_name} File PUT");
 
-        Path data = Files.createTempFile(parameterName, null);
+        Path data = FileHelper.createTempFile(parameterName, null);
         file.transferTo(data);
 
         JsonNode provisioned = taskRunService.provisionRunParameter(
@@ -138,7 +149,7 @@ public class TaskRunController {
         @PathVariable("run_id") String runId,
         @PathVariable("param_name") String parameterName,
         @RequestParam String value
-    ) throws ProvisioningException {
+    ) throws ProvisioningException, IOException {
         log.info("/task-runs/{run_id}/input/{parameter_name}/indexes GET");
         String regex = "^(0(/[0-9]+)*|[1-9][0-9]*(/[0-9]+)*)$";
         boolean isValid = Pattern.matches(regex, value);
@@ -170,7 +181,7 @@ public class TaskRunController {
 
         return ResponseEntity.ok()
             .headers(headers)
-            .body(new FileSystemResource(collectionItem));
+            .body(storedFile(collectionItem));
 
     }
 
@@ -183,7 +194,7 @@ public class TaskRunController {
         @PathVariable("run_id") String runId,
         @PathVariable("param_name") String parameterName,
         @RequestParam String value
-    ) throws ProvisioningException {
+    ) throws ProvisioningException, IOException {
         log.info("/task-runs/{run_id}/input/{parameter_name}/indexes GET");
         String regex = "^(0(/[0-9]+)*|[1-9][0-9]*(/[0-9]+)*)$";
         boolean isValid = Pattern.matches(regex, value);
@@ -214,7 +225,7 @@ public class TaskRunController {
 
         return ResponseEntity.ok()
             .headers(headers)
-            .body(new FileSystemResource(collectionItem));
+            .body(storedFile(collectionItem));
 
     }
 
@@ -242,7 +253,7 @@ public class TaskRunController {
         }
         String[] indexesArray = value.split("/");
 
-        Path data = Files.createTempFile(parameterName, null);
+        Path data = FileHelper.createTempFile(parameterName, null);
         file.transferTo(data);
 
         JsonNode provisioned = taskRunService.provisionCollectionItem(
@@ -288,6 +299,28 @@ public class TaskRunController {
         @PathVariable("run_id") String runId
     ) throws ProvisioningException, IOException, FileStorageException {
         log.info("/task-runs/{run_id}/inputs.zip GET");
+        CachedArchive cached = taskRunService.retrieveCachedInputsArchive(runId);
+        if (cached != null) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.add(
+                HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"inputs-archive-" + runId + ".zip\""
+            );
+            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+            headers.add(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+            // conditional and range requests are answered by the resource handling
+            log.info("/task-runs/{run_id}/inputs.zip GET Cached");
+            return ResponseEntity.ok()
+                .headers(headers)
+                .eTag(cached.getDigest())
+                .body(new FileSystemResource(cached.getArchive()));
+        }
+
+        if ("streaming".equalsIgnoreCase(archivesMode)) {
+            return streamArchive(runId, ParameterType.INPUT, ArchiveFormat.ZIP);
+        }
+
         StorageData data = taskRunService.retrieveIOZipArchive(runId, ParameterType.INPUT);
         File file = data.peek().getData();
 
@@ -304,6 +337,38 @@ public class TaskRunController {
             .body(new FileSystemResource(file));
     }
 
+    @GetMapping(value = "/task-runs/{run_id}/inputs.{extension:tar|tar\\.zst}")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<StreamingResponseBody> getInputProvisionsTarArchive(
+        @PathVariable("run_id") String runId,
+        @PathVariable String extension
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/inputs.{} GET", extension);
+        ArchiveFormat format = ArchiveFormat.fromExtension(extension);
+        return streamArchive(runId, ParameterType.INPUT, format);
+    }
+
+    private ResponseEntity<StreamingResponseBody> streamArchive(
+        String runId,
+        ParameterType type,
+        ArchiveFormat format
+    ) throws ProvisioningException {
+        StreamingResponseBody body = taskRunService.streamIOArchive(runId, type, format);
+        String io = type.equals(ParameterType.INPUT) ? "inputs" : "outputs";
+
+        String filename = io + "-archive-" + runId + "." + format.getExtension();
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+        headers.setContentType(format.isTar()
+            ? MediaType.parseMediaType(format.getMediaType())
+            : MediaType.APPLICATION_OCTET_STREAM);
+
+        log.info("/task-runs/{run_id}/{}.{} GET Streaming", io, format.getExtension());
+        return ResponseEntity.ok()
+            .headers(headers)
+            .body(body);
+    }
+
     @GetMapping(value = "/task-runs/{run_id}/inputs")
     @ResponseStatus(code = HttpStatus.OK)
     public ResponseEntity<?> getRunInputsList(
@@ -320,7 +385,7 @@ public class TaskRunController {
     public ResponseEntity<?> getInputRunParameter(
         @PathVariable("run_id") String runId,
         @PathVariable("parameter_name") String parameterName
-    ) throws ProvisioningException {
+    ) throws ProvisioningException, IOException {
         log.info("/task-runs/{run_id}/input/{parameter_name} GET");
         File input = taskRunService.retrieveSingleRunIO(
             runId,
@@ -339,7 +404,7 @@ public class TaskRunController {
 
         return ResponseEntity.ok()
             .headers(headers)
-            .body(new FileSystemResource(input));
+            .body(storedFile(input));
     }
 
     @GetMapping(value = "/task-runs/{run_id}/outputs")
@@ -358,7 +423,7 @@ public class TaskRunController {
     public ResponseEntity<?> getOutputRunParameter(
         @PathVariable("run_id") String runId,
         @PathVariable("parameter_name") String parameterName
-    ) throws ProvisioningException {
+    ) throws ProvisioningException, IOException {
         log.info("/task-runs/{run_id}/output/{parameter_name} GET");
         File output = taskRunService.retrieveSingleRunIO(
             runId,
@@ -377,7 +442,7 @@ public class TaskRunController {
 
         return ResponseEntity.ok()
             .headers(headers)
-            .body(new FileSystemResource(output));
+            .body(storedFile(output));
     }
 
     @GetMapping(value = "/task-runs/{run_id}/outputs.zip")
@@ -386,6 +451,10 @@ public class TaskRunController {
         @PathVariable("run_id") String runId
     ) throws ProvisioningException, IOException, FileStorageException {
         log.info("/task-runs/{run_id}/outputs.zip GET");
+        if ("streaming".equalsIgnoreCase(archivesMode)) {
+            return streamArchive(runId, ParameterType.OUTPUT, ArchiveFormat.ZIP);
+        }
+
         StorageData data = taskRunService.retrieveIOZipArchive(runId, ParameterType.OUTPUT);
         File file = data.peek().getData();
 
@@ -402,6 +471,17 @@ public class TaskRunController {
             .body(new FileSystemResource(file));
     }
 
+    @GetMapping(value = "/task-runs/{run_id}/outputs.{extension:tar|tar\\.zst}")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<StreamingResponseBody> getOutputsProvisionsTarArchive(
+        @PathVariable("run_id") String runId,
+        @PathVariable String extension
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs.{} GET", extension);
+        ArchiveFormat format = ArchiveFormat.fromExtension(extension);
+        return streamArchive(runId, ParameterType.OUTPUT, format);
+    }
+
     @PostMapping(value = "/task-runs/{run_id}/{secret}/outputs.zip")
     @ResponseStatus(code = HttpStatus.OK)
     public ResponseEntity<?> postOutputsProvisionsArchives(
@@ -418,6 +498,94 @@ public class TaskRunController {
         return new ResponseEntity<>(taskOutputs, HttpStatus.OK);
     }
 
+    @PostMapping(
+        value = "/task-runs/{run_id}/{secret}/outputs.zip",
+        consumes = "application/zip"
+    )
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<?> postOutputsProvisionsArchiveBody(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        HttpServletRequest request
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs.zip POST Body");
+        // the archive is unzipped as it is received, without buffering the upload
+        List<TaskRunParameterValue> taskOutputs = taskRunService.postOutputsZipArchive(
+            runId,
+            secret,
+            request::getInputStream);
+        log.info("/task-runs/{run_id}/outputs.zip POST Body Ended");
+        return new ResponseEntity<>(taskOutputs, HttpStatus.OK);
+    }
+
+    @PostMapping(value = "/task-runs/{run_id}/{secret}/outputs.{extension:tar|tar\\.zst}")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<?> postOutputsProvisionsTarArchive(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable String extension,
+        HttpServletRequest request
+    ) throws ProvisioningException {
+        log.info("/task-runs/{run_id}/outputs.{} POST", extension);
+        // a tar is read in a single pass, as it is received
+        List<TaskRunParameterValue> taskOutputs = taskRunService.postOutputsArchive(
+            runId,
+            secret,
+            request::getInputStream,
+            ArchiveFormat.fromExtension(extension));
+        log.info("/task-runs/{run_id}/outputs.{} POST Ended", extension);
+        return new ResponseEntity<>(taskOutputs, HttpStatus.OK);
+    }
+
+    @PutMapping(
+        value = "/task-runs/{run_id}/{secret}/output-provisions/{param_name}",
+        consumes = MediaType.MULTIPART_FORM_DATA_VALUE
+    )
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<?> provisionOutputData(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable("param_name") String parameterName,
+        @RequestParam MultipartFile file
+    ) throws IOException, ProvisioningException {
+        log.info("/task-runs/{run_id}/output-provisions/{param_name} File PUT");
+
+        TaskRunParameterValue provisioned = taskRunService.provisionRunOutput(
+            runId,
+            secret,
+            parameterName,
+            file
+        );
+        log.info("/task-runs/{run_id}/output-provisions/{param_name} File PUT Ended");
+
+        return ResponseEntity.ok(provisioned);
+    }
+
+    @PutMapping(
+        value = "/task-runs/{run_id}/{secret}/output-provisions/{param_name}",
+        consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE
+    )
+    @ResponseStatus(code = HttpStatus.OK)
+    public ResponseEntity<?> provisionOutputBody(
+        @PathVariable("run_id") String runId,
+        @PathVariable String secret,
+        @PathVariable("param_name") String parameterName,
+        HttpServletRequest request
+    ) throws IOException, ProvisioningException {
+        log.info("/task-runs/{run_id}/output-provisions/{param_name} Binary PUT");
+
+        // the body is streamed by the service, once the run secret is checked
+        TaskRunParameterValue provisioned = taskRunService.provisionRunOutput(
+            runId,
+            secret,
+            parameterName,
+            request::getInputStream
+        );
+        log.info("/task-runs/{run_id}/output-provisions/{param_name} Binary PUT Ended");
+
+        return ResponseEntity.ok(provisioned);
+    }
+
     @PostMapping(value = "/task-runs/{run_id}/state-actions")
     @ResponseStatus(code = HttpStatus.OK)
     public ResponseEntity<?> updateState(
@@ -429,4 +597,13 @@ public class TaskRunController {
         log.info("/task-runs/{run_id}/state_actions POST Ended");
         return new ResponseEntity<>(stateAction, HttpStatus.OK);
     }
+
+    /* Serves a stored file, decompressed on the fly if it was compressed at rest */
+    private static Resource storedFile(File file) throws IOException {
+        if (!GzipHelper.isCompressed(file.toPath())) {
+            return new FileSystemResource(file);
+        }
+
+        return new InputStreamResource(GzipHelper.open(file.toPath()));
+    }
 }
@@ -1,13 +1,30 @@
 package be.cytomine.appengine.dto.handlers.registry;
 
 import java.io.File;
+import java.util.List;
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
+import org.springframework.core.io.InputStreamSource;
 
-@AllArgsConstructor
 @Data
 public class DockerImage {
     private File imageData;
+    private InputStreamSource imageSource;
     private String imageName;
+    // the layers already pushed to the repository of the image, not uploaded again
+    private List<ImageLayer> knownLayers = List.of();
+    // the layers of the image, once pushed
+    private List<ImageLayer> layers;
+    private ImagePushListener pushListener = ImagePushListener.NONE;
+
+    public DockerImage(File imageData, String imageName) {
+        this.imageData = imageData;
+        this.imageName = imageName;
+    }
+
+    // an image read from the bundle while it is pushed, without being extracted first
+    public DockerImage(InputStreamSource imageSource, String imageName) {
+        this.imageSource = imageSource;
+        this.imageName = imageName;
+    }
 }
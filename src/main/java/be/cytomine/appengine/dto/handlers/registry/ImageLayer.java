@@ -0,0 +1,14 @@
+package be.cytomine.appengine.dto.handlers.registry;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@AllArgsConstructor
+@Data
+public class ImageLayer {
+    // the path of the layer in the image tar
+    private String path;
+    private String digest;
+    private long size;
+    private String mediaType;
+}
@@ -0,0 +1,18 @@
+package be.cytomine.appengine.dto.handlers.registry;
+
+/**
+ * Notified of the progress of an image push, possibly from several upload threads
+ */
+public interface ImagePushListener {
+
+    ImagePushListener NONE = new ImagePushListener() {
+    };
+
+    // the number of layers of the image, once its manifest is read
+    default void layersFound(int count) {
+    }
+
+    // a layer is in the registry, uploaded or already there
+    default void layerPushed(ImageLayer layer) {
+    }
+}
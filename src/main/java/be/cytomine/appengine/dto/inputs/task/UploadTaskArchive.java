@@ -1,12 +1,15 @@
 package be.cytomine.appengine.dto.inputs.task;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.InputStreamSource;
 
 import be.cytomine.appengine.utils.DescriptorHelper;
 
@@ -14,7 +17,7 @@ import be.cytomine.appengine.utils.DescriptorHelper;
 @Setter
 @Getter
 @NoArgsConstructor
-public class UploadTaskArchive {
+public class UploadTaskArchive implements AutoCloseable {
 
     private File descriptorFile;
 
@@ -22,9 +25,48 @@ public class UploadTaskArchive {
 
     private JsonNode descriptorFileAsJson;
 
+    private InputStreamSource dockerImageSource;
+
+    private Closeable bundle;
+
     public UploadTaskArchive(File descriptorFile, File dockerImage) {
         this.descriptorFile = descriptorFile;
         this.dockerImage = dockerImage;
         this.descriptorFileAsJson = DescriptorHelper.parseDescriptor(descriptorFile);
     }
+
+    /**
+     * An archive whose image is read from the bundle when it is pushed
+     *
+     * @param descriptorFile the extracted descriptor
+     * @param dockerImageSource the image entry of the bundle
+     * @param bundle the bundle the image is read from, released when the archive is closed
+     */
+    public UploadTaskArchive(
+        File descriptorFile,
+        InputStreamSource dockerImageSource,
+        Closeable bundle
+    ) {
+        this.descriptorFile = descriptorFile;
+        this.dockerImageSource = dockerImageSource;
+        this.bundle = bundle;
+        this.descriptorFileAsJson = DescriptorHelper.parseDescriptor(descriptorFile);
+    }
+
+    public boolean isDockerImageStreamed() {
+        return dockerImageSource != null;
+    }
+
+    @Override
+    public void close() {
+        if (bundle == null) {
+            return;
+        }
+
+        try {
+            bundle.close();
+        } catch (IOException e) {
+            log.warn("UploadTaskArchive: failed to release bundle: {}", e.getMessage());
+        }
+    }
 }
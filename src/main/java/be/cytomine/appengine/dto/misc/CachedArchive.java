@@ -0,0 +1,16 @@
+package be.cytomine.appengine.dto.misc;
+
+import java.io.File;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+public class CachedArchive {
+
+    private final File archive;
+
+    // hex encoded SHA-256 of the archive, used as its entity tag
+    private final String digest;
+}
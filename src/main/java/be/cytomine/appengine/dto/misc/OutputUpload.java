@@ -0,0 +1,21 @@
+package be.cytomine.appengine.dto.misc;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class OutputUpload {
+
+    @JsonProperty("upload_id")
+    private String uploadId;
+
+    // number of bytes received so far, where the next chunk starts
+    @JsonProperty("offset")
+    private long offset;
+
+    // declared size of the whole archive, null when it was not declared
+    @JsonProperty("length")
+    private Long length;
+}
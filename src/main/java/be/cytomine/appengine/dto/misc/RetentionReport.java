@@ -0,0 +1,33 @@
+package be.cytomine.appengine.dto.misc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class RetentionReport {
+
+    @JsonProperty("dry_run")
+    private boolean dryRun;
+
+    @JsonProperty("purged_storages")
+    private List<String> purgedStorages = new ArrayList<>();
+
+    @JsonProperty("deleted_runs")
+    private List<UUID> deletedRuns = new ArrayList<>();
+
+    @JsonProperty("purged_temporary_files")
+    private int purgedTemporaryFiles;
+
+    @JsonProperty("reclaimed_bytes")
+    private long reclaimedBytes;
+
+    public void addReclaimedBytes(long bytes) {
+        reclaimedBytes += bytes;
+    }
+}
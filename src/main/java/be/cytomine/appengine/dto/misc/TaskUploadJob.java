@@ -0,0 +1,42 @@
+package be.cytomine.appengine.dto.misc;
+
+import java.time.LocalDateTime;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import be.cytomine.appengine.dto.inputs.task.TaskDescription;
+import be.cytomine.appengine.dto.responses.errors.AppEngineError;
+import be.cytomine.appengine.states.TaskUploadState;
+
+@Data
+@NoArgsConstructor
+public class TaskUploadJob {
+
+    @JsonProperty("job_id")
+    private String jobId;
+
+    @JsonProperty("progress")
+    private TaskUploadProgress progress = new TaskUploadProgress();
+
+    // description of the uploaded task, once the upload is finished
+    @JsonProperty("task")
+    private volatile TaskDescription task;
+
+    // cause of the failure, once the upload failed
+    @JsonProperty("error")
+    private volatile AppEngineError error;
+
+    @JsonProperty("created_at")
+    private LocalDateTime createdAt;
+
+    @JsonIgnore
+    private volatile LocalDateTime finishedAt;
+
+    @JsonProperty("state")
+    public TaskUploadState getState() {
+        return progress.getState();
+    }
+}
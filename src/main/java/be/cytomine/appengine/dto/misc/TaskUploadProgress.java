@@ -0,0 +1,61 @@
+package be.cytomine.appengine.dto.misc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+import lombok.Setter;
+
+import be.cytomine.appengine.dto.handlers.registry.ImageLayer;
+import be.cytomine.appengine.dto.handlers.registry.ImagePushListener;
+import be.cytomine.appengine.states.TaskUploadState;
+
+/**
+ * Progress of a task upload, updated by the upload while it is read by the status requests
+ */
+public class TaskUploadProgress implements ImagePushListener {
+
+    @JsonIgnore
+    @Getter
+    @Setter
+    private volatile TaskUploadState state = TaskUploadState.QUEUED;
+
+    private final AtomicLong bytesExtracted = new AtomicLong();
+
+    private final AtomicInteger layers = new AtomicInteger();
+
+    private final AtomicInteger layersPushed = new AtomicInteger();
+
+    // bytes of the descriptor and the image read from the bundle
+    @JsonProperty("bytes_extracted")
+    public long getBytesExtracted() {
+        return bytesExtracted.get();
+    }
+
+    // layers of the image, known once its manifest is read
+    @JsonProperty("layers")
+    public int getLayers() {
+        return layers.get();
+    }
+
+    @JsonProperty("layers_pushed")
+    public int getLayersPushed() {
+        return layersPushed.get();
+    }
+
+    public void addBytesExtracted(long bytes) {
+        bytesExtracted.addAndGet(bytes);
+    }
+
+    @Override
+    public void layersFound(int count) {
+        layers.set(count);
+    }
+
+    @Override
+    public void layerPushed(ImageLayer layer) {
+        layersPushed.incrementAndGet();
+    }
+}
@@ -73,5 +73,12 @@ public enum ErrorCode {
     INTERNAL_UNKNOWN_PARAMETER,
     INTERNAL_NULL_PROVISION,
     INTERNAL_UNKNOWN_SUBTYPE,
-    INTERNAL_INVALID_METADATA;
+    INTERNAL_INVALID_METADATA,
+    INTERNAL_UPLOAD_NOT_FOUND,
+    INTERNAL_UPLOAD_OFFSET_MISMATCH,
+    INTERNAL_UPLOAD_CHECKSUM_MISMATCH,
+    INTERNAL_UPLOAD_LENGTH_EXCEEDED,
+    INTERNAL_UPLOAD_INCOMPLETE,
+    INTERNAL_TASK_UPLOAD_NOT_FOUND,
+    INTERNAL_TASK_UPLOAD_QUEUE_FULL;
 }
@@ -78,6 +78,13 @@ public class ErrorDefinitions {
         codes.put(ErrorCode.INTERNAL_NULL_PROVISION, new MessageCode("APPE-internal-null-provision", "provision object is null"));
         codes.put(ErrorCode.INTERNAL_UNKNOWN_SUBTYPE, new MessageCode("APPE-internal-unknown-subtype", "collection subtype unknown"));
         codes.put(ErrorCode.INTERNAL_INVALID_METADATA, new MessageCode("APPE-internal-invalid-metadata", "collection array.yml is malformed"));
+        codes.put(ErrorCode.INTERNAL_UPLOAD_NOT_FOUND, new MessageCode("APPE-internal-upload-not-found", "upload not found"));
+        codes.put(ErrorCode.INTERNAL_UPLOAD_OFFSET_MISMATCH, new MessageCode("APPE-internal-upload-offset-mismatch", "chunk offset does not match the upload offset"));
+        codes.put(ErrorCode.INTERNAL_UPLOAD_CHECKSUM_MISMATCH, new MessageCode("APPE-internal-upload-checksum-mismatch", "chunk checksum does not match its content"));
+        codes.put(ErrorCode.INTERNAL_UPLOAD_LENGTH_EXCEEDED, new MessageCode("APPE-internal-upload-length-exceeded", "chunk exceeds the declared upload length"));
+        codes.put(ErrorCode.INTERNAL_UPLOAD_INCOMPLETE, new MessageCode("APPE-internal-upload-incomplete", "upload has not received its declared length"));
+        codes.put(ErrorCode.INTERNAL_TASK_UPLOAD_NOT_FOUND, new MessageCode("APPE-internal-task-upload-not-found", "task upload job not found"));
+        codes.put(ErrorCode.INTERNAL_TASK_UPLOAD_QUEUE_FULL, new MessageCode("APPE-internal-task-upload-queue-full", "too many task uploads in progress, retry later"));
     }
 
     public static MessageCode fromCode(ErrorCode code) {
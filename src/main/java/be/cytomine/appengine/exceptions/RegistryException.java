@@ -1,7 +1,14 @@
 package be.cytomine.appengine.exceptions;
 
+import lombok.Getter;
+
+import be.cytomine.appengine.dto.responses.errors.AppEngineError;
+
+@Getter
 public class RegistryException extends Exception {
 
+    private AppEngineError error;
+
     public RegistryException(Exception e) {
         super(e);
     }
@@ -9,4 +16,9 @@ public class RegistryException extends Exception {
     public RegistryException(String message) {
         super(message);
     }
+
+    public RegistryException(AppEngineError error) {
+        super(error.getMessage());
+        this.error = error;
+    }
 }
@@ -31,10 +31,12 @@ public class ProvisionTaskApiExceptionHandler {
     ) {
         String runNotFoundErrorMessage = "APPE-internal-run-not-found-error";
         String parameterNotFoundErrorMessage = "APPE-internal-parameter-not-found";
+        String uploadNotFoundErrorMessage = "APPE-internal-upload-not-found";
 
         if (
             e.getError().getErrorCode().equalsIgnoreCase(runNotFoundErrorMessage)
             || e.getError().getErrorCode().equalsIgnoreCase(parameterNotFoundErrorMessage)
+            || e.getError().getErrorCode().equalsIgnoreCase(uploadNotFoundErrorMessage)
         ) {
             log.info("not found 404 error [{}]", e.getMessage());
             return new ResponseEntity<AppEngineError>(e.getError(), HttpStatus.NOT_FOUND);
@@ -51,6 +53,16 @@ public class ProvisionTaskApiExceptionHandler {
             return new ResponseEntity<AppEngineError>(e.getError(), HttpStatus.FORBIDDEN);
         }
 
+        String uploadOffsetMismatch = "APPE-internal-upload-offset-mismatch";
+        String uploadIncomplete = "APPE-internal-upload-incomplete";
+        if (
+            e.getError().getErrorCode().equalsIgnoreCase(uploadOffsetMismatch)
+            || e.getError().getErrorCode().equalsIgnoreCase(uploadIncomplete)
+        ) {
+            log.info("conflict 409 error [{}]", e.getMessage());
+            return new ResponseEntity<AppEngineError>(e.getError(), HttpStatus.CONFLICT);
+        }
+
         log.info("bad request 400 error [{}]", e.getMessage());
         return new ResponseEntity<AppEngineError>(e.getError(), HttpStatus.BAD_REQUEST);
     }
@@ -1,73 +1,116 @@
 package be.cytomine.appengine.handlers;
 
 import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.Predicate;
 
-import lombok.Data;
-
-@Data
+/**
+ * Ordered list of storage entries indexed by name and by path.
+ *
+ * <p>Entries are kept in insertion order and looked up by name in constant time, the first
+ * entry added with a name being the one found. Each entry is also indexed by its path in the
+ * hierarchy, leading and trailing slashes aside, so that the direct children or the whole
+ * subtree of a path are found without scanning all the entries. An entry is renamed through
+ * {@link #rename} so that it stays indexed, and the list of {@link #getEntryList} keeps the
+ * indexes up to date when it is changed.</p>
+ */
 public class StorageData {
-    List<StorageDataEntry> entryList;
+
+    private static final String ROOT = "";
+
+    private final List<StorageDataEntry> entries = new ArrayList<>();
+
+    private final Map<String, List<StorageDataEntry>> entriesByName = new HashMap<>();
+
+    private final Map<String, List<StorageDataEntry>> entriesByPath = new HashMap<>();
+
+    private final Map<String, Set<String>> childPaths = new HashMap<>();
+
+    // depth of each entry in the hierarchy, counted once when it is indexed
+    private final Map<StorageDataEntry, Integer> depths = new IdentityHashMap<>();
+
+    private final List<StorageDataEntry> entryList = new EntryList();
 
     public StorageData(StorageData other) {
-        if (other != null && other.getEntryList() != null) {
-            this.entryList = new LinkedList<>();
-            this.entryList.addAll(other.getEntryList());
+        if (other != null) {
+            other.entries.forEach(this::add);
         }
     }
 
     public StorageData(StorageDataEntry root) {
-        entryList = new LinkedList<>();
-        entryList.add(root);
+        add(root);
     }
 
     // useful to create files in StorageData
     public StorageData(File data, String name) {
-        StorageDataEntry root = new StorageDataEntry(data, name, StorageDataType.FILE);
-        entryList = new LinkedList<>();
-        entryList.add(root);
+        add(new StorageDataEntry(data, name, StorageDataType.FILE));
     }
 
     // useful to create a directory in StorageData
     public StorageData(String name) {
         StorageDataEntry root = new StorageDataEntry(name);
         root.setStorageDataType(StorageDataType.DIRECTORY);
-        entryList = new LinkedList<>();
-        entryList.add(root);
+        add(root);
     }
 
     public StorageData(File fileData) {
-        StorageDataEntry root = new StorageDataEntry(fileData);
-        entryList = new LinkedList<>();
-        entryList.add(root);
+        add(new StorageDataEntry(fileData));
     }
 
     public StorageData(String parameterName, String storageId) {
-        StorageDataEntry root = new StorageDataEntry(parameterName, storageId);
-        entryList = new LinkedList<>();
-        entryList.add(root);
+        add(new StorageDataEntry(parameterName, storageId));
+    }
+
+    public StorageData() {}
+
+    /**
+     * Lists the entries, the list being backed by this StorageData
+     *
+     * @return the entries in order, the changes made to the list being indexed
+     */
+    public List<StorageDataEntry> getEntryList() {
+        return entryList;
     }
 
-    public StorageData() {
-        entryList = new LinkedList<>();
+    public Collection<StorageDataEntry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public int size() {
+        return entries.size();
     }
 
     public StorageDataEntry peek() {
-        return entryList.stream().findFirst().orElse(null);
+        return entries.isEmpty() ? null : entries.get(0);
     }
 
     public boolean add(StorageDataEntry entry) {
         if (Objects.isNull(entry)) {
             return false; // null values are not allowed in StorageData
         }
-        return entryList.add(entry);
+
+        entries.add(entry);
+        index(entry);
+
+        return true;
     }
 
     public boolean isEmpty() {
-        return entryList.isEmpty();
+        return entries.isEmpty();
     }
 
     public boolean merge(StorageData other) {
@@ -75,31 +118,314 @@ public class StorageData {
             return false;
         }
 
-        int sizeBeforeMerge = entryList.size();
-        entryList.addAll(other.getEntryList());
+        int sizeBeforeMerge = entries.size();
+        // copied first, other may be this StorageData
+        List<StorageDataEntry> added = List.copyOf(other.entries);
+        added.forEach(this::add);
 
-        return entryList.size() == (sizeBeforeMerge + other.getEntryList().size());
+        return entries.size() == (sizeBeforeMerge + added.size());
     }
 
     public StorageDataEntry get(String name) {
-        return entryList
-            .stream()
-            .filter(entry -> Objects.equals(entry.getName(), name))
-            .findFirst()
-            .orElse(null);
+        List<StorageDataEntry> named = entriesByName.get(name);
+        return named == null ? null : named.get(0);
+    }
+
+    /**
+     * Removes the entries with a name
+     *
+     * @return the first entry removed, null when none has the name
+     */
+    public StorageDataEntry remove(String name) {
+        List<StorageDataEntry> named = entriesByName.get(name);
+        if (named == null) {
+            return null;
+        }
+
+        List<StorageDataEntry> removed = List.copyOf(named);
+        Set<StorageDataEntry> identities = Collections.newSetFromMap(new IdentityHashMap<>());
+        identities.addAll(removed);
+        entries.removeIf(identities::contains);
+        removed.forEach(this::unindex);
+
+        return removed.get(0);
+    }
+
+    public boolean removeIf(Predicate<StorageDataEntry> filter) {
+        List<StorageDataEntry> removed = new ArrayList<>();
+        entries.removeIf(entry -> filter.test(entry) && removed.add(entry));
+        removed.forEach(this::unindex);
+
+        return !removed.isEmpty();
+    }
+
+    /**
+     * Renames an entry of this StorageData, keeping its place and its lookups up to date
+     *
+     * @param entry an entry of this StorageData
+     * @param name the new name of the entry
+     */
+    public void rename(StorageDataEntry entry, String name) {
+        if (Objects.equals(entry.getName(), name)) {
+            return;
+        }
+
+        boolean indexed = unindex(entry);
+        entry.setName(name);
+        if (indexed) {
+            index(entry);
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        entriesByName.clear();
+        entriesByPath.clear();
+        childPaths.clear();
+        depths.clear();
+    }
+
+    /**
+     * Lists the entries directly below a path
+     *
+     * @param path the parent path, the root being the empty path
+     * @return the child entries in insertion order of their paths
+     */
+    public List<StorageDataEntry> children(String path) {
+        List<StorageDataEntry> children = new ArrayList<>();
+        for (String childPath : childPaths.getOrDefault(normalize(path), Set.of())) {
+            children.addAll(entriesByPath.getOrDefault(childPath, List.of()));
+        }
+
+        return children;
+    }
+
+    /**
+     * Lists the entries at or below a path, parents before their children
+     *
+     * @param prefix the path of the subtree, the root being the empty path
+     * @return the entries of the subtree
+     */
+    public List<StorageDataEntry> subtree(String prefix) {
+        List<StorageDataEntry> subtree = new ArrayList<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(normalize(prefix));
+        while (!pending.isEmpty()) {
+            String path = pending.poll();
+            subtree.addAll(entriesByPath.getOrDefault(path, List.of()));
+            pending.addAll(childPaths.getOrDefault(path, Set.of()));
+        }
+
+        return subtree;
     }
 
     public void sortShallowToDeep() {
-        entryList.sort(Comparator.comparingInt(entry -> countSlashes(entry.getName())));
+        entries.sort(Comparator.comparingInt(depths::get));
+        reindexNames();
     }
 
-    private int countSlashes(String path) {
+    // the first entry of a name in the list stays the one looked up
+    private void reindexNames() {
+        entriesByName.clear();
+        entries.forEach(entry -> entriesByName
+            .computeIfAbsent(entry.getName(), key -> new ArrayList<>(1))
+            .add(entry));
+    }
+
+    private void index(StorageDataEntry entry) {
+        entriesByName.computeIfAbsent(entry.getName(), key -> new ArrayList<>(1)).add(entry);
+        depths.put(entry, countSlashes(entry.getName()));
+
+        String path = normalize(entry.getName());
+        entriesByPath.computeIfAbsent(path, key -> new ArrayList<>(1)).add(entry);
+
+        // link the path to its ancestors, even those without entries of their own
+        while (!path.equals(ROOT)) {
+            String parent = parentOf(path);
+            if (!childPaths.computeIfAbsent(parent, key -> new LinkedHashSet<>()).add(path)) {
+                break;
+            }
+            path = parent;
+        }
+    }
+
+    private boolean unindex(StorageDataEntry entry) {
+        if (!removeIdentical(entriesByName, entry.getName(), entry)) {
+            return false;
+        }
+
+        String path = normalize(entry.getName());
+        removeIdentical(entriesByPath, path, entry);
+        // the same entry may have been added more than once
+        if (!containsIdentical(entriesByName.get(entry.getName()), entry)) {
+            depths.remove(entry);
+        }
+
+        // unlink the ancestors left without entries nor children
+        while (!path.equals(ROOT)
+            && !entriesByPath.containsKey(path)
+            && !childPaths.containsKey(path)) {
+            String parent = parentOf(path);
+            Set<String> siblings = childPaths.get(parent);
+            if (siblings != null) {
+                siblings.remove(path);
+                if (siblings.isEmpty()) {
+                    childPaths.remove(parent);
+                }
+            }
+            path = parent;
+        }
+
+        return true;
+    }
+
+    // entries are compared by identity, equal entries may be added more than once
+    private static boolean removeIdentical(
+        Map<String, List<StorageDataEntry>> index,
+        String key,
+        StorageDataEntry entry
+    ) {
+        List<StorageDataEntry> indexed = index.get(key);
+        if (indexed == null) {
+            return false;
+        }
+
+        for (int i = 0; i < indexed.size(); i++) {
+            if (indexed.get(i) == entry) {
+                indexed.remove(i);
+                if (indexed.isEmpty()) {
+                    index.remove(key);
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean containsIdentical(
+        List<StorageDataEntry> indexed,
+        StorageDataEntry entry
+    ) {
+        if (indexed == null) {
+            return false;
+        }
+
+        for (StorageDataEntry candidate : indexed) {
+            if (candidate == entry) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String normalize(String name) {
+        if (name == null) {
+            return ROOT;
+        }
+
+        int start = 0;
+        int end = name.length();
+        while (start < end && name.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && name.charAt(end - 1) == '/') {
+            end--;
+        }
+
+        return name.substring(start, end);
+    }
+
+    private static String parentOf(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator < 0 ? ROOT : path.substring(0, separator);
+    }
+
+    private static int countSlashes(String path) {
+        if (path == null) {
+            return 0;
+        }
+
         int count = 0;
-        for (char ch : path.toCharArray()) {
-            if (ch == '/') {
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
                 count++;
             }
         }
         return count;
     }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof StorageData)) {
+            return false;
+        }
+
+        return entries.equals(((StorageData) other).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "StorageData(entryList=" + entries + ")";
+    }
+
+    /* The entries as a list, changed through the indexes of the StorageData */
+    private final class EntryList extends AbstractList<StorageDataEntry> implements RandomAccess {
+
+        @Override
+        public StorageDataEntry get(int position) {
+            return entries.get(position);
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public boolean add(StorageDataEntry entry) {
+            modCount++;
+            return StorageData.this.add(Objects.requireNonNull(entry));
+        }
+
+        @Override
+        public void add(int position, StorageDataEntry entry) {
+            entries.add(position, Objects.requireNonNull(entry));
+            modCount++;
+            index(entry);
+            reindexNames();
+        }
+
+        @Override
+        public StorageDataEntry set(int position, StorageDataEntry entry) {
+            StorageDataEntry previous = entries.set(position, Objects.requireNonNull(entry));
+            unindex(previous);
+            index(entry);
+            reindexNames();
+            return previous;
+        }
+
+        @Override
+        public StorageDataEntry remove(int position) {
+            StorageDataEntry removed = entries.remove(position);
+            modCount++;
+            unindex(removed);
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            modCount++;
+            StorageData.this.clear();
+        }
+    }
 }
@@ -19,6 +19,7 @@ public class StorageDataEntry {
 
     private StorageDataType storageDataType;
 
+    private boolean compressible;
 
     public StorageDataEntry(File data) {
         this.data = data;
@@ -35,6 +36,18 @@ public class StorageDataEntry {
         this.storageDataType = storageDataType;
     }
 
+    public StorageDataEntry(
+        File data,
+        String name,
+        String storageId,
+        StorageDataType storageDataType
+    ) {
+        this.data = data;
+        this.name = name;
+        this.storageId = storageId;
+        this.storageDataType = storageDataType;
+    }
+
     public StorageDataEntry(String name, StorageDataType storageDataType) {
         this.name = name;
         this.storageDataType = storageDataType;
@@ -1,5 +1,9 @@
 package be.cytomine.appengine.handlers;
 
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.stream.Stream;
+
 import be.cytomine.appengine.dto.handlers.filestorage.Storage;
 import be.cytomine.appengine.exceptions.FileStorageException;
 
@@ -12,9 +16,30 @@ public interface StorageHandler {
 
     boolean checkStorageExists(String idStorage) throws FileStorageException;
 
+    long getStorageSize(Storage storage) throws FileStorageException;
+
     void deleteStorageData(StorageData file) throws FileStorageException;
 
     void saveStorageData(Storage storage, StorageData storageData) throws FileStorageException;
 
     StorageData readStorageData(StorageData emptyFile) throws FileStorageException;
+
+    Stream<StorageDataEntry> streamStorageData(StorageData emptyFile) throws FileStorageException;
+
+    StorageData resolveStorageData(StorageData emptyFile) throws FileStorageException;
+
+    long writeStorageData(
+        Storage storage,
+        String name,
+        ReadableByteChannel content
+    ) throws FileStorageException;
+
+    long writeStorageData(
+        Storage storage,
+        String name,
+        ReadableByteChannel content,
+        boolean compressible
+    ) throws FileStorageException;
+
+    SeekableByteChannel openStorageData(Storage storage, String name) throws FileStorageException;
 }
@@ -1,33 +1,53 @@
 package be.cytomine.appengine.handlers.registry.impl;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Map;
 
-import com.cytomine.registry.client.RegistryClient;
 import lombok.extern.slf4j.Slf4j;
 
 import be.cytomine.appengine.dto.handlers.registry.DockerImage;
+import be.cytomine.appengine.dto.handlers.registry.ImageLayer;
+import be.cytomine.appengine.dto.responses.errors.AppEngineError;
+import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
+import be.cytomine.appengine.dto.responses.errors.ErrorCode;
 import be.cytomine.appengine.exceptions.RegistryException;
 import be.cytomine.appengine.handlers.RegistryHandler;
+import be.cytomine.appengine.handlers.registry.impl.utils.RegistryApiClient;
+import be.cytomine.appengine.handlers.registry.impl.utils.StreamingImagePusher;
 
 @Slf4j
 public class DockerRegistryHandler implements RegistryHandler {
 
+    private final StreamingImagePusher streamingImagePusher;
+
     public DockerRegistryHandler(
         String registryHost,
         String registryPort,
         String registryScheme,
         boolean authenticated,
         String registryUsername,
-        String registryPassword
-    ) throws IOException {
-        RegistryClient.config(registryScheme, registryHost, registryPort);
-        if (authenticated) {
-            RegistryClient.authenticate(registryUsername, registryPassword);
-        }
+        String registryPassword,
+        int pushParallelism,
+        int pushRetries,
+        long pushRetryBackoff
+    ) {
+        // a registry with a token service is reached with the token it hands out
+        RegistryApiClient client = new RegistryApiClient(
+            registryScheme + "://" + registryHost + ":" + registryPort,
+            authenticated ? registryUsername : null,
+            registryPassword
+        );
+        this.streamingImagePusher = new StreamingImagePusher(
+            client,
+            pushParallelism,
+            pushRetries,
+            pushRetryBackoff
+        );
 
         log.info("Docker Registry Handler: initialised");
     }
@@ -37,23 +57,58 @@ public class DockerRegistryHandler implements RegistryHandler {
         return false;
     }
 
+    /**
+     * Pushes an image and its manifest last. The layers of an image on disk are uploaded
+     * concurrently, the layers of a streamed image are sent as they are read. The layers the
+     * registry already has are not uploaded again, the ones recorded for the other versions of
+     * the task included once the registry confirms it still has them.
+     */
     @Override
     public void pushImage(DockerImage image) throws RegistryException {
         log.info("Docker Registry Handler: pushing image...");
 
         String imageName = image.getImageName();
         File imageData = image.getImageData();
+        Map<String, ImageLayer> knownLayers = new HashMap<>();
+        for (ImageLayer layer : image.getKnownLayers()) {
+            knownLayers.put(layer.getPath(), layer);
+        }
 
-        try (InputStream inputStream = new FileInputStream(imageData)) {
-            RegistryClient.push(inputStream, imageName);
+        try {
+            if (image.getImageSource() == null) {
+                if (!imageData.isFile()) {
+                    throw new FileNotFoundException(imageData.getAbsolutePath());
+                }
+                image.setLayers(streamingImagePusher.push(
+                    imageData,
+                    imageName,
+                    knownLayers,
+                    image.getPushListener()
+                ));
+            } else {
+                try (InputStream inputStream = image.getImageSource().getInputStream()) {
+                    image.setLayers(streamingImagePusher.push(
+                        inputStream,
+                        imageName,
+                        knownLayers,
+                        image.getPushListener()
+                    ));
+                }
+            }
             log.info("Docker Registry Handler: image pushed");
         } catch (FileNotFoundException e) {
             log.error("Image data file not found: {}", imageData.getAbsolutePath(), e);
             throw new RegistryException("Docker Registry Handler: image data file not found");
+        } catch (NoSuchFileException e) {
+            log.error("Invalid image {}: {} not found", imageName, e.getMessage());
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_DOCKER_IMAGE_MANIFEST_MISSING
+            );
+            throw new RegistryException(error);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RegistryException("Docker Registry Handler: image push interrupted");
         } catch (IOException e) {
-            log.error("Error reading image data from file: {}", imageData.getAbsolutePath(), e);
-            throw new RegistryException("Docker Registry Handler: failed to read image data");
-        } catch (Exception e) {
             log.error("Failed to push image: {}", imageName, e);
             String message = "Docker Registry Handler: failed to push the image to registry";
             throw new RegistryException(message);
@@ -0,0 +1,345 @@
+package be.cytomine.appengine.handlers.registry.impl.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Client of the blob and manifest endpoints of the Docker Registry HTTP API V2.
+ *
+ * <p>A blob is streamed to the registry in a single chunked request while its digest is
+ * computed, the upload is then closed with that digest. The registry is reached with basic
+ * authentication when credentials are given. A registry answering with a bearer challenge is
+ * reached with a token of its token service instead, asked for once per repository with the
+ * same credentials and renewed when the registry refuses it.</p>
+ */
+public class RegistryApiClient {
+
+    /* the parameters of a challenge, as in realm="...",service="..." */
+    private static final Pattern CHALLENGE_PARAMETER = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    private final HttpClient httpClient;
+
+    private final String baseUrl;
+
+    private final String authorization;
+
+    /* the bearer authorization of each repository, once the registry asked for a token */
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public RegistryApiClient(String baseUrl, String username, String password) {
+        this.httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(30))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.authorization = username == null
+            ? null
+            : "Basic " + Base64.getEncoder().encodeToString(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8)
+            );
+    }
+
+    /**
+     * Streams a blob to the registry
+     *
+     * @param repository the repository the blob is pushed to
+     * @param content the content of the blob, read to its end but left open
+     * @return the digest and the size of the blob
+     * @throws IOException if the blob cannot be read or the registry rejects it
+     */
+    public BlobDescriptor uploadBlob(
+        String repository,
+        InputStream content
+    ) throws IOException, InterruptedException {
+        MessageDigest digest = newDigest();
+        // the request body is closed once sent, the content is left to the caller
+        CountingInputStream counted = new CountingInputStream(
+            new DigestInputStream(CloseShieldInputStream.wrap(content), digest)
+        );
+
+        URI location = startUpload(repository);
+        // the content cannot be sent twice, a refused token fails the upload
+        HttpResponse<Void> patched = send(repository, request(repository, location)
+            .header("Content-Type", "application/octet-stream")
+            .method("PATCH", HttpRequest.BodyPublishers.ofInputStream(() -> counted))
+            .build(), false);
+        URI next = location(location, patched);
+
+        String blobDigest = "sha256:" + HexFormat.of().formatHex(digest.digest());
+        send(repository, request(repository, withDigest(next, blobDigest))
+            .PUT(HttpRequest.BodyPublishers.noBody())
+            .build(), true);
+
+        return new BlobDescriptor(blobDigest, counted.count);
+    }
+
+    /**
+     * Pushes a blob held in memory in a single request, unless the registry already has it
+     *
+     * @param repository the repository the blob is pushed to
+     * @param content the content of the blob
+     * @return the digest and the size of the blob
+     * @throws IOException if the registry rejects the blob
+     */
+    public BlobDescriptor uploadBlob(
+        String repository,
+        byte[] content
+    ) throws IOException, InterruptedException {
+        String blobDigest = "sha256:" + HexFormat.of().formatHex(newDigest().digest(content));
+        if (blobExists(repository, blobDigest)) {
+            return new BlobDescriptor(blobDigest, content.length);
+        }
+
+        URI location = startUpload(repository);
+        send(repository, request(repository, withDigest(location, blobDigest))
+            .header("Content-Type", "application/octet-stream")
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(content))
+            .build(), true);
+
+        return new BlobDescriptor(blobDigest, content.length);
+    }
+
+    /**
+     * Checks whether a blob is already stored in a repository
+     *
+     * @param repository the repository the blob would be pushed to
+     * @param digest the content digest of the blob
+     * @return true if the registry has the blob
+     * @throws IOException if the registry cannot tell
+     */
+    public boolean blobExists(
+        String repository,
+        String digest
+    ) throws IOException, InterruptedException {
+        URI uri = URI.create(baseUrl + "/v2/" + repository + "/blobs/" + digest);
+        HttpRequest request = request(repository, uri)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+        HttpResponse<Void> response = exchange(repository, request, true);
+        if (response.statusCode() == 404) {
+            return false;
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(
+                "Registry responded " + response.statusCode() + " to HEAD " + uri.getPath()
+            );
+        }
+
+        return true;
+    }
+
+    public void putManifest(
+        String repository,
+        String reference,
+        String mediaType,
+        byte[] manifest
+    ) throws IOException, InterruptedException {
+        URI uri = URI.create(baseUrl + "/v2/" + repository + "/manifests/" + reference);
+        send(repository, request(repository, uri)
+            .header("Content-Type", mediaType)
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(manifest))
+            .build(), true);
+    }
+
+    private URI startUpload(String repository) throws IOException, InterruptedException {
+        URI uri = URI.create(baseUrl + "/v2/" + repository + "/blobs/uploads/");
+        HttpResponse<Void> response = send(repository, request(repository, uri)
+            .POST(HttpRequest.BodyPublishers.noBody())
+            .build(), true);
+
+        return location(uri, response);
+    }
+
+    private HttpRequest.Builder request(String repository, URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        String repositoryAuthorization = tokens.getOrDefault(repository, authorization);
+        if (repositoryAuthorization != null) {
+            builder.header("Authorization", repositoryAuthorization);
+        }
+
+        return builder;
+    }
+
+    private HttpResponse<Void> send(
+        String repository,
+        HttpRequest request,
+        boolean replayable
+    ) throws IOException, InterruptedException {
+        HttpResponse<Void> response = exchange(repository, request, replayable);
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(
+                "Registry responded " + response.statusCode()
+                + " to " + request.method() + " " + request.uri().getPath()
+            );
+        }
+
+        return response;
+    }
+
+    /**
+     * Sends a request, with a new token if the registry challenges for one
+     *
+     * @param replayable whether the request can be sent again once the token is received
+     * @return the response to the request, sent again with the token when it could be
+     */
+    private HttpResponse<Void> exchange(
+        String repository,
+        HttpRequest request,
+        boolean replayable
+    ) throws IOException, InterruptedException {
+        HttpResponse<Void> response = httpClient.send(
+            request,
+            HttpResponse.BodyHandlers.discarding()
+        );
+        String challenge = response.headers().firstValue("WWW-Authenticate").orElse("");
+        if (response.statusCode() != 401 || !challenge.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return response;
+        }
+
+        String token = requestToken(repository, challenge);
+        tokens.put(repository, token);
+        if (!replayable) {
+            return response;
+        }
+
+        HttpRequest authorized = HttpRequest
+            .newBuilder(request, (name, value) -> !name.equalsIgnoreCase("Authorization"))
+            .header("Authorization", token)
+            .build();
+
+        return httpClient.send(authorized, HttpResponse.BodyHandlers.discarding());
+    }
+
+    /* Asks the token service named by a bearer challenge to pull from and push to a repository */
+    private String requestToken(
+        String repository,
+        String challenge
+    ) throws IOException, InterruptedException {
+        Map<String, String> parameters = new HashMap<>();
+        Matcher parameter = CHALLENGE_PARAMETER.matcher(challenge);
+        while (parameter.find()) {
+            parameters.put(parameter.group(1).toLowerCase(), parameter.group(2));
+        }
+        String realm = parameters.get("realm");
+        if (realm == null) {
+            throw new IOException("Registry gave no token realm");
+        }
+
+        String query = "scope=" + encode("repository:" + repository + ":pull,push");
+        if (parameters.containsKey("service")) {
+            query = "service=" + encode(parameters.get("service")) + "&" + query;
+        }
+        String separator = realm.contains("?") ? "&" : "?";
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(realm + separator + query));
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+
+        HttpResponse<byte[]> response = httpClient.send(
+            builder.GET().build(),
+            HttpResponse.BodyHandlers.ofByteArray()
+        );
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Registry token service responded " + response.statusCode());
+        }
+        JsonNode body = mapper.readTree(response.body());
+        String token = body.path("token").asText(body.path("access_token").asText(""));
+        if (token.isEmpty()) {
+            throw new IOException("Registry token service gave no token");
+        }
+
+        return "Bearer " + token;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /* The upload location, which the registry may give relative to the request */
+    private static URI location(URI request, HttpResponse<?> response) throws IOException {
+        String location = response.headers()
+            .firstValue("Location")
+            .orElseThrow(() -> new IOException("Registry gave no upload location"));
+
+        return request.resolve(location);
+    }
+
+    private static URI withDigest(URI location, String digest) {
+        String separator = location.getRawQuery() == null ? "?" : "&";
+
+        return URI.create(location + separator + "digest=" + digest.replace(":", "%3A"));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * The content digest and the size of a blob pushed to the registry
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class BlobDescriptor {
+
+        private final String digest;
+
+        private final long size;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package be.cytomine.appengine.handlers.registry.impl.utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarFile;
+
+import be.cytomine.appengine.dto.handlers.registry.ImageLayer;
+import be.cytomine.appengine.dto.handlers.registry.ImagePushListener;
+import be.cytomine.appengine.handlers.registry.impl.utils.RegistryApiClient.BlobDescriptor;
+
+/**
+ * Pushes an image saved with {@code docker save} to a registry, the image manifest last.
+ *
+ * <p>An image streamed from its tar is pushed in a single pass. The layers come before
+ * {@code manifest.json} in the tar, so the entries are handled as they are met: the large ones
+ * can only be layers and are streamed to the registry right away, the small ones are kept in
+ * memory. Once the tar is read, its manifest tells which entries are the config and the layers
+ * of the image.</p>
+ *
+ * <p>An image tar on disk is read from its manifest instead, and its blobs are uploaded on
+ * several threads, each one reading its own entry of the tar. A failed blob upload is retried
+ * with an exponential backoff.</p>
+ *
+ * <p>Only the layers the registry does not have yet are uploaded: the layers already pushed
+ * with a previous image are skipped once the registry confirms it still has their recorded
+ * digest, and the other ones are checked by digest before being uploaded whenever the digest
+ * is known before reading them.</p>
+ */
+@Slf4j
+public class StreamingImagePusher {
+
+    private static final String MANIFEST_MEDIA_TYPE = "application/vnd.oci.image.manifest.v1+json";
+
+    private static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+
+    private static final String LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar";
+
+    private static final String MANIFEST_FILE = "manifest.json";
+
+    /* the OCI layout of docker save names the blobs after their digest */
+    private static final Pattern BLOB_PATH = Pattern.compile("blobs/sha256/([0-9a-f]{64})");
+
+    /* entries up to this size are kept in memory, the metadata files of an image are smaller */
+    private static final long BUFFERED_ENTRY_SIZE = 1024 * 1024;
+
+    private final RegistryApiClient client;
+
+    private final int parallelism;
+
+    private final int retries;
+
+    private final long retryBackoff;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private ExecutorService uploadExecutor;
+
+    public StreamingImagePusher(RegistryApiClient client) {
+        this(client, 1, 0, 0);
+    }
+
+    /**
+     * @param client the client of the registry
+     * @param parallelism the number of blobs uploaded at once from an image tar on disk
+     * @param retries the number of times a failed blob upload is retried
+     * @param retryBackoff the delay before the first retry in milliseconds, doubled each retry
+     */
+    public StreamingImagePusher(
+        RegistryApiClient client,
+        int parallelism,
+        int retries,
+        long retryBackoff
+    ) {
+        this.client = client;
+        this.parallelism = Math.max(1, parallelism);
+        this.retries = Math.max(0, retries);
+        this.retryBackoff = Math.max(0, retryBackoff);
+    }
+
+    public List<ImageLayer> push(
+        InputStream imageTar,
+        String imageName
+    ) throws IOException, InterruptedException {
+        return push(imageTar, imageName, Map.of(), ImagePushListener.NONE);
+    }
+
+    /**
+     * Pushes an image from its tar, read once
+     *
+     * @param imageTar the tar written by {@code docker save}
+     * @param imageName the name of the image, as {@code repository:tag}
+     * @param knownLayers the layers already pushed to the repository, by path in the tar
+     * @param listener notified of the layers found and pushed
+     * @return the layers of the image, in order
+     * @throws NoSuchFileException if the tar has no {@code manifest.json} or misses an entry
+     *     it references
+     * @throws IOException if the tar cannot be read or the registry rejects the image
+     */
+    public List<ImageLayer> push(
+        InputStream imageTar,
+        String imageName,
+        Map<String, ImageLayer> knownLayers,
+        ImagePushListener listener
+    ) throws IOException, InterruptedException {
+        String repository = repository(imageName);
+
+        Map<String, ImageLayer> pushed = new HashMap<>();
+        Map<String, byte[]> buffered = new HashMap<>();
+        byte[] manifest = null;
+
+        TarArchiveInputStream tar = new TarArchiveInputStream(imageTar);
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            if (!entry.isFile()) {
+                continue;
+            }
+
+            String name = entryName(entry);
+            ImageLayer known = knownLayers.get(name);
+            if (name.equals(MANIFEST_FILE)) {
+                manifest = tar.readAllBytes();
+            } else if (isStored(repository, known)) {
+                log.info("Streaming Image Push: layer {} already pushed", name);
+                pushed.put(name, known);
+                listener.layerPushed(known);
+            } else if (entry.getSize() <= BUFFERED_ENTRY_SIZE) {
+                buffered.put(name, tar.readAllBytes());
+            } else {
+                ImageLayer layer = pushLayer(repository, name, entry.getSize(), tar);
+                pushed.put(name, layer);
+                listener.layerPushed(layer);
+            }
+        }
+
+        if (manifest == null) {
+            throw new NoSuchFileException(MANIFEST_FILE);
+        }
+        JsonNode image = mapper.readTree(manifest).path(0);
+        listener.layersFound(image.path("Layers").size());
+
+        byte[] config = buffered.get(image.path("Config").asText());
+        if (config == null) {
+            throw new NoSuchFileException(image.path("Config").asText());
+        }
+        BlobDescriptor configBlob = withRetry(
+            "config",
+            () -> client.uploadBlob(repository, config)
+        );
+
+        List<ImageLayer> layers = new ArrayList<>();
+        for (JsonNode layerName : image.path("Layers")) {
+            ImageLayer layer = pushed.get(layerName.asText());
+            if (layer == null) {
+                byte[] content = buffered.get(layerName.asText());
+                if (content == null) {
+                    throw new NoSuchFileException(layerName.asText());
+                }
+                layer = withRetry(
+                    layerName.asText(),
+                    () -> pushBuffered(repository, layerName.asText(), content)
+                );
+                listener.layerPushed(layer);
+            }
+            layers.add(layer);
+        }
+
+        putManifest(imageName, configBlob, layers);
+
+        return layers;
+    }
+
+    /**
+     * Pushes an image from its tar on disk, uploading its blobs concurrently
+     *
+     * @param imageTar the tar written by {@code docker save}
+     * @param imageName the name of the image, as {@code repository:tag}
+     * @param knownLayers the layers already pushed to the repository, by path in the tar
+     * @param listener notified of the layers found and pushed
+     * @return the layers of the image, in order
+     * @throws NoSuchFileException if the tar has no {@code manifest.json} or misses an entry
+     *     it references
+     * @throws IOException if the tar cannot be read or the registry rejects the image
+     */
+    public List<ImageLayer> push(
+        File imageTar,
+        String imageName,
+        Map<String, ImageLayer> knownLayers,
+        ImagePushListener listener
+    ) throws IOException, InterruptedException {
+        String repository = repository(imageName);
+
+        Map<String, TarArchiveEntry> entries = new HashMap<>();
+        JsonNode image;
+        byte[] config;
+        try (TarFile tar = new TarFile(imageTar)) {
+            for (TarArchiveEntry entry : tar.getEntries()) {
+                if (entry.isFile()) {
+                    entries.put(entryName(entry), entry);
+                }
+            }
+            image = mapper.readTree(read(tar, entries, MANIFEST_FILE)).path(0);
+            config = read(tar, entries, image.path("Config").asText());
+        }
+        listener.layersFound(image.path("Layers").size());
+        for (JsonNode layerName : image.path("Layers")) {
+            if (!entries.containsKey(layerName.asText())) {
+                throw new NoSuchFileException(layerName.asText());
+            }
+        }
+
+        Future<BlobDescriptor> configUpload = uploadExecutor().submit(
+            () -> withRetry("config", () -> client.uploadBlob(repository, config))
+        );
+        Map<String, Future<ImageLayer>> uploads = new LinkedHashMap<>();
+        for (JsonNode layerName : image.path("Layers")) {
+            String name = layerName.asText();
+            if (uploads.containsKey(name)) {
+                continue;
+            }
+            ImageLayer known = knownLayers.get(name);
+            long size = entries.get(name).getSize();
+            uploads.put(name, uploadExecutor().submit(() -> {
+                ImageLayer layer;
+                if (isStored(repository, known)) {
+                    log.info("Streaming Image Push: layer {} already pushed", name);
+                    layer = known;
+                } else {
+                    layer = withRetry(name, () -> pushEntry(repository, imageTar, name, size));
+                }
+                listener.layerPushed(layer);
+                return layer;
+            }));
+        }
+
+        List<Future<?>> pending = new ArrayList<>(uploads.values());
+        pending.add(configUpload);
+        BlobDescriptor configBlob = await(configUpload, pending);
+        List<ImageLayer> layers = new ArrayList<>();
+        for (JsonNode layerName : image.path("Layers")) {
+            layers.add(await(uploads.get(layerName.asText()), pending));
+        }
+
+        putManifest(imageName, configBlob, layers);
+
+        return layers;
+    }
+
+    private void putManifest(
+        String imageName,
+        BlobDescriptor configBlob,
+        List<ImageLayer> layers
+    ) throws IOException, InterruptedException {
+        ObjectNode imageManifest = mapper.createObjectNode();
+        imageManifest.put("schemaVersion", 2);
+        imageManifest.put("mediaType", MANIFEST_MEDIA_TYPE);
+        imageManifest.set(
+            "config",
+            descriptor(CONFIG_MEDIA_TYPE, configBlob.getDigest(), configBlob.getSize())
+        );
+        ArrayNode layersNode = imageManifest.putArray("layers");
+        for (ImageLayer layer : layers) {
+            layersNode.add(descriptor(layer.getMediaType(), layer.getDigest(), layer.getSize()));
+        }
+
+        int separator = imageName.lastIndexOf(':');
+        String tag = separator < 0 ? "latest" : imageName.substring(separator + 1);
+        byte[] manifest = mapper.writeValueAsBytes(imageManifest);
+        withRetry("manifest", () -> {
+            client.putManifest(repository(imageName), tag, MANIFEST_MEDIA_TYPE, manifest);
+            return null;
+        });
+        log.info("Streaming Image Push: pushed {} layers of {}", layers.size(), imageName);
+    }
+
+    /* Each upload opens the tar on its own, the entry streams of a tar cannot be shared */
+    private ImageLayer pushEntry(
+        String repository,
+        File imageTar,
+        String name,
+        long size
+    ) throws IOException, InterruptedException {
+        try (TarFile tar = new TarFile(imageTar)) {
+            for (TarArchiveEntry entry : tar.getEntries()) {
+                if (entry.isFile() && entryName(entry).equals(name)) {
+                    try (InputStream content = tar.getInputStream(entry)) {
+                        return pushLayer(repository, name, size, content);
+                    }
+                }
+            }
+        }
+
+        throw new NoSuchFileException(name);
+    }
+
+    private ImageLayer pushLayer(
+        String repository,
+        String name,
+        long size,
+        InputStream content
+    ) throws IOException, InterruptedException {
+        BufferedInputStream layer = new BufferedInputStream(content);
+        String mediaType = isGzipped(layer) ? LAYER_MEDIA_TYPE + "+gzip" : LAYER_MEDIA_TYPE;
+
+        Matcher blobPath = BLOB_PATH.matcher(name);
+        if (blobPath.matches()) {
+            String digest = "sha256:" + blobPath.group(1);
+            if (client.blobExists(repository, digest)) {
+                log.info("Streaming Image Push: layer {} already in registry", name);
+                return new ImageLayer(name, digest, size, mediaType);
+            }
+        }
+
+        log.info("Streaming Image Push: pushing layer {}...", name);
+        BlobDescriptor blob = client.uploadBlob(repository, layer);
+
+        return new ImageLayer(name, blob.getDigest(), blob.getSize(), mediaType);
+    }
+
+    /* A layer pushed with a previous image, unless the registry has lost it since */
+    private boolean isStored(
+        String repository,
+        ImageLayer known
+    ) throws IOException, InterruptedException {
+        if (known == null || known.getDigest() == null) {
+            return false;
+        }
+
+        return withRetry(known.getPath(), () -> client.blobExists(repository, known.getDigest()));
+    }
+
+    private ImageLayer pushBuffered(
+        String repository,
+        String name,
+        byte[] content
+    ) throws IOException, InterruptedException {
+        boolean gzipped = content.length > 1
+            && (content[0] & 0xff) == 0x1f
+            && (content[1] & 0xff) == 0x8b;
+        String mediaType = gzipped ? LAYER_MEDIA_TYPE + "+gzip" : LAYER_MEDIA_TYPE;
+
+        BlobDescriptor blob = client.uploadBlob(repository, content);
+
+        return new ImageLayer(name, blob.getDigest(), blob.getSize(), mediaType);
+    }
+
+    private <T> T withRetry(
+        String blob,
+        BlobUpload<T> upload
+    ) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return upload.call();
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                long delay = retryBackoff << attempt;
+                log.warn(
+                    "Streaming Image Push: failed to push {} [{}], retrying in {} ms",
+                    blob,
+                    e.getMessage(),
+                    delay
+                );
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /* Waits for an upload, the other ones are cancelled if it failed */
+    private static <T> T await(
+        Future<T> upload,
+        List<Future<?>> pending
+    ) throws IOException, InterruptedException {
+        try {
+            return upload.get();
+        } catch (ExecutionException e) {
+            pending.forEach(other -> other.cancel(true));
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof InterruptedException cause) {
+                throw cause;
+            }
+            throw new IOException("Blob upload failed", e.getCause());
+        } catch (InterruptedException e) {
+            pending.forEach(other -> other.cancel(true));
+            throw e;
+        }
+    }
+
+    private static byte[] read(
+        TarFile tar,
+        Map<String, TarArchiveEntry> entries,
+        String name
+    ) throws IOException {
+        TarArchiveEntry entry = entries.get(name);
+        if (entry == null) {
+            throw new NoSuchFileException(name);
+        }
+
+        try (InputStream content = tar.getInputStream(entry)) {
+            return content.readAllBytes();
+        }
+    }
+
+    private static String repository(String imageName) {
+        int separator = imageName.lastIndexOf(':');
+
+        return separator < 0 ? imageName : imageName.substring(0, separator);
+    }
+
+    private static String entryName(TarArchiveEntry entry) {
+        return entry.getName().startsWith("./") ? entry.getName().substring(2) : entry.getName();
+    }
+
+    private static boolean isGzipped(BufferedInputStream layer) throws IOException {
+        layer.mark(2);
+        boolean gzipped = layer.read() == 0x1f && layer.read() == 0x8b;
+        layer.reset();
+
+        return gzipped;
+    }
+
+    private ObjectNode descriptor(String mediaType, String digest, long size) {
+        ObjectNode descriptor = mapper.createObjectNode();
+        descriptor.put("mediaType", mediaType);
+        descriptor.put("digest", digest);
+        descriptor.put("size", size);
+
+        return descriptor;
+    }
+
+    private synchronized ExecutorService uploadExecutor() {
+        if (uploadExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            uploadExecutor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                String name = "registry-uploader-" + threadCount.incrementAndGet();
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return uploadExecutor;
+    }
+
+    @FunctionalInterface
+    private interface BlobUpload<T> {
+        T call() throws IOException, InterruptedException;
+    }
+}
@@ -3,18 +3,28 @@ package be.cytomine.appengine.handlers.scheduler.impl;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import io.fabric8.kubernetes.api.model.Container;
 import io.fabric8.kubernetes.api.model.ContainerBuilder;
 import io.fabric8.kubernetes.api.model.EnvVarBuilder;
 import io.fabric8.kubernetes.api.model.HostPathVolumeSourceBuilder;
+import io.fabric8.kubernetes.api.model.NFSVolumeSourceBuilder;
 import io.fabric8.kubernetes.api.model.PodBuilder;
 import io.fabric8.kubernetes.api.model.Quantity;
 import io.fabric8.kubernetes.api.model.ResourceRequirements;
 import io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder;
+import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.api.model.VolumeBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
@@ -22,16 +32,27 @@ import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.env.Environment;
 
+import be.cytomine.appengine.dto.handlers.filestorage.Storage;
 import be.cytomine.appengine.dto.handlers.scheduler.Schedule;
+import be.cytomine.appengine.exceptions.FileStorageException;
+import be.cytomine.appengine.exceptions.ProvisioningException;
 import be.cytomine.appengine.exceptions.SchedulingException;
 import be.cytomine.appengine.handlers.SchedulerHandler;
+import be.cytomine.appengine.handlers.StorageHandler;
 import be.cytomine.appengine.handlers.scheduler.impl.utils.PodInformer;
+import be.cytomine.appengine.handlers.storage.impl.FileSystemStorageHandler;
+import be.cytomine.appengine.models.task.Parameter;
+import be.cytomine.appengine.models.task.ParameterType;
 import be.cytomine.appengine.models.task.Run;
 import be.cytomine.appengine.models.task.Task;
+import be.cytomine.appengine.models.task.collection.CollectionType;
 import be.cytomine.appengine.repositories.RunRepository;
+import be.cytomine.appengine.services.TaskProvisioningService;
 import be.cytomine.appengine.states.TaskRunState;
+import be.cytomine.appengine.utils.ArchiveFormat;
 
 @Slf4j
 public class KubernetesScheduler implements SchedulerHandler {
@@ -45,6 +66,14 @@ public class KubernetesScheduler implements SchedulerHandler {
     @Autowired
     private RunRepository runRepository;
 
+    @Autowired
+    private StorageHandler storageHandler;
+
+    // lazy, the provisioning service depends on the scheduler
+    @Lazy
+    @Autowired
+    private TaskProvisioningService taskProvisioningService;
+
     @Value("${app-engine.api_prefix}")
     private String apiPrefix;
 
@@ -63,8 +92,34 @@ public class KubernetesScheduler implements SchedulerHandler {
     @Value("${scheduler.helper-containers-resources.cpu}")
     private String helperContainerCpu;
 
+    @Value("${app-engine.outputs.ingest-mode:staged}")
+    private String outputsIngestMode;
+
+    @Value("${app-engine.outputs.resumable-upload:false}")
+    private boolean resumableUpload;
+
+    @Value("${app-engine.outputs.upload-chunk-size:67108864}")
+    private long uploadChunkSize;
+
+    @Value("${app-engine.outputs.per-parameter-upload:false}")
+    private boolean perParameterUpload;
+
+    @Value("${app-engine.archives.transport:zip}")
+    private String archivesTransport;
+
+    @Value("${scheduler.volumes:host-path}")
+    private String volumes;
+
+    @Value("${scheduler.shared-volume.node-path:}")
+    private String sharedVolumeNodePath;
+
+    @Value("${scheduler.shared-volume.nfs-server:}")
+    private String sharedVolumeNfsServer;
+
     private PodInformer podInformer;
 
+    private ExecutorService ingestionExecutor;
+
     private String baseUrl;
 
     private String baseInputPath;
@@ -108,6 +163,26 @@ public class KubernetesScheduler implements SchedulerHandler {
         this.baseOutputPath = "/tmp/app-engine/task-run-outputs-";
     }
 
+    @PostConstruct
+    private void checkVolumes() throws SchedulingException {
+        if (!isSharedVolumes()) {
+            return;
+        }
+
+        // the task reads and writes the files of the storage as they are
+        if (storageHandler.getClass() != FileSystemStorageHandler.class) {
+            throw new SchedulingException("Shared volumes need the filesystem storage");
+        }
+        if (((FileSystemStorageHandler) storageHandler).isCompression()) {
+            throw new SchedulingException("Shared volumes need the storage compression disabled");
+        }
+        log.info("Scheduler: run storages are shared with the task pods");
+    }
+
+    private boolean isSharedVolumes() {
+        return "shared".equalsIgnoreCase(volumes);
+    }
+
     @Override
     public Schedule schedule(Schedule schedule) throws SchedulingException {
         log.info("Schedule: get Task parameters");
@@ -156,19 +231,26 @@ public class KubernetesScheduler implements SchedulerHandler {
         String url = baseUrl + runId;
         String and = " && ";
 
-        String permissions = "chmod -R 777 " + task.getInputFolder() + " " + task.getOutputFolder();
-        Container permissionContainer = new ContainerBuilder()
+        // shared inputs are the run storage of the app engine, they are left untouched
+        boolean sharedVolumes = isSharedVolumes();
+        String permissions = sharedVolumes
+            ? "chmod -R 777 " + task.getOutputFolder()
+            : "chmod -R 777 " + task.getInputFolder() + " " + task.getOutputFolder();
+        ContainerBuilder permissionContainerBuilder = new ContainerBuilder()
             .withName("permissions")
             .withImage("cytomineuliege/alpine-task-utils:latest")
             .withImagePullPolicy("IfNotPresent")
             .withCommand("/bin/sh", "-c", permissions)
 
-            .withResources(helperContainersResources)
-
-            .addNewVolumeMount()
-            .withName("inputs")
-            .withMountPath(task.getInputFolder())
-            .endVolumeMount()
+            .withResources(helperContainersResources);
+        if (!sharedVolumes) {
+            permissionContainerBuilder
+                .addNewVolumeMount()
+                .withName("inputs")
+                .withMountPath(task.getInputFolder())
+                .endVolumeMount();
+        }
+        Container permissionContainer = permissionContainerBuilder
             .addNewVolumeMount()
             .withName("outputs")
             .withMountPath(task.getOutputFolder())
@@ -178,6 +260,14 @@ public class KubernetesScheduler implements SchedulerHandler {
 
         String fetchInputs = "curl -L -o inputs.zip " + url + "/inputs.zip";
         String unzipInputs = "unzip -o inputs.zip -d " + task.getInputFolder();
+        // a tar is extracted as it is downloaded, without touching the pod disk
+        ArchiveFormat transport = ArchiveFormat.fromExtension(archivesTransport);
+        if (transport.isTar()) {
+            fetchInputs = "set -o pipefail";
+            unzipInputs = "curl -sfL " + url + "/inputs." + transport.getExtension() + " | ";
+            unzipInputs += transport == ArchiveFormat.TAR_ZSTD ? "zstd -dc | " : "";
+            unzipInputs += "tar -x -C " + task.getInputFolder();
+        }
 
         Container inputContainer = new ContainerBuilder()
             .withName("inputs-provisioning")
@@ -208,6 +298,7 @@ public class KubernetesScheduler implements SchedulerHandler {
             .addNewVolumeMount()
             .withName("inputs")
             .withMountPath(task.getInputFolder())
+            .withReadOnly(sharedVolumes)
             .endVolumeMount()
             .addNewVolumeMount()
             .withName("outputs")
@@ -216,9 +307,35 @@ public class KubernetesScheduler implements SchedulerHandler {
 
             .build();
 
-        String sendOutputs = "curl -X POST -F 'outputs=@outputs.zip' ";
+        // a pipelined ingestion unzips the raw archive while it is uploaded
+        String sendOutputs = "pipelined".equalsIgnoreCase(outputsIngestMode)
+            ? "curl -X POST -H 'Content-Type: application/zip' --data-binary @outputs.zip "
+            : "curl -X POST -F 'outputs=@outputs.zip' ";
         sendOutputs += url + "/" + runSecret + "/outputs.zip";
+        if (resumableUpload) {
+            sendOutputs = sendOutputsInChunks(url + "/" + runSecret + "/outputs-uploads");
+        }
         String zipOutputs = "cd " + task.getOutputFolder() + and + " zip -r outputs.zip .";
+        if (transport.isTar() && !resumableUpload) {
+            zipOutputs = "cd " + task.getOutputFolder();
+            sendOutputs = "(set -o pipefail; tar -c . | ";
+            sendOutputs += transport == ArchiveFormat.TAR_ZSTD ? "zstd -c | " : "";
+            sendOutputs += "curl -sf -X POST -H 'Content-Type: " + transport.getMediaType() + "' ";
+            sendOutputs += "-T - " + url + "/" + runSecret + "/outputs." + transport.getExtension();
+            sendOutputs += ")";
+        }
+        // the outputs of a task without collection output are sent as they are, in parallel
+        boolean hasCollectionOutput = task.getParameters()
+            .stream()
+            .filter(parameter -> parameter.getParameterType().equals(ParameterType.OUTPUT))
+            .anyMatch(parameter -> parameter.getType() instanceof CollectionType);
+        if (perParameterUpload && !hasCollectionOutput) {
+            zipOutputs = "cd " + task.getOutputFolder();
+            sendOutputs = sendOutputsPerParameter(
+                task,
+                url + "/" + runSecret + "/output-provisions"
+            );
+        }
         String wait = "export TOKEN=$(cat /var/run/secrets/kubernetes.io/serviceaccount/token); ";
         wait += "while ! curl -vk -H \"Authorization: Bearer $TOKEN\" ";
         wait += "https://${KUBERNETES_SERVICE_HOST}:${KUBERNETES_SERVICE_PORT_HTTPS}/api/v1/namespaces/default/pods/${POD_NAME}/status ";
@@ -250,6 +367,36 @@ public class KubernetesScheduler implements SchedulerHandler {
 
             .build();
 
+        List<Container> initContainers = new ArrayList<>(List.of(permissionContainer));
+        List<Container> containers = new ArrayList<>(List.of(taskContainer));
+        List<Volume> podVolumes;
+        if (sharedVolumes) {
+            // the task works on the run storages, its outputs are ingested once it terminates
+            labels.put("volumes", "shared");
+            podVolumes = List.of(
+                sharedVolume("inputs", new Storage("task-run-inputs-" + runId), true),
+                sharedVolume("outputs", new Storage("task-run-outputs-" + runId), false)
+            );
+        } else {
+            // Pre-task for inputs provisioning
+            initContainers.add(inputContainer);
+            // Post Task for outputs sending
+            containers.add(outputContainer);
+            // Mount volumes from the scheduler file system
+            podVolumes = List.of(
+                new VolumeBuilder()
+                    .withName("inputs")
+                    .withHostPath(
+                        new HostPathVolumeSourceBuilder().withPath(baseInputPath + runId).build())
+                    .build(),
+                new VolumeBuilder()
+                    .withName("outputs")
+                    .withHostPath(
+                        new HostPathVolumeSourceBuilder().withPath(baseOutputPath + runId).build())
+                    .build()
+            );
+        }
+
         // Defining the pod image to run
         PodBuilder podBuilder = new PodBuilder()
             .withNewMetadata()
@@ -261,33 +408,9 @@ public class KubernetesScheduler implements SchedulerHandler {
 
             .withHostNetwork(true)
 
-            .addNewInitContainerLike(permissionContainer)
-            .endInitContainer()
-
-            // Pre-task for inputs provisioning
-            .addNewInitContainerLike(inputContainer)
-            .endInitContainer()
-
-            // Task container
-            .addNewContainerLike(taskContainer)
-            .endContainer()
-
-            // Post Task for outputs sending
-            .addNewContainerLike(outputContainer)
-            .endContainer()
-
-            // Mount volumes from the scheduler file system
-            .addToVolumes(new VolumeBuilder()
-            .withName("inputs")
-            .withHostPath(
-                new HostPathVolumeSourceBuilder().withPath(baseInputPath + runId).build())
-            .build())
-            .addToVolumes(new VolumeBuilder()
-            .withName("outputs")
-            .withHostPath(
-                new HostPathVolumeSourceBuilder().withPath(baseOutputPath + runId)
-            .build())
-            .build())
+            .withInitContainers(initContainers)
+            .withContainers(containers)
+            .withVolumes(podVolumes)
 
             // Never restart the pod
             .withRestartPolicy("Never")
@@ -335,6 +458,7 @@ public class KubernetesScheduler implements SchedulerHandler {
         }
 
         log.info("Monitor: add informer to the cluster");
+        podInformer = new PodInformer(runRepository, this::ingestSharedOutputs);
         kubernetesClient
             .pods()
             .inNamespace("default")
@@ -342,4 +466,121 @@ public class KubernetesScheduler implements SchedulerHandler {
             .run();
         log.info("Monitor: informer added");
     }
+
+    /**
+     * Mounts a run storage of the app engine into the task pod
+     *
+     * <p>The storage is found at the same place below the node path as below the storage base
+     * path, on the node itself or on the NFS server when one is set.</p>
+     */
+    private Volume sharedVolume(
+        String name,
+        Storage storage,
+        boolean readOnly
+    ) throws SchedulingException {
+        FileSystemStorageHandler fileSystemStorage = (FileSystemStorageHandler) storageHandler;
+        try {
+            if (!storageHandler.checkStorageExists(storage)) {
+                storageHandler.createStorage(storage);
+            }
+        } catch (FileStorageException e) {
+            throw new SchedulingException("Failed to create the storage " + storage.getIdStorage());
+        }
+
+        Path basePath = Paths.get(fileSystemStorage.getBasePath()).toAbsolutePath();
+        Path nodeBasePath = sharedVolumeNodePath.isBlank()
+            ? basePath
+            : Paths.get(sharedVolumeNodePath);
+        String nodePath = nodeBasePath
+            .resolve(basePath.relativize(fileSystemStorage.getStoragePath(storage)))
+            .toString();
+
+        VolumeBuilder volume = new VolumeBuilder().withName(name);
+        if (sharedVolumeNfsServer.isBlank()) {
+            volume.withHostPath(new HostPathVolumeSourceBuilder()
+                .withPath(nodePath)
+                .withType("Directory")
+                .build());
+        } else {
+            volume.withNfs(new NFSVolumeSourceBuilder()
+                .withServer(sharedVolumeNfsServer)
+                .withPath(nodePath)
+                .withReadOnly(readOnly)
+                .build());
+        }
+
+        return volume.build();
+    }
+
+    /**
+     * Ingests the outputs of a pod with shared volumes, already in the run storage
+     *
+     * <p>The ingestion runs away from the informer thread, which goes on with the next pod
+     * events meanwhile.</p>
+     */
+    private void ingestSharedOutputs(String runId) {
+        ingestionExecutor().execute(() -> {
+            try {
+                taskProvisioningService.ingestOutputsInPlace(runId);
+            } catch (ProvisioningException | RuntimeException e) {
+                log.error("Monitor: failed to ingest the outputs of run {}", runId);
+            }
+        });
+    }
+
+    private synchronized ExecutorService ingestionExecutor() {
+        if (ingestionExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ingestionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                String name = "outputs-ingestion-" + threadCount.incrementAndGet();
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return ingestionExecutor;
+    }
+
+    /* Sends the archive in chunks, resuming from the offset reached after a failed chunk */
+    private String sendOutputsInChunks(String uploadsUrl) {
+        String curl = "curl -sf --retry 5 --retry-all-errors ";
+        // a subshell, so that its exit status is the one of the whole upload
+        String script = "(size=$(stat -c %s outputs.zip); ";
+        script += "upload=$(" + curl + "-X POST -H \"Upload-Length: $size\" " + uploadsUrl;
+        script += " | jq -r .upload_id) && [ -n \"$upload\" ] || exit 1; ";
+        script += "offset=0; failures=0; ";
+        script += "while [ $offset -lt $size ]; do ";
+        script += "tail -c +$((offset + 1)) outputs.zip | head -c " + uploadChunkSize;
+        script += " > /tmp/chunk; ";
+        script += "sum=$(sha256sum /tmp/chunk | cut -d ' ' -f 1); ";
+        script += "if " + curl + "-o /dev/null -X PATCH -H \"Upload-Offset: $offset\" ";
+        script += "-H \"Upload-Checksum: sha256 $sum\" ";
+        script += "-H 'Content-Type: application/offset+octet-stream' ";
+        script += "--data-binary @/tmp/chunk " + uploadsUrl + "/$upload; then failures=0; ";
+        script += "else failures=$((failures + 1)); [ $failures -lt 10 ] || exit 1; sleep 5; fi; ";
+        script += "next=$(" + curl + uploadsUrl + "/$upload | jq -r .offset); ";
+        script += "[ -n \"$next\" ] && offset=$next; ";
+        script += "done; rm -f /tmp/chunk; ";
+        script += curl + "-X POST " + uploadsUrl + "/$upload/complete)";
+
+        return script;
+    }
+
+    /* Sends each declared output in its own request, all at once, failing if one is missing */
+    private String sendOutputsPerParameter(Task task, String provisionsUrl) {
+        String outputs = task.getParameters()
+            .stream()
+            .filter(parameter -> parameter.getParameterType().equals(ParameterType.OUTPUT))
+            .map(Parameter::getName)
+            .collect(Collectors.joining(" "));
+        String script = "(status=0; pids=; for output in " + outputs + "; do ";
+        script += "[ -f \"$output\" ] || { status=1; continue; }; ";
+        script += "curl -sf --retry 5 --retry-all-errors -o /dev/null ";
+        script += "-H 'Content-Type: application/octet-stream' ";
+        script += "-T \"$output\" " + provisionsUrl + "/\"$output\" & pids=\"$pids $!\"; done; ";
+        script += "for pid in $pids; do wait $pid || status=1; done; exit $status)";
+
+        return script;
+    }
 }
@@ -6,6 +6,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
@@ -37,6 +38,13 @@ public class PodInformer implements ResourceEventHandler<Pod> {
 
     private final RunRepository runRepository;
 
+    /* Ingests the outputs of a run whose pod wrote them straight to the run storage */
+    private final Consumer<String> sharedOutputsIngestion;
+
+    private static boolean hasSharedVolumes(Pod pod) {
+        return "shared".equals(pod.getMetadata().getLabels().get("volumes"));
+    }
+
     private Run getRun(Pod pod) {
         Map<String, String> labels = pod.getMetadata().getLabels();
 
@@ -106,6 +114,12 @@ public class PodInformer implements ResourceEventHandler<Pod> {
                     .getOrDefault(newPod.getStatus().getPhase(), TaskRunState.FAILED));
                 run = runRepository.saveAndFlush(run);
                 log.info("Pod Informer: update Run {} to {}", run.getId(), run.getState());
+
+                // no helper container sends the outputs of a pod with shared volumes
+                boolean isSucceeded = newPod.getStatus().getPhase().equals("Succeeded");
+                if (isSucceeded && hasSharedVolumes(newPod)) {
+                    sharedOutputsIngestion.accept(run.getId().toString());
+                }
                 return;
             } catch (ObjectOptimisticLockingFailureException ex) {
                 attempts++;
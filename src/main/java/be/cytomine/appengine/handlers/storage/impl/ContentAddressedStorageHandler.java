@@ -0,0 +1,257 @@
+package be.cytomine.appengine.handlers.storage.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import be.cytomine.appengine.dto.handlers.filestorage.Storage;
+import be.cytomine.appengine.exceptions.FileStorageException;
+import be.cytomine.appengine.handlers.StorageData;
+import be.cytomine.appengine.handlers.StorageDataEntry;
+import be.cytomine.appengine.handlers.StorageDataType;
+
+/**
+ * File system storage keeping a single copy of every distinct content.
+ *
+ * <p>Each file entry is hashed with SHA-256 and stored once as a blob under
+ * {@code <base-path>/.blobs/<first two digits>/<digest>}. Storages only hold hard links to
+ * the blobs, so the link count of a blob is its reference count: a blob linked by no storage
+ * anymore is removed by the garbage collection run after a deletion.</p>
+ *
+ * <p>In move ingest mode, the staged file of a new content becomes the blob itself. The link
+ * ingest mode does not apply: linking a staged file would make it a reference to the blob.</p>
+ */
+@Slf4j
+@NoArgsConstructor
+public class ContentAddressedStorageHandler extends FileSystemStorageHandler {
+
+    private static final String BLOBS_DIRECTORY = ".blobs";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /* Linking takes the read lock, the garbage collection the write lock */
+    private final ReadWriteLock blobsLock = new ReentrantReadWriteLock();
+
+    public ContentAddressedStorageHandler(String basePath) {
+        super(basePath);
+    }
+
+    @Override
+    protected void writeFile(StorageDataEntry entry, Path target) throws IOException {
+        Path source = entry.getData().toPath();
+        String digest = digest(source);
+
+        blobsLock.readLock().lock();
+        try {
+            Path blob = storeBlob(source, digest, isMoveIngest());
+            if (isMoveIngest()) {
+                // the staged file is consumed whether its content was already stored or not
+                Files.deleteIfExists(source);
+                entry.setData(target.toFile());
+            }
+            linkBlob(blob, target);
+        } finally {
+            blobsLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void commitFile(Path staged, Path target) throws IOException {
+        String digest = digest(staged);
+
+        blobsLock.readLock().lock();
+        try {
+            linkBlob(storeBlob(staged, digest, true), target);
+        } finally {
+            blobsLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteStorage(Storage storage) throws FileStorageException {
+        boolean shared = hasSharedFiles(resolve(storage.getIdStorage()));
+        super.deleteStorage(storage);
+        if (shared && !isTombstoneDelete()) {
+            collectGarbage();
+        }
+    }
+
+    @Override
+    public void deleteStorageData(StorageData storageData) throws FileStorageException {
+        StorageDataEntry entry = storageData.peek();
+        Path path = resolve(entry.getStorageId(), entry.getName());
+        boolean shared = hasSharedFiles(path);
+        if (isTombstoneDelete()) {
+            // the blobs are collected once swept, a shared file goes through a tombstone too
+            boolean isFile = entry.getStorageDataType() == StorageDataType.FILE;
+            if (!shared || !isFile || !moveToTombstone(path)) {
+                super.deleteStorageData(storageData);
+            }
+            return;
+        }
+
+        super.deleteStorageData(storageData);
+        if (shared) {
+            collectGarbage();
+        }
+    }
+
+    @Override
+    protected void onTombstonesSwept() {
+        try {
+            collectGarbage();
+        } catch (FileStorageException e) {
+            log.error("Storage: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the blobs that are not referenced by any storage anymore
+     *
+     * @return the number of removed blobs
+     * @throws FileStorageException if the blobs cannot be listed
+     */
+    public int collectGarbage() throws FileStorageException {
+        Path blobs = blobsRoot();
+        if (!Files.exists(blobs)) {
+            return 0;
+        }
+
+        log.info("Storage: collecting unreferenced blobs...");
+        blobsLock.writeLock().lock();
+        try (Stream<Path> paths = Files.walk(blobs, 2)) {
+            List<Path> unreferenced = paths
+                .filter(Files::isRegularFile)
+                .filter(path -> !path.getParent().endsWith(STAGING_DIRECTORY))
+                .filter(path -> linkCount(path) == 1)
+                .toList();
+
+            int removed = 0;
+            for (Path blob : unreferenced) {
+                if (Files.deleteIfExists(blob)) {
+                    removed++;
+                }
+            }
+            log.info("Storage: removed {} unreferenced blobs", removed);
+
+            return removed;
+        } catch (IOException e) {
+            String error = "Failed to collect unreferenced blobs: " + e.getMessage();
+            throw new FileStorageException(error);
+        } finally {
+            blobsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the location of the blob holding the given content
+     *
+     * @param digest the hexadecimal SHA-256 digest of the content
+     * @return the path of the blob, which may not exist
+     */
+    public Path blobPath(String digest) {
+        return blobsRoot().resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private Path blobsRoot() {
+        return Paths.get(getBasePath(), BLOBS_DIRECTORY);
+    }
+
+    private void linkBlob(Path blob, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, blob);
+        } catch (UnsupportedOperationException | IOException e) {
+            log.warn("Storage: cannot link blob {}, copying it instead", blob.getFileName());
+            Files.copy(blob, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path storeBlob(Path source, String digest, boolean consume) throws IOException {
+        Path blob = blobPath(digest);
+        if (Files.exists(blob)) {
+            return blob;
+        }
+
+        Files.createDirectories(blob.getParent());
+        Path staging = blobsRoot().resolve(STAGING_DIRECTORY);
+        Files.createDirectories(staging);
+
+        Path temporary = staging.resolve(UUID.randomUUID().toString());
+        try {
+            if (!consume || !moveFile(source, temporary)) {
+                Files.copy(source, temporary);
+            }
+            try {
+                Files.move(temporary, blob, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, blob);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // another run stored the same content in the meantime
+            log.debug("Storage: blob {} stored concurrently", digest);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        return blob;
+    }
+
+    private static String digest(Path source) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source), messageDigest)) {
+            while (in.read(buffer) != -1) {
+                // the digest is updated while reading
+            }
+        }
+
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+
+    private static boolean hasSharedFiles(Path root) throws FileStorageException {
+        if (!Files.exists(root)) {
+            return false;
+        }
+
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile).anyMatch(path -> linkCount(path) > 1);
+        } catch (IOException e) {
+            throw new FileStorageException("Failed to inspect " + root + ": " + e.getMessage());
+        }
+    }
+
+    private static int linkCount(Path path) {
+        try {
+            return (int) Files.getAttribute(path, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            // without link counts, a blob can never be proven unreferenced
+            return Integer.MAX_VALUE;
+        }
+    }
+}
@@ -1,19 +1,54 @@
 package be.cytomine.appengine.handlers.storage.impl;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
-import lombok.AllArgsConstructor;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 import be.cytomine.appengine.dto.handlers.filestorage.Storage;
@@ -22,15 +57,97 @@ import be.cytomine.appengine.handlers.StorageData;
 import be.cytomine.appengine.handlers.StorageDataEntry;
 import be.cytomine.appengine.handlers.StorageDataType;
 import be.cytomine.appengine.handlers.StorageHandler;
+import be.cytomine.appengine.handlers.storage.impl.utils.StorageLayoutMigrator;
+import be.cytomine.appengine.handlers.storage.impl.utils.TombstoneSweeper;
+import be.cytomine.appengine.repositories.RunRepository;
+import be.cytomine.appengine.states.TaskRunState;
+import be.cytomine.appengine.utils.FileHelper;
+import be.cytomine.appengine.utils.GzipHelper;
 
+@Slf4j
 @Data
-@AllArgsConstructor
 @NoArgsConstructor
 public class FileSystemStorageHandler implements StorageHandler {
 
+    protected static final String STAGING_DIRECTORY = ".staging";
+
+    private static final String TOMBSTONES_DIRECTORY = ".tombstones";
+
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    /* the inputs, outputs and archives storages of a run, named after its id */
+    private static final Pattern RUN_STORAGE = Pattern.compile(
+        "task-run-[a-z]+-([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})"
+    );
+
+    private static final Set<TaskRunState> FINAL_RUN_STATES = EnumSet.of(
+        TaskRunState.FINISHED,
+        TaskRunState.FAILED
+    );
+
     @Value("${storage.base-path}")
     private String basePath;
 
+    @Value("${storage.ingest-mode:copy}")
+    private String ingestMode = "copy";
+
+    @Value("${storage.write.mode:sequential}")
+    private String writeMode = "sequential";
+
+    @Value("${storage.write.parallelism:4}")
+    private int writeParallelism = 4;
+
+    @Value("${storage.delete.mode:sync}")
+    private String deleteMode = "sync";
+
+    @Value("${storage.delete.sweep-delay:30s}")
+    private Duration sweepDelay = Duration.ofSeconds(30);
+
+    @Value("${storage.delete.max-files-per-second:1000}")
+    private int sweepMaxFilesPerSecond = 1000;
+
+    @Value("${storage.layout:flat}")
+    private String layout = "flat";
+
+    @Value("${storage.layout-migration:false}")
+    private boolean layoutMigration = false;
+
+    @Value("${storage.layout-migration-retry-delay:5m}")
+    private Duration layoutMigrationRetryDelay = Duration.ofMinutes(5);
+
+    @Value("${storage.compression.enabled:false}")
+    private boolean compression = false;
+
+    @Value("${storage.compression.min-size:4096}")
+    private long compressionMinSize = 4096;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile boolean flatStoragesRemain = true;
+
+    // tells whether the run of a storage still writes to it, none outside of the application
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @Autowired(required = false)
+    private transient RunRepository runRepository;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ExecutorService writeExecutor;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ScheduledExecutorService sweeper;
+
+    public FileSystemStorageHandler(String basePath) {
+        this.basePath = basePath;
+    }
+
+    public FileSystemStorageHandler(String basePath, String ingestMode) {
+        this.basePath = basePath;
+        this.ingestMode = ingestMode;
+    }
+
     public void saveStorageData(
         Storage storage,
         StorageData storageData
@@ -39,38 +156,380 @@ public class FileSystemStorageHandler implements StorageHandler {
             return;
         }
 
-        for (StorageDataEntry current : storageData.getEntryList()) {
-            String filename = current.getName();
+        if (writeMode.equalsIgnoreCase("parallel") && storageData.size() > 1) {
+            saveStorageDataInParallel(storage, storageData);
+            return;
+        }
+
+        for (StorageDataEntry current : storageData.entries()) {
             String storageId = storage.getIdStorage();
             // process the node here
             if (current.getStorageDataType() == StorageDataType.FILE) {
-                try {
-                    Path filePath = Paths.get(basePath, storageId, filename);
-                    Files.createDirectories(filePath.getParent());
+                Path filePath = resolve(storageId, current.getName());
+                createDirectories(storageId, filePath.getParent(), new ArrayList<>());
+                writeEntry(storageId, current, filePath);
+            }
 
-                    try (InputStream inputStream = new FileInputStream(current.getData())) {
-                        Files.copy(inputStream, filePath, StandardCopyOption.REPLACE_EXISTING);
-                    }
-                } catch (IOException e) {
-                    String error = "Failed to create file " + filename;
-                    error += " in storage " + storageId + ": " + e.getMessage();
-                    throw new FileStorageException(error);
+            if (current.getStorageDataType() == StorageDataType.DIRECTORY) {
+                Path directoryPath = resolve(storageId, current.getName());
+                createDirectories(storageId, directoryPath, new ArrayList<>());
+            }
+        }
+    }
+
+    /**
+     * Saves the entries with a bounded number of concurrent writes
+     *
+     * <p>All the directories are created first, so that the concurrent file writes never race
+     * on their parents. If any write fails, the files and directories created by this call are
+     * removed before the error is reported.</p>
+     */
+    private void saveStorageDataInParallel(
+        Storage storage,
+        StorageData storageData
+    ) throws FileStorageException {
+        String storageId = storage.getIdStorage();
+        List<Path> createdDirectories = new ArrayList<>();
+        List<Path> writtenFiles = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> writes = new ArrayList<>();
+
+        try {
+            Set<Path> directories = new LinkedHashSet<>();
+            for (StorageDataEntry current : storageData.entries()) {
+                Path path = resolve(storageId, current.getName());
+                if (current.getStorageDataType() == StorageDataType.DIRECTORY) {
+                    directories.add(path);
                 }
+                if (current.getStorageDataType() == StorageDataType.FILE) {
+                    directories.add(path.getParent());
+                }
+            }
+            for (Path directory : directories) {
+                createDirectories(storageId, directory, createdDirectories);
             }
 
-            if (current.getStorageDataType() == StorageDataType.DIRECTORY) {
-                Storage modifiedStorage = new Storage(storageId + current.getName());
-                createStorage(modifiedStorage);
+            for (StorageDataEntry current : storageData.entries()) {
+                if (current.getStorageDataType() != StorageDataType.FILE) {
+                    continue;
+                }
+
+                Path filePath = resolve(storageId, current.getName());
+                writes.add(writeExecutor().submit(() -> {
+                    writeEntry(storageId, current, filePath);
+                    writtenFiles.add(filePath);
+                    return null;
+                }));
+            }
+
+            awaitAll(writes);
+        } catch (FileStorageException e) {
+            log.info("Storage: parallel write failed, removing what was written...");
+            writes.forEach(write -> write.cancel(false));
+            awaitCompletion(writes);
+            rollback(writtenFiles, createdDirectories);
+            throw e;
+        }
+    }
+
+    private void writeEntry(
+        String storageId,
+        StorageDataEntry entry,
+        Path filePath
+    ) throws FileStorageException {
+        try {
+            if (shouldCompress(entry)) {
+                writeCompressedFile(entry, filePath);
+            } else {
+                writeFile(entry, filePath);
+            }
+        } catch (IOException e) {
+            String error = "Failed to create file " + entry.getName();
+            error += " in storage " + storageId + ": " + e.getMessage();
+            throw new FileStorageException(error);
+        }
+    }
+
+    private boolean shouldCompress(StorageDataEntry entry) {
+        return compression
+            && entry.isCompressible()
+            && entry.getData().length() >= compressionMinSize;
+    }
+
+    private void writeCompressedFile(StorageDataEntry entry, Path target) throws IOException {
+        writeCompressedFile(entry.getData().toPath(), target);
+    }
+
+    /* Compresses a text file into the staging area, then commits it to the storage */
+    private void writeCompressedFile(Path source, Path target) throws IOException {
+        Path staging = Paths.get(basePath, STAGING_DIRECTORY);
+        Files.createDirectories(staging);
+        Path staged = Files.createTempFile(staging, null, null);
+        try {
+            GzipHelper.compress(source, staged);
+            commitFile(staged, target);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    /* Creates a directory and its missing parents, recording the ones it created */
+    private static void createDirectories(
+        String storageId,
+        Path directory,
+        List<Path> created
+    ) throws FileStorageException {
+        Deque<Path> missing = new ArrayDeque<>();
+        for (Path path = directory; path != null && !Files.exists(path); path = path.getParent()) {
+            missing.push(path);
+        }
+
+        try {
+            Files.createDirectories(directory);
+            created.addAll(missing);
+        } catch (IOException e) {
+            String error = "Failed to create storage " + storageId + ": " + e.getMessage();
+            throw new FileStorageException(error);
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> writes) throws FileStorageException {
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FileStorageException("Interrupted while writing to storage");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof FileStorageException cause) {
+                    throw cause;
+                }
+                throw new FileStorageException("Failed to write to storage: " + e.getCause());
+            }
+        }
+    }
+
+    private static void awaitCompletion(List<Future<?>> writes) {
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (CancellationException | ExecutionException ignored) {
+                // the failure is reported by the caller
             }
         }
     }
 
+    private static void rollback(List<Path> writtenFiles, List<Path> createdDirectories) {
+        List<Path> created = new ArrayList<>(writtenFiles);
+        Collections.reverse(createdDirectories);
+        created.addAll(createdDirectories);
+
+        for (Path path : created) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Storage: failed to remove {} after a failed write", path);
+            }
+        }
+    }
+
+    private synchronized ExecutorService writeExecutor() {
+        if (writeExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            writeExecutor = Executors.newFixedThreadPool(writeParallelism, runnable -> {
+                String name = "storage-writer-" + threadCount.incrementAndGet();
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return writeExecutor;
+    }
+
+    /**
+     * Resolves a path inside the storage root
+     *
+     * <p>The first segment of the storage identifier names the storage directory, found either
+     * directly under the base path or under its hash prefix in the sharded layout.</p>
+     *
+     * @param storageId the storage identifier
+     * @param more the path segments inside the storage
+     * @return the absolute path of the storage or of the entry inside it
+     */
+    protected Path resolve(String storageId, String... more) {
+        int separator = storageId.indexOf('/');
+        String storageName = separator < 0 ? storageId : storageId.substring(0, separator);
+
+        String[] segments = new String[more.length + 1];
+        segments[0] = separator < 0 ? "" : storageId.substring(separator + 1);
+        System.arraycopy(more, 0, segments, 1, more.length);
+        return Paths.get(locate(storageName).toString(), segments);
+    }
+
+    /* Finds a storage in either layout, new storages going to the configured one */
+    private Path locate(String storageName) {
+        Path flat = Paths.get(basePath, storageName);
+        if (!isShardedLayout()) {
+            if (Files.exists(flat)) {
+                return flat;
+            }
+            Path sharded = shardedPath(storageName);
+            return Files.exists(sharded) ? sharded : flat;
+        }
+
+        Path sharded = shardedPath(storageName);
+        if (flatStoragesRemain && !Files.exists(sharded) && Files.exists(flat)) {
+            return flat;
+        }
+        return sharded;
+    }
+
+    /**
+     * Returns the location of a storage, in whichever layout it is
+     *
+     * @param storage the storage
+     * @return the absolute path of the storage directory
+     */
+    public Path getStoragePath(Storage storage) {
+        return resolve(storage.getIdStorage()).toAbsolutePath();
+    }
+
+    /**
+     * Returns the location of a storage in the sharded layout
+     *
+     * @param storageName the name of the storage directory
+     * @return the storage directory below two levels of hash prefix directories
+     */
+    public Path shardedPath(String storageName) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(storageName.getBytes(StandardCharsets.UTF_8));
+        String prefix = HexFormat.of().formatHex(hash, 0, 2);
+
+        return Paths.get(basePath, prefix.substring(0, 2), prefix.substring(2, 4), storageName);
+    }
+
+    protected boolean isShardedLayout() {
+        return layout.equalsIgnoreCase("sharded");
+    }
+
+    /**
+     * Moves the storages of the flat layout to the sharded layout, while serving requests
+     *
+     * @return the number of storages that could not be moved
+     * @throws FileStorageException if the base path cannot be listed
+     */
+    public int migrateLayout() throws FileStorageException {
+        StorageLayoutMigrator migrator = new StorageLayoutMigrator(
+            Paths.get(basePath),
+            this::shardedPath,
+            this::isSettled
+        );
+
+        try {
+            int remaining = migrator.migrate();
+            if (remaining == 0 && isShardedLayout()) {
+                flatStoragesRemain = false;
+            }
+            return remaining;
+        } catch (IOException e) {
+            throw new FileStorageException("Failed to migrate storage layout: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells whether a storage is no longer written to and can be moved
+     *
+     * <p>The storages of a run are written to until the run reaches a final state, by the app
+     * engine and by the task itself on a shared volume. The other storages are only written to
+     * when they are created.</p>
+     *
+     * @param storageName the name of the storage directory
+     * @return true if the storage can be moved
+     */
+    protected boolean isSettled(String storageName) {
+        Matcher runStorage = RUN_STORAGE.matcher(storageName);
+        if (runRepository == null || !runStorage.matches()) {
+            return true;
+        }
+
+        return runRepository
+            .findById(UUID.fromString(runStorage.group(1)))
+            .map(run -> FINAL_RUN_STATES.contains(run.getState()))
+            .orElse(true);
+    }
+
+    /**
+     * Writes the content of a file entry to its location in the storage
+     *
+     * <p>Depending on the ingest mode, the staged file is moved or hard-linked into the storage
+     * and only copied when this is not possible, e.g. when it is on another file system.
+     * A moved entry is updated to point to its new location.</p>
+     *
+     * @param entry the entry holding the source file
+     * @param target the location of the entry in the storage
+     * @throws IOException if the content cannot be written
+     */
+    protected void writeFile(StorageDataEntry entry, Path target) throws IOException {
+        Path source = entry.getData().toPath();
+        if (isMoveIngest() && moveFile(source, target)) {
+            entry.setData(target.toFile());
+            return;
+        }
+        if (ingestMode.equalsIgnoreCase("link") && linkFile(source, target)) {
+            return;
+        }
+
+        try (InputStream inputStream = new FileInputStream(entry.getData())) {
+            Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    protected boolean isMoveIngest() {
+        return ingestMode.equalsIgnoreCase("move");
+    }
+
+    /**
+     * Atomically moves a file, which only succeeds within the same file system
+     *
+     * @param source the file to move
+     * @param target the destination of the file
+     * @return true if the file was moved, false if it must be copied instead
+     */
+    protected static boolean moveFile(Path source, Path target) {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            log.debug("Storage: cannot move {} into the storage: {}", source, e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean linkFile(Path source, Path target) {
+        try {
+            Files.deleteIfExists(target);
+            Files.createLink(target, source);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            log.debug("Storage: cannot link {} into the storage: {}", source, e.getMessage());
+            return false;
+        }
+    }
+
     @Override
     public void createStorage(Storage storage) throws FileStorageException {
         String storageId = storage.getIdStorage();
 
         try {
-            Path path = Paths.get(basePath, storageId);
+            Path path = resolve(storageId);
             Files.createDirectories(path);
         } catch (IOException e) {
             String error = "Failed to create storage " + storageId + ": " + e.getMessage();
@@ -82,24 +541,133 @@ public class FileSystemStorageHandler implements StorageHandler {
     public void deleteStorage(Storage storage) throws FileStorageException {
         String storageId = storage.getIdStorage();
 
-        try {
-            Path path = Paths.get(basePath, storageId);
-            Files.walk(path).sorted(Comparator.reverseOrder()).map(Path::toFile)
-                    .forEach(File::delete);
+        Path path = resolve(storageId);
+        if (deleteMode.equalsIgnoreCase("tombstone") && moveToTombstone(path)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            long failed = paths
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .filter(file -> !file.delete())
+                .count();
+            if (failed > 0) {
+                log.warn("Storage: failed to delete {} entries of storage {}", failed, storageId);
+                Metrics.counter("appengine.storage.delete.failures").increment(failed);
+            }
         } catch (IOException e) {
             String error = "Failed to delete storage " + storageId + ": " + e.getMessage();
             throw new FileStorageException(error);
         }
     }
 
+    /**
+     * Renames a storage or a file to a tombstone that the sweeper deletes in the background
+     *
+     * @param path the root of the storage or the file
+     * @return true if the path was renamed, false if it must be deleted right away
+     */
+    protected boolean moveToTombstone(Path path) {
+        try {
+            Path tombstones = Paths.get(basePath, TOMBSTONES_DIRECTORY);
+            Files.createDirectories(tombstones);
+            Path tombstone = tombstones.resolve(UUID.randomUUID().toString());
+            Files.move(path, tombstone, StandardCopyOption.ATOMIC_MOVE);
+            startSweeper();
+            return true;
+        } catch (IOException e) {
+            log.debug("Storage: cannot move {} to a tombstone: {}", path, e.getMessage());
+            return false;
+        }
+    }
+
+    protected boolean isTombstoneDelete() {
+        return deleteMode.equalsIgnoreCase("tombstone");
+    }
+
+    /**
+     * Called by the sweeper after it deleted tombstones
+     */
+    protected void onTombstonesSwept() {}
+
+    @PostConstruct
+    public void init() {
+        if (isTombstoneDelete()) {
+            // sweep the tombstones left by a previous instance
+            startSweeper();
+        }
+
+        if (isShardedLayout() && layoutMigration) {
+            Thread migration = new Thread(() -> {
+                try {
+                    // the storages of the runs still going are moved once they are over
+                    while (migrateLayout() > 0) {
+                        log.info(
+                            "Storage: flat storages remain, migrating again in {}",
+                            layoutMigrationRetryDelay
+                        );
+                        Thread.sleep(layoutMigrationRetryDelay.toMillis());
+                    }
+                } catch (FileStorageException e) {
+                    log.error("Storage: {}", e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "storage-layout-migration");
+            migration.setDaemon(true);
+            migration.start();
+        }
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(
+            new TombstoneSweeper(
+                Paths.get(basePath, TOMBSTONES_DIRECTORY),
+                sweepMaxFilesPerSecond,
+                this::onTombstonesSwept
+            ),
+            0,
+            sweepDelay.toMillis(),
+            TimeUnit.MILLISECONDS
+        );
+    }
+
     @Override
     public boolean checkStorageExists(Storage storage) throws FileStorageException {
-        return Files.exists(Paths.get(basePath, storage.getIdStorage()));
+        return Files.exists(resolve(storage.getIdStorage()));
     }
 
     @Override
     public boolean checkStorageExists(String idStorage) throws FileStorageException {
-        return Files.exists(Paths.get(basePath, idStorage));
+        return Files.exists(resolve(idStorage));
+    }
+
+    @Override
+    public long getStorageSize(Storage storage) throws FileStorageException {
+        Path path = resolve(storage.getIdStorage());
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        try (Stream<Path> files = Files.walk(path)) {
+            return files
+                .filter(Files::isRegularFile)
+                .mapToLong(file -> file.toFile().length())
+                .sum();
+        } catch (IOException | UncheckedIOException e) {
+            String error = "Failed to measure storage " + storage.getIdStorage();
+            throw new FileStorageException(error + ": " + e.getMessage());
+        }
     }
 
     @Override
@@ -107,11 +675,7 @@ public class FileSystemStorageHandler implements StorageHandler {
         String fileOrDirName = storageData.peek().getName();
         if (storageData.peek().getStorageDataType() == StorageDataType.FILE) {
             try {
-                Path filePath = Paths.get(
-                    basePath,
-                    storageData.peek().getStorageId(),
-                    fileOrDirName
-                );
+                Path filePath = resolve(storageData.peek().getStorageId(), fileOrDirName);
                 Files.deleteIfExists(filePath);
             } catch (IOException e) {
                 throw new FileStorageException("Failed to delete file " + fileOrDirName);
@@ -126,52 +690,168 @@ public class FileSystemStorageHandler implements StorageHandler {
 
     @Override
     public StorageData readStorageData(StorageData emptyFile) throws FileStorageException {
+        String filename = emptyFile.peek().getName();
+        try (Stream<StorageDataEntry> entries = streamStorageData(emptyFile)) {
+            List<StorageDataEntry> subtree = entries.toList();
+            emptyFile.clear();
+            subtree.forEach(emptyFile::add);
+
+            return emptyFile;
+        } catch (UncheckedIOException e) {
+            emptyFile.clear();
+            throw new FileStorageException("Failed to read file " + filename);
+        }
+    }
+
+    @Override
+    public Stream<StorageDataEntry> streamStorageData(
+        StorageData emptyFile
+    ) throws FileStorageException {
         StorageDataEntry current = emptyFile.peek();
-        emptyFile.getEntryList().clear();
         String filename = current.getName();
-        Path filePath = Paths.get(basePath, current.getStorageId(), filename);
+        Path storagePath = resolve(current.getStorageId());
+        Path filePath = resolve(current.getStorageId(), filename);
         AtomicBoolean currentUsed = new AtomicBoolean(false);
+
         try {
-            Files.walk(filePath).forEach(path -> {
-                StorageDataEntry entry;
-                if (currentUsed.get()) {
-                    entry = new StorageDataEntry();
-                } else {
-                    entry = current;
-                }
-                if (Files.isRegularFile(path)) {
-                    entry.setData(path.toFile());
-                    String fromStorageId = path
-                        .toString()
-                        .substring(path.toString().indexOf(current.getStorageId()));
-                    String subTreeFileName = fromStorageId
-                        .substring(current.getStorageId().length() + 1);
+            return Files
+                .find(filePath, Integer.MAX_VALUE, (path, attributes) ->
+                    attributes.isRegularFile() || attributes.isDirectory())
+                .map(path -> {
+                    StorageDataEntry entry = currentUsed.getAndSet(true)
+                        ? new StorageDataEntry()
+                        : current;
+                    String subTreeFileName = storagePath.relativize(path).toString();
                     if (!subTreeFileName.equalsIgnoreCase(filename)) {
-                        entry.setName(subTreeFileName);
+                        // the current entry is still looked up in the StorageData
+                        emptyFile.rename(entry, subTreeFileName);
                     }
-                    entry.setStorageDataType(StorageDataType.FILE);
-                    emptyFile.getEntryList().add(entry);
-                }
-
-                if (Files.isDirectory(path)) {
-                    entry.setStorageDataType(StorageDataType.DIRECTORY);
-                    String fromStorageId = path
-                        .toString()
-                        .substring(path.toString().indexOf(current.getStorageId()));
-                    String subTreeFileName = fromStorageId
-                        .substring(current.getStorageId().length() + 1);
-                    if (!subTreeFileName.equalsIgnoreCase(filename)) {
-                        entry.setName(subTreeFileName);
+                    if (Files.isDirectory(path)) {
+                        entry.setStorageDataType(StorageDataType.DIRECTORY);
+                    } else {
+                        // files compressed at rest are left as they are, read with GzipHelper
+                        entry.setData(path.toFile());
+                        entry.setStorageDataType(StorageDataType.FILE);
                     }
-                    emptyFile.getEntryList().add(entry);
-                }
-                currentUsed.set(true);
-            });
 
-            return emptyFile;
+                    return entry;
+                });
         } catch (IOException e) {
-            emptyFile.getEntryList().clear();
             throw new FileStorageException("Failed to read file " + filename);
         }
     }
+
+    @Override
+    public StorageData resolveStorageData(StorageData emptyFile) throws FileStorageException {
+        StorageDataEntry current = emptyFile.peek();
+        Path filePath = resolve(current.getStorageId(), current.getName());
+        if (!Files.isRegularFile(filePath)) {
+            return readStorageData(emptyFile);
+        }
+
+        current.setData(filePath.toFile());
+        current.setStorageDataType(StorageDataType.FILE);
+        emptyFile.clear();
+        emptyFile.add(current);
+
+        return emptyFile;
+    }
+
+    @Override
+    public long writeStorageData(
+        Storage storage,
+        String name,
+        ReadableByteChannel content
+    ) throws FileStorageException {
+        return writeStorageData(storage, name, content, false);
+    }
+
+    @Override
+    public long writeStorageData(
+        Storage storage,
+        String name,
+        ReadableByteChannel content,
+        boolean compressible
+    ) throws FileStorageException {
+        String storageId = storage.getIdStorage();
+
+        try {
+            Path target = resolve(storageId, name);
+            Files.createDirectories(target.getParent());
+
+            Path staging = Paths.get(basePath, STAGING_DIRECTORY);
+            Files.createDirectories(staging);
+            Path staged = Files.createTempFile(staging, null, null);
+            try {
+                long size;
+                try (FileChannel out = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+                    size = transfer(content, out);
+                }
+                // the size is only known once received, a compressed copy is staged then
+                if (compression && compressible && size >= compressionMinSize) {
+                    writeCompressedFile(staged, target);
+                } else {
+                    commitFile(staged, target);
+                }
+
+                return size;
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+        } catch (IOException e) {
+            String error = "Failed to write " + name;
+            error += " in storage " + storageId + ": " + e.getMessage();
+            throw new FileStorageException(error);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel openStorageData(
+        Storage storage,
+        String name
+    ) throws FileStorageException {
+        String storageId = storage.getIdStorage();
+
+        try {
+            Path path = resolve(storageId, name);
+            if (!GzipHelper.isCompressed(path)) {
+                return Files.newByteChannel(path, StandardOpenOption.READ);
+            }
+
+            Path plain = FileHelper.createTempFile("storage", null);
+            GzipHelper.decompress(path, plain);
+            return Files.newByteChannel(
+                plain,
+                StandardOpenOption.READ,
+                StandardOpenOption.DELETE_ON_CLOSE
+            );
+        } catch (IOException e) {
+            String error = "Failed to open " + name;
+            error += " in storage " + storageId + ": " + e.getMessage();
+            throw new FileStorageException(error);
+        }
+    }
+
+    /**
+     * Puts a fully written staged file at its location in the storage
+     *
+     * @param staged the staged file, on the same file system as the storage
+     * @param target the location of the file in the storage
+     * @throws IOException if the file cannot be moved
+     */
+    protected void commitFile(Path staged, Path target) throws IOException {
+        if (!moveFile(staged, target)) {
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long transfer(ReadableByteChannel in, FileChannel out) throws IOException {
+        long position = 0;
+        long transferred;
+        while ((transferred = out.transferFrom(in, position, TRANSFER_CHUNK_SIZE)) > 0) {
+            position += transferred;
+        }
+
+        return position;
+    }
 }
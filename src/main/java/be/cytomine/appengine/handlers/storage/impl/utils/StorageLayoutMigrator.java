@@ -0,0 +1,109 @@
+package be.cytomine.appengine.handlers.storage.impl.utils;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Moves the storages from the flat layout to the sharded layout.
+ *
+ * <p>The storages are moved one at a time with an atomic rename, so the storage handler keeps
+ * serving requests during the migration: a storage is found at its flat location until it has
+ * been moved, and at its sharded location afterwards.</p>
+ *
+ * <p>Only the settled storages are moved, those nothing writes to anymore. A writer that found
+ * a storage at its flat location could otherwise recreate it there once it has been moved,
+ * next to the sharded copy that hides it. The other storages are left for a later run.</p>
+ */
+@Slf4j
+public class StorageLayoutMigrator {
+
+    private static final Pattern SHARD = Pattern.compile("[0-9a-f]{2}");
+
+    private final Path basePath;
+
+    private final Function<String, Path> shardedPath;
+
+    private final Predicate<String> settled;
+
+    public StorageLayoutMigrator(Path basePath, Function<String, Path> shardedPath) {
+        this(basePath, shardedPath, storageName -> true);
+    }
+
+    /**
+     * @param basePath the base path of the storages
+     * @param shardedPath the location of a storage in the sharded layout, by name
+     * @param settled whether a storage, by name, is no longer written to
+     */
+    public StorageLayoutMigrator(
+        Path basePath,
+        Function<String, Path> shardedPath,
+        Predicate<String> settled
+    ) {
+        this.basePath = basePath;
+        this.shardedPath = shardedPath;
+        this.settled = settled;
+    }
+
+    /**
+     * Moves every settled storage still in the flat layout
+     *
+     * @return the number of storages left in the flat layout, not settled yet or failing to move
+     * @throws IOException if the base path cannot be listed
+     */
+    public int migrate() throws IOException {
+        log.info("Storage Layout: migrating storages to the sharded layout...");
+        int migrated = 0;
+        int postponed = 0;
+        int failed = 0;
+
+        try (DirectoryStream<Path> storages = Files.newDirectoryStream(basePath, this::isFlat)) {
+            for (Path storage : storages) {
+                if (!settled.test(storage.getFileName().toString())) {
+                    postponed++;
+                } else if (move(storage)) {
+                    migrated++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+
+        log.info(
+            "Storage Layout: migrated {} storages, {} postponed, {} left behind",
+            migrated,
+            postponed,
+            failed
+        );
+        return postponed + failed;
+    }
+
+    private boolean isFlat(Path path) {
+        String name = path.getFileName().toString();
+        return Files.isDirectory(path) && !name.startsWith(".") && !SHARD.matcher(name).matches();
+    }
+
+    private boolean move(Path storage) {
+        Path target = shardedPath.apply(storage.getFileName().toString());
+        try {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(storage, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(storage, target);
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("Storage Layout: failed to move {}: {}", storage, e.getMessage());
+            return false;
+        }
+    }
+}
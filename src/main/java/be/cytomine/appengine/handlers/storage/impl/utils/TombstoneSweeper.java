@@ -0,0 +1,126 @@
+package be.cytomine.appengine.handlers.storage.impl.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reclaims the space of the storages renamed to tombstones.
+ *
+ * <p>Each pass deletes the content of every tombstone, at most {@code maxFilesPerSecond}
+ * files per second so that the sweeping does not starve the storage. A tombstone that cannot
+ * be fully deleted is left for the next pass, and the failure is counted.</p>
+ */
+@Slf4j
+public class TombstoneSweeper implements Runnable {
+
+    private final Path tombstones;
+
+    private final int maxFilesPerSecond;
+
+    private final Runnable afterSweep;
+
+    private final Counter deletedFiles = Metrics.counter("appengine.storage.sweeper.deleted.files");
+
+    private final Counter reclaimedBytes = Metrics.counter("appengine.storage.sweeper.bytes");
+
+    private final Counter failures = Metrics.counter("appengine.storage.sweeper.failures");
+
+    private long windowStart;
+
+    private int deletedInWindow;
+
+    public TombstoneSweeper(Path tombstones, int maxFilesPerSecond, Runnable afterSweep) {
+        this.tombstones = tombstones;
+        this.maxFilesPerSecond = maxFilesPerSecond;
+        this.afterSweep = afterSweep;
+    }
+
+    @Override
+    public void run() {
+        if (!Files.isDirectory(tombstones)) {
+            return;
+        }
+
+        int swept = 0;
+        try (DirectoryStream<Path> pending = Files.newDirectoryStream(tombstones)) {
+            for (Path tombstone : pending) {
+                if (sweep(tombstone)) {
+                    swept++;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Storage Sweeper: failed to list tombstones: {}", e.getMessage());
+            failures.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (swept > 0) {
+            log.info("Storage Sweeper: swept {} tombstones", swept);
+            afterSweep.run();
+        }
+    }
+
+    private boolean sweep(Path tombstone) throws InterruptedException {
+        try {
+            Files.walkFileTree(tombstone, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                    throttle();
+                    Files.delete(file);
+                    deletedFiles.increment();
+                    reclaimedBytes.increment(attributes.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e)
+                    throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    Files.delete(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            return true;
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } catch (IOException e) {
+            log.warn("Storage Sweeper: failed to sweep {}: {}", tombstone, e.getMessage());
+            failures.increment();
+            return false;
+        }
+    }
+
+    private void throttle() throws InterruptedIOException {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000) {
+            windowStart = now;
+            deletedInWindow = 0;
+        }
+
+        if (++deletedInWindow > maxFilesPerSecond) {
+            try {
+                Thread.sleep(Math.max(1, windowStart + 1000 - now));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            windowStart = System.currentTimeMillis();
+            deletedInWindow = 1;
+        }
+    }
+}
@@ -40,6 +40,10 @@ public class Run extends BaseEntity {
 
     private LocalDateTime lastStateTransitionAt;
 
+    private LocalDateTime inputsPurgedAt;
+
+    private LocalDateTime outputsPurgedAt;
+
     private String secret;
 
     @ManyToOne(cascade = CascadeType.ALL)
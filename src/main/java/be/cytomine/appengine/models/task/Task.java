@@ -70,6 +70,10 @@ public class Task extends BaseEntity {
     @OneToMany(cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     private List<Match> matches;
 
+    // the layers of the task image, as pushed to the registry
+    @OneToMany(cascade = CascadeType.ALL, fetch = FetchType.LAZY)
+    private List<TaskLayer> layers;
+
     public Task(
         UUID identifier,
         String namespace,
@@ -0,0 +1,43 @@
+package be.cytomine.appengine.models.task;
+
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+import be.cytomine.appengine.models.BaseEntity;
+
+@Entity
+@Table(name = "task_layer")
+@Data
+@EqualsAndHashCode(callSuper = false)
+@NoArgsConstructor
+public class TaskLayer extends BaseEntity {
+    @Id
+    @Column(name = "id", updatable = false, nullable = false)
+    @GeneratedValue(generator = "UUID")
+    UUID id;
+
+    // the path of the layer in the image saved with the task
+    private String path;
+
+    // the content digest of the layer blob in the registry
+    private String digest;
+
+    private long size;
+
+    private String mediaType;
+
+    public TaskLayer(String path, String digest, long size, String mediaType) {
+        this.path = path;
+        this.digest = digest;
+        this.size = size;
+        this.mediaType = mediaType;
+    }
+}
@@ -27,7 +27,10 @@ import be.cytomine.appengine.exceptions.FileStorageException;
 import be.cytomine.appengine.exceptions.ProvisioningException;
 import be.cytomine.appengine.exceptions.TypeValidationException;
 import be.cytomine.appengine.handlers.StorageData;
+import be.cytomine.appengine.handlers.StorageDataEntry;
+import be.cytomine.appengine.handlers.StorageDataType;
 import be.cytomine.appengine.models.BaseEntity;
+import be.cytomine.appengine.utils.CompressedFormatHelper;
 import be.cytomine.appengine.utils.FileHelper;
 
 @Entity
@@ -75,6 +78,40 @@ public class Type extends BaseEntity {
         return null;
     }
 
+    /**
+     * Tells whether the values of this type are stored as plain text, worth compressing at rest
+     *
+     * @return true for the text-valued types
+     */
+    public boolean isCompressible() {
+        return false;
+    }
+
+    /**
+     * Flags the files of a value of this type that may be compressed at rest
+     *
+     * @param storageData the files of the value
+     */
+    public void markCompressible(StorageData storageData) {
+        for (StorageDataEntry entry : storageData.entries()) {
+            entry.setCompressible(
+                isCompressible() && entry.getStorageDataType() == StorageDataType.FILE
+            );
+        }
+    }
+
+    /**
+     * Tells whether a file of a value of this type is already compressed, not worth deflating
+     *
+     * @param entry the file of the value
+     * @return true if the file of a binary value is in a compressed format
+     */
+    public boolean isPrecompressed(StorageDataEntry entry) {
+        return !isCompressible()
+            && entry.getStorageDataType() == StorageDataType.FILE
+            && CompressedFormatHelper.isCompressed(entry.getData().toPath());
+    }
+
     public Charset getStorageCharset() {
         return switch (charset.toUpperCase()) {
             case "US_ASCII" -> StandardCharsets.US_ASCII;
@@ -128,7 +165,7 @@ public class Type extends BaseEntity {
             );
         }
 
-        if (currentOutputStorageData.getEntryList().size() > 1) {
+        if (currentOutputStorageData.size() > 1) {
             throw new TypeValidationException(
                 ErrorCode.INTERNAL_EXTRA_OUTPUT_FILES_FOR_PARAMETER
             );
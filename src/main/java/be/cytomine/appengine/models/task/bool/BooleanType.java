@@ -101,6 +101,11 @@ public class BooleanType extends Type {
         }
     }
 
+    @Override
+    public boolean isCompressible() {
+        return true;
+    }
+
     @Override
     public StorageData mapToStorageFileData(JsonNode provision, Run run) {
         String value = provision.get("value").asText();
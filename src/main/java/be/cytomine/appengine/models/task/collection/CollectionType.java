@@ -82,6 +82,8 @@ import be.cytomine.appengine.utils.FileHelper;
 @NoArgsConstructor
 public class CollectionType extends Type {
 
+    private static final Pattern ITEM_INDEX = Pattern.compile("\\d+");
+
     @Column(nullable = true)
     private Integer minSize;
 
@@ -215,13 +217,12 @@ public class CollectionType extends Type {
         String leafType = currentType.getClass().getSimpleName();
 
         if (Objects.isNull(currentOutputStorageData)
-            || Objects.isNull(currentOutputStorageData.getEntryList())
-            || currentOutputStorageData.getEntryList().isEmpty()) {
+            || currentOutputStorageData.isEmpty()) {
             throw new RuntimeException("invalid collection dimensions");
         }
 
         Map<String, Object> lists = new LinkedHashMap<>();
-        for (StorageDataEntry entry : currentOutputStorageData.getEntryList()) {
+        for (StorageDataEntry entry : currentOutputStorageData.entries()) {
             String entryName = entry.getName();
             if (entryName.endsWith("/")) {
                 boolean relatedToOutputParameter = entryName.startsWith(currentOutput.getName() + "/");
@@ -297,6 +298,40 @@ public class CollectionType extends Type {
 
     }
 
+    /**
+     * Checks where an entry of a collection output sits, before its content is read
+     *
+     * @param relativeName the name of the entry under the main directory of the collection
+     * @param isDirectory whether the entry is a nested collection
+     * @throws TypeValidationException if the entry is not named after an item index or
+     *     array.yml, or is nested deeper than the collection
+     */
+    public void validateEntry(String relativeName, boolean isDirectory)
+        throws TypeValidationException {
+        int dimensions = 1;
+        Type type = subType;
+        while (type instanceof CollectionType collection) {
+            dimensions++;
+            type = collection.getSubType();
+        }
+
+        String[] segments = relativeName.split("/");
+        // the items of the deepest collection are files
+        int maxDepth = isDirectory ? dimensions - 1 : dimensions;
+        if (segments.length > maxDepth) {
+            throw new TypeValidationException(ErrorCode.INTERNAL_WRONG_PROVISION_STRUCTURE);
+        }
+
+        for (int i = 0; i < segments.length; i++) {
+            boolean isMetadata = !isDirectory
+                && i == segments.length - 1
+                && segments[i].equals("array.yml");
+            if (!isMetadata && !ITEM_INDEX.matcher(segments[i]).matches()) {
+                throw new TypeValidationException(ErrorCode.INTERNAL_WRONG_PROVISION_STRUCTURE);
+            }
+        }
+    }
+
     @Override
     public void validate(Object valueObject) throws TypeValidationException {
         if (Objects.isNull(valueObject)) {
@@ -1027,8 +1062,8 @@ public class CollectionType extends Type {
 
         String leafType = currentType.getClass().getSimpleName();
         Map<String, TypePersistence> parameterNameToTypePersistence = new LinkedHashMap<>();
-        outputValue.sortShallowToDeep();
-        for (StorageDataEntry entry : outputValue.getEntryList()) {
+        // parents come before their children
+        for (StorageDataEntry entry : outputValue.subtree(currentOutput.getName())) {
             if (entry.getStorageDataType().equals(StorageDataType.DIRECTORY)) {
                 if (entry.getName().equals(currentOutput.getName() + "/")) {
                     result = new CollectionPersistence();
@@ -1245,6 +1280,27 @@ public class CollectionType extends Type {
         collectionPersistenceRepository.save(result);
     }
 
+    @Override
+    public boolean isCompressible() {
+        return subType.isCompressible();
+    }
+
+    @Override
+    public void markCompressible(StorageData storageData) {
+        for (StorageDataEntry entry : storageData.entries()) {
+            // the array.yml files are text whatever the type of the items
+            boolean compressible = isCompressible() || entry.getName().endsWith("array.yml");
+            entry.setCompressible(
+                compressible && entry.getStorageDataType() == StorageDataType.FILE
+            );
+        }
+    }
+
+    @Override
+    public boolean isPrecompressed(StorageDataEntry entry) {
+        return !entry.getName().endsWith("array.yml") && super.isPrecompressed(entry);
+    }
+
     @Override
     public StorageData mapToStorageFileData(JsonNode provision, Run run) throws FileStorageException {
         String name = null;
@@ -1313,8 +1369,8 @@ public class CollectionType extends Type {
                 ymlPath = path.substring(1, path.lastIndexOf("/"));
             }
 
-            container.getEntryList().removeIf(tempYml -> tempYml.getName().endsWith("array.yml"));
-            int minusParameterDirectory = container.getEntryList().size() - 1;
+            container.removeIf(tempYml -> tempYml.getName().endsWith("array.yml"));
+            int minusParameterDirectory = container.size() - 1;
             container.add(itemFileEntry);
             String arrayDotYmpData = "size: " + (minusParameterDirectory + 1);
             container.add(new StorageDataEntry(
@@ -1370,8 +1426,8 @@ public class CollectionType extends Type {
         String leafType = currentType.getClass().getSimpleName();
         Map<String, List<TaskRunParameterValue>> itemListsDictionary = new LinkedHashMap<>();
 
-        output.sortShallowToDeep();
-        for (StorageDataEntry entry : output.getEntryList()) {
+        // parents come before their children
+        for (StorageDataEntry entry : output.subtree(outputName)) {
             if (entry.getStorageDataType().equals(StorageDataType.DIRECTORY)) {
                 String outerDirectoryName = outputName + "/";
                 if (entry.getName().equals(outerDirectoryName)) {
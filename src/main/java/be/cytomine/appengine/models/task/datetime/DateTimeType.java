@@ -134,6 +134,11 @@ public class DateTimeType extends Type {
         }
     }
 
+    @Override
+    public boolean isCompressible() {
+        return true;
+    }
+
     @Override
     public StorageData mapToStorageFileData(JsonNode provision, Run run) {
         String value = provision.get("value").asText();
@@ -131,6 +131,11 @@ public class EnumerationType extends Type {
         }
     }
 
+    @Override
+    public boolean isCompressible() {
+        return true;
+    }
+
     @Override
     public StorageData mapToStorageFileData(JsonNode provision, Run run) {
         String value = provision.get("value").asText();
@@ -177,6 +177,11 @@ public class GeometryType extends Type {
         }
     }
 
+    @Override
+    public boolean isCompressible() {
+        return true;
+    }
+
     @Override
     public StorageData mapToStorageFileData(JsonNode provision, Run run) {
         String value = provision.get("value").asText();
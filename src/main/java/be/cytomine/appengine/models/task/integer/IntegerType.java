@@ -158,6 +158,11 @@ public class IntegerType extends Type {
         }
     }
 
+    @Override
+    public boolean isCompressible() {
+        return true;
+    }
+
     @Override
     public StorageData mapToStorageFileData(JsonNode provision, Run run) {
         String value = provision.get("value").asText();
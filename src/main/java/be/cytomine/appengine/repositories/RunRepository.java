@@ -1,11 +1,33 @@
 package be.cytomine.appengine.repositories;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.states.TaskRunState;
 
 @Repository
-public interface RunRepository extends JpaRepository<Run, UUID> {}
+public interface RunRepository extends JpaRepository<Run, UUID> {
+    @Query("SELECT r FROM Run r"
+        + " WHERE r.state IN :states"
+        + " AND r.outputsPurgedAt IS NULL"
+        + " AND (r.lastStateTransitionAt > :after"
+        + " OR (r.lastStateTransitionAt = :after AND r.id > :afterId))"
+        + " AND r.lastStateTransitionAt < :before"
+        + " ORDER BY r.lastStateTransitionAt, r.id")
+    List<Run> findRetentionCandidates(
+        @Param("states") Collection<TaskRunState> states,
+        @Param("after") LocalDateTime after,
+        @Param("afterId") UUID afterId,
+        @Param("before") LocalDateTime before,
+        Pageable pageable
+    );
+}
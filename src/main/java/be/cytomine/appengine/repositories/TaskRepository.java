@@ -1,5 +1,6 @@
 package be.cytomine.appengine.repositories;
 
+import java.util.List;
 import java.util.UUID;
 
 import jakarta.transaction.Transactional;
@@ -14,6 +15,8 @@ import be.cytomine.appengine.models.task.Task;
 public interface TaskRepository extends JpaRepository<Task, UUID> {
     Task findByNamespaceAndVersion(String namespace, String version);
 
+    List<Task> findAllByNamespace(String namespace);
+
     @Modifying
     @Transactional
     @Query("DELETE FROM Task")
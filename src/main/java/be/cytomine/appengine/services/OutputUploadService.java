@@ -0,0 +1,357 @@
+package be.cytomine.appengine.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import be.cytomine.appengine.dto.inputs.task.TaskRunParameterValue;
+import be.cytomine.appengine.dto.misc.OutputUpload;
+import be.cytomine.appengine.dto.responses.errors.AppEngineError;
+import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
+import be.cytomine.appengine.dto.responses.errors.ErrorCode;
+import be.cytomine.appengine.exceptions.ProvisioningException;
+import be.cytomine.appengine.models.task.Run;
+
+/**
+ * Receives the outputs archive of a run in chunks, so that an interrupted upload is resumed
+ * from the last byte received instead of being sent again.
+ *
+ * <p>The chunks are appended to a part file whose size is the offset of the upload. A chunk
+ * must start at this offset, and is rolled back when its checksum does not match. Once all the
+ * chunks are received, the archive is ingested as if it was posted at once, and the upload is
+ * removed whether the ingestion succeeds or not. An upload never grows beyond its declared length,
+ * or the maximum length when none was declared.</p>
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class OutputUploadService {
+
+    private static final String PART_EXTENSION = ".part";
+
+    private static final String LENGTH_EXTENSION = ".length";
+
+    private static final String CHECKSUM_ALGORITHM = "sha256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final TaskProvisioningService taskProvisioningService;
+
+    // uploads share a fixed set of locks, nothing is left behind by the abandoned ones
+    private final Object[] locks = newLocks();
+
+    @Value("${app-engine.outputs.uploads-path:/tmp/appengine/uploads/outputs}")
+    private String uploadsPath;
+
+    @Value("${app-engine.outputs.upload-max-length:16106127360}")
+    private long maxLength = Long.MAX_VALUE;
+
+    public OutputUpload createUpload(
+        String runId,
+        String secret,
+        Long length
+    ) throws ProvisioningException {
+        log.info("Creating Outputs Upload: creating...");
+        Run run = taskProvisioningService.getRunAcceptingOutputs(runId, secret);
+        if (length != null && length > maxLength) {
+            log.info("Creating Outputs Upload: length {} above {}", length, maxLength);
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_LENGTH_EXCEEDED);
+            throw new ProvisioningException(error);
+        }
+        String uploadId = UUID.randomUUID().toString();
+        Path part = getPartPath(run, uploadId);
+        try {
+            Files.createDirectories(part.getParent());
+            Files.createFile(part);
+            if (length != null) {
+                Files.writeString(getLengthPath(part), length.toString());
+            }
+        } catch (IOException e) {
+            log.error("Creating Outputs Upload: failed to create upload: {}", e.getMessage());
+            AppEngineError error = ErrorBuilder.build(ErrorCode.STORAGE_STORING_INPUT_FAILED);
+            throw new ProvisioningException(error);
+        }
+
+        log.info("Creating Outputs Upload: created {}", uploadId);
+        return toUpload(uploadId, 0, length);
+    }
+
+    public OutputUpload getUpload(
+        String runId,
+        String secret,
+        String uploadId
+    ) throws ProvisioningException {
+        Run run = taskProvisioningService.getRunAcceptingOutputs(runId, secret);
+        Path part = findPart(run, uploadId);
+        synchronized (getLock(uploadId)) {
+            return toUpload(uploadId, size(part), readLength(part));
+        }
+    }
+
+    /**
+     * Appends a chunk to an upload
+     *
+     * @param offset the offset the chunk starts at, must be the current offset of the upload
+     * @param checksum the optional checksum of the chunk, as {@code sha256 <hex digest>}
+     * @param chunk the content of the chunk
+     * @return the upload, with the offset following the chunk
+     * @throws ProvisioningException if the chunk does not start at the upload offset, does not
+     *     match its checksum or goes beyond the declared length of the upload
+     */
+    public OutputUpload appendChunk(
+        String runId,
+        String secret,
+        String uploadId,
+        long offset,
+        String checksum,
+        InputStream chunk
+    ) throws ProvisioningException {
+        Run run = taskProvisioningService.getRunAcceptingOutputs(runId, secret);
+        Path part = findPart(run, uploadId);
+        byte[] expected = parseChecksum(checksum);
+
+        synchronized (getLock(uploadId)) {
+            long current = size(part);
+            if (offset != current) {
+                log.info("Appending Output Chunk: offset {} instead of {}", offset, current);
+                AppEngineError error = ErrorBuilder
+                    .build(ErrorCode.INTERNAL_UPLOAD_OFFSET_MISMATCH);
+                throw new ProvisioningException(error);
+            }
+
+            Long length = readLength(part);
+            long limit = length == null ? maxLength : length;
+            long end = write(part, current, limit, expected, chunk);
+
+            log.info("Appending Output Chunk: {} at {}", uploadId, end);
+            return toUpload(uploadId, end, length);
+        }
+    }
+
+    public List<TaskRunParameterValue> completeUpload(
+        String runId,
+        String secret,
+        String uploadId
+    ) throws ProvisioningException {
+        log.info("Completing Outputs Upload: completing...");
+        Run run = taskProvisioningService.getRunAcceptingOutputs(runId, secret);
+        Path part = findPart(run, uploadId);
+
+        synchronized (getLock(uploadId)) {
+            Long length = readLength(part);
+            if (length != null && length != size(part)) {
+                AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_INCOMPLETE);
+                throw new ProvisioningException(error);
+            }
+
+            // a failed ingestion fails the run, the upload cannot be completed again
+            try {
+                List<TaskRunParameterValue> outputs = taskProvisioningService
+                    .postOutputsZipArchive(runId, secret, () -> Files.newInputStream(part));
+
+                log.info("Completing Outputs Upload: completed");
+                return outputs;
+            } finally {
+                deleteUpload(part, uploadId);
+            }
+        }
+    }
+
+    public void cancelUpload(
+        String runId,
+        String secret,
+        String uploadId
+    ) throws ProvisioningException {
+        Run run = taskProvisioningService.getRunAcceptingOutputs(runId, secret);
+        Path part = findPart(run, uploadId);
+        synchronized (getLock(uploadId)) {
+            deleteUpload(part, uploadId);
+        }
+        log.info("Cancelling Outputs Upload: cancelled {}", uploadId);
+    }
+
+    /* Writes the chunk at the offset, rolling it back if it does not match its checksum */
+    private long write(
+        Path part,
+        long offset,
+        long limit,
+        byte[] expected,
+        InputStream chunk
+    ) throws ProvisioningException {
+        MessageDigest digest = newDigest();
+        long position = offset;
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = chunk.read(buffer)) > 0) {
+                if (position + read > limit) {
+                    rollback(channel, offset);
+                    AppEngineError error = ErrorBuilder
+                        .build(ErrorCode.INTERNAL_UPLOAD_LENGTH_EXCEEDED);
+                    throw new ProvisioningException(error);
+                }
+
+                digest.update(buffer, 0, read);
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+
+            if (expected != null && !MessageDigest.isEqual(expected, digest.digest())) {
+                rollback(channel, offset);
+                AppEngineError error = ErrorBuilder
+                    .build(ErrorCode.INTERNAL_UPLOAD_CHECKSUM_MISMATCH);
+                throw new ProvisioningException(error);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // without checksum the bytes received before the failure are kept, the upload
+            // resumes from them, with a checksum the whole chunk is sent again
+            log.warn("Appending Output Chunk: chunk interrupted: {}", e.getMessage());
+            if (expected != null) {
+                truncate(part, offset);
+            }
+            AppEngineError error = ErrorBuilder.build(ErrorCode.STORAGE_STORING_INPUT_FAILED);
+            throw new ProvisioningException(error);
+        }
+
+        return position;
+    }
+
+    private static void rollback(FileChannel channel, long offset) throws IOException {
+        channel.truncate(offset);
+        channel.force(false);
+    }
+
+    private static void truncate(Path part, long offset) {
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            rollback(channel, offset);
+        } catch (IOException e) {
+            log.warn("Appending Output Chunk: failed to roll chunk back: {}", e.getMessage());
+        }
+    }
+
+    private static byte[] parseChecksum(String checksum) throws ProvisioningException {
+        if (checksum == null || checksum.isBlank()) {
+            return null;
+        }
+
+        String[] parts = checksum.trim().split("\\s+");
+        if (parts.length != 2 || !parts[0].equalsIgnoreCase(CHECKSUM_ALGORITHM)) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_CHECKSUM_MISMATCH);
+            throw new ProvisioningException(error);
+        }
+
+        try {
+            return HexFormat.of().parseHex(parts[1].toLowerCase());
+        } catch (IllegalArgumentException e) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_CHECKSUM_MISMATCH);
+            throw new ProvisioningException(error);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private Path findPart(Run run, String uploadId) throws ProvisioningException {
+        Path part = null;
+        try {
+            // the identifier is part of a path, anything but a UUID is rejected
+            part = getPartPath(run, UUID.fromString(uploadId).toString());
+        } catch (IllegalArgumentException e) {
+            log.info("Outputs Upload: invalid upload identifier {}", uploadId);
+        }
+
+        if (part == null || !Files.isRegularFile(part)) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_NOT_FOUND);
+            throw new ProvisioningException(error);
+        }
+
+        return part;
+    }
+
+    private Path getPartPath(Run run, String uploadId) {
+        return Paths.get(uploadsPath, run.getId().toString(), uploadId + PART_EXTENSION);
+    }
+
+    private static Path getLengthPath(Path part) {
+        return part.resolveSibling(part.getFileName() + LENGTH_EXTENSION);
+    }
+
+    private static Object[] newLocks() {
+        Object[] locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        return locks;
+    }
+
+    private Object getLock(String uploadId) {
+        return locks[Math.floorMod(uploadId.hashCode(), locks.length)];
+    }
+
+    private void deleteUpload(Path part, String uploadId) {
+        try {
+            Files.deleteIfExists(getLengthPath(part));
+            Files.deleteIfExists(part);
+        } catch (IOException e) {
+            log.warn("Outputs Upload: failed to delete upload {}: {}", uploadId, e.getMessage());
+        }
+    }
+
+    private static long size(Path part) throws ProvisioningException {
+        try {
+            return Files.size(part);
+        } catch (IOException e) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_NOT_FOUND);
+            throw new ProvisioningException(error);
+        }
+    }
+
+    private static Long readLength(Path part) throws ProvisioningException {
+        try {
+            String length = Files.readString(getLengthPath(part), StandardCharsets.US_ASCII);
+            return Long.parseLong(length.trim());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UPLOAD_NOT_FOUND);
+            throw new ProvisioningException(error);
+        }
+    }
+
+    private static OutputUpload toUpload(String uploadId, long offset, Long length) {
+        OutputUpload upload = new OutputUpload();
+        upload.setUploadId(uploadId);
+        upload.setOffset(offset);
+        upload.setLength(length);
+
+        return upload;
+    }
+}
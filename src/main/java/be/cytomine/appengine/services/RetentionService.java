@@ -0,0 +1,349 @@
+package be.cytomine.appengine.services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import be.cytomine.appengine.config.RetentionProperties;
+import be.cytomine.appengine.dto.handlers.filestorage.Storage;
+import be.cytomine.appengine.dto.misc.RetentionReport;
+import be.cytomine.appengine.exceptions.FileStorageException;
+import be.cytomine.appengine.handlers.StorageHandler;
+import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.repositories.RunRepository;
+import be.cytomine.appengine.states.TaskRunState;
+
+/**
+ * Purges the storages of the runs that reached a final state longer ago than their
+ * time-to-live, the stale temporary files and the abandoned uploads.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class RetentionService {
+
+    private static final Set<TaskRunState> FINAL_STATES = EnumSet.of(
+        TaskRunState.FINISHED,
+        TaskRunState.FAILED
+    );
+
+    private static final LocalDateTime EPOCH = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+    private static final UUID FIRST_ID = new UUID(0, 0);
+
+    private static final String LENGTH_EXTENSION = ".length";
+
+    private final RetentionProperties properties;
+
+    private final RunRepository runRepository;
+
+    private final RunService runService;
+
+    private final TaskProvisioningService taskProvisioningService;
+
+    private final StorageHandler fileStorageHandler;
+
+    private final Counter reclaimedBytes = Metrics.counter("appengine.retention.reclaimed.bytes");
+
+    private final Counter purgedStorages = Metrics.counter("appengine.retention.purged.storages");
+
+    @Value("${app-engine.outputs.uploads-path:/tmp/appengine/uploads/outputs}")
+    private String outputUploadsPath;
+
+    @Value("${app-engine.task-uploads.path:/tmp/appengine/uploads/tasks}")
+    private String taskUploadsPath;
+
+    @Value("${app-engine.temp-path:/tmp/appengine/tmp}")
+    private String appTempPath;
+
+    @Value("${storage.base-path:}")
+    private String storageBasePath;
+
+    /* Refuses to start when a purged directory would take live storages along */
+    @PostConstruct
+    public void checkPaths() {
+        Path storage = normalize(storageBasePath);
+        if (storage == null) {
+            return;
+        }
+
+        List<Path> purgedPaths = Stream.of(
+            getTempPath(),
+            normalize(outputUploadsPath),
+            normalize(taskUploadsPath)
+        ).filter(Objects::nonNull).toList();
+        for (Path purged : purgedPaths) {
+            if (purged.startsWith(storage) || storage.startsWith(purged)) {
+                throw new IllegalStateException(
+                    "Retention: " + purged + " overlaps the storage base path " + storage
+                );
+            }
+        }
+    }
+
+    @Scheduled(
+        fixedDelayString = "${retention.interval:PT1H}",
+        initialDelayString = "${retention.initial-delay:PT10M}"
+    )
+    public void applyRetention() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+
+        log.info("Retention: purging expired storages...");
+        RetentionReport report = purge(false);
+        log.info(
+            "Retention: purged {} storages, {} temporary files and {} runs, reclaimed {} bytes",
+            report.getPurgedStorages().size(),
+            report.getPurgedTemporaryFiles(),
+            report.getDeletedRuns().size(),
+            report.getReclaimedBytes()
+        );
+    }
+
+    /**
+     * Purges what the retention policy expired
+     *
+     * @param dryRun true to only report what would be purged
+     * @return the storages, runs and temporary files purged, or to be purged in a dry run
+     */
+    public RetentionReport purge(boolean dryRun) {
+        RetentionReport report = new RetentionReport();
+        report.setDryRun(dryRun);
+
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime before = now.minus(properties.getShortestTtl());
+        // runs sharing a transition time are told apart by their id
+        LocalDateTime after = EPOCH;
+        UUID afterId = FIRST_ID;
+        List<Run> batch;
+        do {
+            batch = runRepository.findRetentionCandidates(
+                FINAL_STATES,
+                after,
+                afterId,
+                before,
+                PageRequest.of(0, properties.getBatchSize())
+            );
+            for (Run run : batch) {
+                purgeRun(run, now, dryRun, report);
+            }
+
+            if (!batch.isEmpty()) {
+                Run last = batch.get(batch.size() - 1);
+                after = last.getLastStateTransitionAt();
+                afterId = last.getId();
+            }
+        } while (batch.size() == properties.getBatchSize());
+
+        purgeTemporaryFiles(dryRun, report);
+
+        return report;
+    }
+
+    private void purgeRun(Run run, LocalDateTime now, boolean dryRun, RetentionReport report) {
+        LocalDateTime transition = run.getLastStateTransitionAt();
+        boolean inputsExpired = run.getInputsPurgedAt() == null
+            && transition.plus(properties.getInputsTtl(run.getTask())).isBefore(now);
+        // the outputs time-to-live is never shorter, expired outputs imply expired inputs
+        boolean outputsExpired = transition
+            .plus(properties.getOutputsTtl(run.getTask()))
+            .isBefore(now);
+        if (!inputsExpired && !outputsExpired) {
+            return;
+        }
+
+        try {
+            if (inputsExpired) {
+                purgeStorage("task-run-inputs-" + run.getId(), dryRun, report);
+                purgeStorage("task-run-archives-" + run.getId(), dryRun, report);
+            }
+            if (outputsExpired) {
+                purgeStorage("task-run-outputs-" + run.getId(), dryRun, report);
+            }
+        } catch (FileStorageException e) {
+            log.warn("Retention: failed to purge run {}: {}", run.getId(), e.getMessage());
+            return;
+        }
+
+        if (outputsExpired && properties.isDeleteRuns()) {
+            if (!dryRun) {
+                runService.delete(run.getId());
+                taskProvisioningService.forgetInputsRevision(run.getId());
+            }
+            report.getDeletedRuns().add(run.getId());
+            return;
+        }
+
+        if (!dryRun) {
+            if (inputsExpired) {
+                run.setInputsPurgedAt(now);
+            }
+            if (outputsExpired) {
+                run.setOutputsPurgedAt(now);
+            }
+            runRepository.save(run);
+        }
+    }
+
+    private void purgeStorage(
+        String storageId,
+        boolean dryRun,
+        RetentionReport report
+    ) throws FileStorageException {
+        Storage storage = new Storage(storageId);
+        if (!fileStorageHandler.checkStorageExists(storage)) {
+            return;
+        }
+
+        long size = fileStorageHandler.getStorageSize(storage);
+        if (!dryRun) {
+            fileStorageHandler.deleteStorage(storage);
+            purgedStorages.increment();
+            reclaimedBytes.increment(size);
+        }
+        report.getPurgedStorages().add(storageId);
+        report.addReclaimedBytes(size);
+    }
+
+    private void purgeTemporaryFiles(boolean dryRun, RetentionReport report) {
+        purgeStaleFiles(getTempPath(), properties.getTempTtl(), dryRun, report);
+        // an upload is only abandoned once no chunk came for a while
+        Duration uploadsTtl = properties.getUploadsTtl();
+        purgeStaleFiles(normalize(outputUploadsPath), uploadsTtl, dryRun, report);
+        purgeStaleFiles(normalize(taskUploadsPath), uploadsTtl, dryRun, report);
+    }
+
+    private void purgeStaleFiles(
+        Path root,
+        Duration ttl,
+        boolean dryRun,
+        RetentionReport report
+    ) {
+        if (root == null || !Files.isDirectory(root)) {
+            return;
+        }
+
+        FileTime threshold = FileTime.from(Instant.now().minus(ttl));
+        List<Path> directories = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!path.equals(root)) {
+                        directories.add(path);
+                    }
+                    continue;
+                }
+
+                purgeStaleFile(path, threshold, dryRun, report);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Retention: failed to list {}: {}", root, e.getMessage());
+        }
+
+        if (dryRun) {
+            return;
+        }
+
+        // deepest first, a directory only goes once empty and its files were purged
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            Path directory = directories.get(i);
+            try {
+                if (Files.getLastModifiedTime(directory).compareTo(threshold) < 0) {
+                    Files.deleteIfExists(directory);
+                }
+            } catch (DirectoryNotEmptyException e) {
+                log.debug("Retention: {} is still in use", directory);
+            } catch (IOException e) {
+                log.warn("Retention: failed to purge {}: {}", directory, e.getMessage());
+            }
+        }
+    }
+
+    private void purgeStaleFile(
+        Path file,
+        FileTime threshold,
+        boolean dryRun,
+        RetentionReport report
+    ) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(
+                file,
+                BasicFileAttributes.class
+            );
+            if (getLastModifiedTime(file, attributes).compareTo(threshold) >= 0) {
+                return;
+            }
+
+            if (!dryRun) {
+                Files.deleteIfExists(file);
+                reclaimedBytes.increment(attributes.size());
+            }
+            report.setPurgedTemporaryFiles(report.getPurgedTemporaryFiles() + 1);
+            report.addReclaimedBytes(attributes.size());
+        } catch (IOException e) {
+            log.warn("Retention: failed to purge {}: {}", file, e.getMessage());
+        }
+    }
+
+    /* The length of a resumable upload is written once, it lives as long as its part */
+    private static FileTime getLastModifiedTime(Path file, BasicFileAttributes attributes) {
+        FileTime modified = attributes.lastModifiedTime();
+        String name = file.getFileName().toString();
+        if (!name.endsWith(LENGTH_EXTENSION)) {
+            return modified;
+        }
+
+        Path part = file.resolveSibling(
+            name.substring(0, name.length() - LENGTH_EXTENSION.length())
+        );
+        try {
+            FileTime partModified = Files.getLastModifiedTime(part);
+            return partModified.compareTo(modified) > 0 ? partModified : modified;
+        } catch (IOException e) {
+            return modified;
+        }
+    }
+
+    private Path getTempPath() {
+        String tempPath = properties.getTempPath();
+        return normalize(tempPath == null || tempPath.isBlank() ? appTempPath : tempPath);
+    }
+
+    private static Path normalize(String path) {
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+}
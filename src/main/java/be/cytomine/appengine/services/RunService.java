@@ -1,14 +1,23 @@
 package be.cytomine.appengine.services;
 
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
+import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import be.cytomine.appengine.models.task.ParameterType;
 import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.models.task.Task;
+import be.cytomine.appengine.models.task.TypePersistence;
 import be.cytomine.appengine.repositories.RunRepository;
+import be.cytomine.appengine.repositories.TaskRepository;
+import be.cytomine.appengine.repositories.TypePersistenceRepository;
 import be.cytomine.appengine.states.TaskRunState;
 
 @Slf4j
@@ -18,6 +27,10 @@ public class RunService {
 
     private final RunRepository runRepository;
 
+    private final TaskRepository taskRepository;
+
+    private final TypePersistenceRepository typePersistenceRepository;
+
     public Run findRun(String runid) {
         return runRepository.findById(UUID.fromString(runid)).orElse(null);
     }
@@ -32,4 +45,42 @@ public class RunService {
         log.info("Updating Run State: update to {}", state);
         return true;
     }
+
+    /**
+     * Deletes a run with its provisions and results, keeping its task
+     *
+     * @param runId the identifier of the run
+     */
+    @Transactional
+    public void delete(UUID runId) {
+        Run run = runRepository.findById(runId).orElse(null);
+        if (run == null) {
+            return;
+        }
+
+        log.info("Deleting Run: deleting {}...", runId);
+        Task task = run.getTask();
+        if (task != null) {
+            task.getRuns().removeIf(taskRun -> taskRun.getId().equals(runId));
+            taskRepository.save(task);
+        }
+        // the task outlives its runs, the removal must not cascade to it
+        run.setTask(null);
+
+        // the inputs are removed along with the run, the results are only linked by identifier
+        Set<UUID> provisions = run
+            .getProvisions()
+            .stream()
+            .map(TypePersistence::getId)
+            .collect(Collectors.toSet());
+        List<TypePersistence> results = typePersistenceRepository
+            .findTypePersistenceByRunIdAndParameterType(runId, ParameterType.OUTPUT)
+            .stream()
+            .filter(result -> !provisions.contains(result.getId()))
+            .toList();
+        typePersistenceRepository.deleteAll(results);
+
+        runRepository.delete(run);
+        log.info("Deleting Run: deleted {}", runId);
+    }
 }
@@ -1,22 +1,45 @@
 package be.cytomine.appengine.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -25,9 +48,12 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import jakarta.validation.constraints.NotNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import be.cytomine.appengine.dto.handlers.filestorage.Storage;
 import be.cytomine.appengine.dto.handlers.scheduler.Schedule;
@@ -39,6 +65,7 @@ import be.cytomine.appengine.dto.inputs.task.StateAction;
 import be.cytomine.appengine.dto.inputs.task.TaskDescription;
 import be.cytomine.appengine.dto.inputs.task.TaskRunParameterValue;
 import be.cytomine.appengine.dto.inputs.task.TaskRunResponse;
+import be.cytomine.appengine.dto.misc.CachedArchive;
 import be.cytomine.appengine.dto.responses.errors.AppEngineError;
 import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
 import be.cytomine.appengine.dto.responses.errors.ErrorCode;
@@ -66,6 +93,11 @@ import be.cytomine.appengine.repositories.RunRepository;
 import be.cytomine.appengine.repositories.TypePersistenceRepository;
 import be.cytomine.appengine.repositories.collection.CollectionPersistenceRepository;
 import be.cytomine.appengine.states.TaskRunState;
+import be.cytomine.appengine.utils.ArchiveBuilder;
+import be.cytomine.appengine.utils.ArchiveFormat;
+import be.cytomine.appengine.utils.FileHelper;
+import be.cytomine.appengine.utils.TarArchiveBuilder;
+import be.cytomine.appengine.utils.ZipArchiveBuilder;
 
 
 
@@ -74,6 +106,12 @@ import be.cytomine.appengine.states.TaskRunState;
 @Service
 public class TaskProvisioningService {
 
+    private static final String ARCHIVES_STORAGE_PREFIX = "task-run-archives-";
+
+    private static final String INPUTS_ARCHIVE = "inputs.zip";
+
+    private static final String DIGEST_SUFFIX = ".sha256";
+
     private final TypePersistenceRepository typePersistenceRepository;
 
     private final CollectionPersistenceRepository collectionPersistenceRepository;
@@ -86,6 +124,36 @@ public class TaskProvisioningService {
 
     private final TaskService taskService;
 
+    @Value("${app-engine.archives.cache-inputs:false}")
+    private boolean cacheInputsArchive;
+
+    @Value("${app-engine.archives.deflate-level:6}")
+    private int deflateLevel;
+
+    @Value("${app-engine.archives.parallelism:1}")
+    private int archiveParallelism;
+
+    @Value("${app-engine.archives.parallel-max-size:268435456}")
+    private long archiveParallelMaxSize;
+
+    @Value("${app-engine.archives.zstd-level:3}")
+    private int zstdLevel;
+
+    @Value("${app-engine.outputs.ingest-mode:staged}")
+    private String outputsIngestMode;
+
+    private final Object outputsCompletionLock = new Object();
+
+    // revision of the inputs of the runs whose cached archive was invalidated, by run, until
+    // the inputs of the run can no longer change
+    private final Map<UUID, Integer> inputsRevisions = new ConcurrentHashMap<>();
+
+    private final Object inputsArchiveLock = new Object();
+
+    private ExecutorService inputsArchiveBuilder;
+
+    private ExecutorService inputsArchiveWriter;
+
     public JsonNode provisionRunParameter(
         String runId,
         String name,
@@ -173,6 +241,10 @@ public class TaskProvisioningService {
             run.setState(TaskRunState.PROVISIONED);
             runRepository.saveAndFlush(run);
             log.info("ProvisionParameter: RUN PROVISIONED");
+
+            if (cacheInputsArchive) {
+                scheduleInputsArchive(run);
+            }
         } else {
             log.info("ProvisionParameter: RUN NOT PROVISIONED");
         }
@@ -292,9 +364,11 @@ public class TaskProvisioningService {
         Storage runStorage = new Storage("task-run-inputs-" + run.getId());
 
         try {
+            invalidateInputsArchive(run);
             StorageData inputProvisionFileData = inputForType
                 .getType()
                 .mapToStorageFileData(provision, run);
+            inputForType.getType().markCompressible(inputProvisionFileData);
             fileStorageHandler.saveStorageData(runStorage, inputProvisionFileData);
         } catch (FileStorageException e) {
             AppEngineError error = ErrorBuilder.buildParamRelatedError(
@@ -406,8 +480,246 @@ public class TaskProvisioningService {
     ) throws ProvisioningException, FileStorageException, IOException {
         log.info("Retrieving IO Archive: retrieving...");
         Run run = getRunIfValid(runId);
-        TaskRunState state = run.getState();
+        List<TypePersistence> provisions = getArchivedProvisions(run, type);
+
+        log.info("Retrieving IO Archive: zipping...");
+
+        String io = type.equals(ParameterType.INPUT) ? "inputs" : "outputs";
+        Path tempFile = FileHelper.createTempFile(io + "-archive-", runId);
+        ArchiveBuilder archive = buildArchive(run, type, provisions, ArchiveFormat.ZIP);
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            archive.writeTo(out);
+        }
+
+        log.info("Retrieving IO Archive: zipped...");
+
+        return new StorageData(tempFile.toFile());
+    }
+
+    public StreamingResponseBody streamIOZipArchive(
+        String runId,
+        ParameterType type
+    ) throws ProvisioningException {
+        return streamIOArchive(runId, type, ArchiveFormat.ZIP);
+    }
+
+    /**
+     * Prepares the IO archive of a run to be written straight to the response
+     *
+     * <p>The run and its provisions are checked before the response starts, the entries are
+     * then archived from the storage as the response is written, without a temporary archive.</p>
+     *
+     * @param runId the run identifier
+     * @param type the parameter type of the archived values
+     * @param format the format of the archive
+     * @return the body writing the archive
+     * @throws ProvisioningException if the run is not in a valid state or has no provisions
+     */
+    public StreamingResponseBody streamIOArchive(
+        String runId,
+        ParameterType type,
+        ArchiveFormat format
+    ) throws ProvisioningException {
+        log.info("Streaming IO Archive: preparing...");
+        Run run = getRunIfValid(runId);
+        List<TypePersistence> provisions = getArchivedProvisions(run, type);
+
+        return out -> {
+            log.info("Streaming IO Archive: archiving as {}...", format.getExtension());
+            // finish without closing, the response stream belongs to the container
+            try {
+                buildArchive(run, type, provisions, format).writeTo(out);
+            } catch (FileStorageException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            log.info("Streaming IO Archive: archived");
+        };
+    }
+
+    /* The archive is built in the background, it is zipped on the fly until it is built */
+    private void scheduleInputsArchive(Run run) {
+        int revision = inputsRevisions.getOrDefault(run.getId(), 0);
+        inputsArchiveBuilder().execute(() -> buildInputsArchive(run, revision));
+        log.info("Caching Inputs Archive: scheduled");
+    }
+
+    /**
+     * Builds the inputs archive of a provisioned run once, to serve it from the storage
+     *
+     * <p>The archive is piped straight into the archives storage of the run along with the hex
+     * encoded SHA-256 of its content. It is dropped if the inputs were provisioned again while
+     * it was built. If it cannot be built, the archive is zipped on the fly when requested.</p>
+     */
+    private void buildInputsArchive(Run run, int revision) {
+        log.info("Caching Inputs Archive: building...");
+        Storage storage = new Storage(ARCHIVES_STORAGE_PREFIX + run.getId());
+        try {
+            List<TypePersistence> provisions = getArchivedProvisions(run, ParameterType.INPUT);
+            ArchiveBuilder archive = buildArchive(
+                run,
+                ParameterType.INPUT,
+                provisions,
+                ArchiveFormat.ZIP
+            );
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Pipe pipe = Pipe.open();
+            // the storage closes its end of the pipe when it fails, failing the archive too
+            Future<Long> stored = inputsArchiveWriter().submit(() -> {
+                try (ReadableByteChannel source = pipe.source()) {
+                    return fileStorageHandler.writeStorageData(storage, INPUTS_ARCHIVE, source);
+                }
+            });
+            try (OutputStream out = new DigestOutputStream(
+                Channels.newOutputStream(pipe.sink()),
+                digest
+            )) {
+                archive.writeTo(out);
+            } catch (IOException e) {
+                stored.cancel(true);
+                throw e;
+            }
+            stored.get();
+
+            // the digest is written last, an archive without digest is never served
+            byte[] hex = HexFormat.of()
+                .formatHex(digest.digest())
+                .getBytes(StandardCharsets.US_ASCII);
+            synchronized (inputsArchiveLock) {
+                if (inputsRevisions.getOrDefault(run.getId(), 0) != revision) {
+                    log.info("Caching Inputs Archive: inputs changed, archive dropped");
+                    return;
+                }
+                fileStorageHandler.writeStorageData(
+                    storage,
+                    INPUTS_ARCHIVE + DIGEST_SUFFIX,
+                    Channels.newChannel(new ByteArrayInputStream(hex))
+                );
+            }
+            log.info("Caching Inputs Archive: built");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Caching Inputs Archive: interrupted");
+            invalidateInputsArchive(run);
+        } catch (ExecutionException e) {
+            log.warn(
+                "Caching Inputs Archive: failed to store archive: {}",
+                e.getCause().getMessage()
+            );
+            invalidateInputsArchive(run);
+        } catch (ProvisioningException | FileStorageException | IOException
+                 | NoSuchAlgorithmException e) {
+            log.warn("Caching Inputs Archive: failed to build archive: {}", e.getMessage());
+            invalidateInputsArchive(run);
+        }
+    }
+
+    private void invalidateInputsArchive(Run run) {
+        Storage storage = new Storage(ARCHIVES_STORAGE_PREFIX + run.getId());
+        synchronized (inputsArchiveLock) {
+            // an archive being built from the previous inputs is dropped once built
+            if (cacheInputsArchive) {
+                inputsRevisions.merge(run.getId(), 1, Integer::sum);
+            }
+            try {
+                if (fileStorageHandler.checkStorageExists(storage)) {
+                    fileStorageHandler.deleteStorage(storage);
+                    log.info("Caching Inputs Archive: invalidated");
+                }
+            } catch (FileStorageException e) {
+                log.warn(
+                    "Caching Inputs Archive: failed to invalidate archive: {}",
+                    e.getMessage()
+                );
+            }
+        }
+    }
+
+    /**
+     * Forgets the revision of the inputs of a run once they can no longer change
+     *
+     * <p>The revision is only dropped after the archives already scheduled are built, as they
+     * are checked against it.</p>
+     *
+     * @param runId the identifier of the run that left the provisioning states
+     */
+    public void forgetInputsRevision(UUID runId) {
+        if (cacheInputsArchive) {
+            inputsArchiveBuilder().execute(() -> inputsRevisions.remove(runId));
+        }
+    }
+
+    private synchronized ExecutorService inputsArchiveBuilder() {
+        if (inputsArchiveBuilder == null) {
+            inputsArchiveBuilder = Executors.newSingleThreadExecutor(
+                daemonThreads("inputs-archive-builder-")
+            );
+        }
+
+        return inputsArchiveBuilder;
+    }
+
+    private synchronized ExecutorService inputsArchiveWriter() {
+        if (inputsArchiveWriter == null) {
+            inputsArchiveWriter = Executors.newSingleThreadExecutor(
+                daemonThreads("inputs-archive-writer-")
+            );
+        }
+
+        return inputsArchiveWriter;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Finds the inputs archive built when the run was provisioned
+     *
+     * @param runId the run identifier
+     * @return the archive and its digest, or null if the archive has to be zipped on the fly
+     * @throws ProvisioningException if the run does not exist or is not provisioned yet
+     */
+    public CachedArchive retrieveCachedInputsArchive(String runId) throws ProvisioningException {
+        Run run = getRunIfValid(runId);
+        if (run.getState().equals(TaskRunState.CREATED)) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_INVALID_TASK_RUN_STATE);
+            throw new ProvisioningException(error);
+        }
+
+        Storage storage = new Storage(ARCHIVES_STORAGE_PREFIX + run.getId());
+        try {
+            if (!fileStorageHandler.checkStorageExists(storage)) {
+                return null;
+            }
 
+            File digest = fileStorageHandler.resolveStorageData(
+                new StorageData(INPUTS_ARCHIVE + DIGEST_SUFFIX, storage.getIdStorage())
+            ).peek().getData();
+            File archive = fileStorageHandler.resolveStorageData(
+                new StorageData(INPUTS_ARCHIVE, storage.getIdStorage())
+            ).peek().getData();
+            if (digest == null || archive == null) {
+                return null;
+            }
+
+            return new CachedArchive(archive, FileHelper.read(digest, StandardCharsets.US_ASCII));
+        } catch (FileStorageException e) {
+            log.info("Retrieving IO Archive: no cached archive: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private List<TypePersistence> getArchivedProvisions(
+        Run run,
+        ParameterType type
+    ) throws ProvisioningException {
+        TaskRunState state = run.getState();
         if ((type == ParameterType.INPUT && state.equals(TaskRunState.CREATED))
             || (type == ParameterType.OUTPUT && !state.equals(TaskRunState.FINISHED))) {
             AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_INVALID_TASK_RUN_STATE);
@@ -422,11 +734,20 @@ public class TaskProvisioningService {
             throw new ProvisioningException(error);
         }
 
-        log.info("Retrieving IO Archive: zipping...");
+        return provisions;
+    }
 
+    private ArchiveBuilder buildArchive(
+        Run run,
+        ParameterType type,
+        List<TypePersistence> provisions,
+        ArchiveFormat format
+    ) throws FileStorageException {
+        ArchiveBuilder archive = format.isTar()
+            ? new TarArchiveBuilder(format == ArchiveFormat.TAR_ZSTD, zstdLevel)
+            : new ZipArchiveBuilder(archiveParallelism, deflateLevel, archiveParallelMaxSize);
         String io = type.equals(ParameterType.INPUT) ? "inputs" : "outputs";
-        Path tempFile = Files.createTempFile(io + "-archive-", runId);
-        ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(tempFile));
+        Storage storage = new Storage("task-run-" + io + "-" + run.getId());
         for (TypePersistence provision : provisions) {
             // check that this type persistence is actually associated with a parameter
             Parameter parameter = getParameter(
@@ -436,41 +757,50 @@ public class TaskProvisioningService {
             if (Objects.isNull(parameter)) {
                 continue;
             }
-            StorageData provisionFileData = fileStorageHandler.readStorageData(
-                new StorageData(provision.getParameterName(), "task-run-" + io + "-" + run.getId())
-            );
-
-            for (StorageDataEntry current : provisionFileData.getEntryList()) {
-                String entryName;
-                if (current.getStorageDataType().equals(StorageDataType.FILE)) {
-                    entryName = current.getName();
-                } else {
-                    entryName = current.getName() + "/";
-                }
-                ZipEntry zipEntry = new ZipEntry(entryName);
-                zipOut.putNextEntry(zipEntry);
 
-                if (current.getStorageDataType().equals(StorageDataType.FILE)) {
-                    Files.copy(current.getData().toPath(), zipOut);
+            StorageData emptyFile = new StorageData(
+                provision.getParameterName(),
+                storage.getIdStorage()
+            );
+            try (Stream<StorageDataEntry> entries = fileStorageHandler
+                .streamStorageData(emptyFile)) {
+                Iterator<StorageDataEntry> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    addArchiveEntry(archive, parameter.getType(), iterator.next());
                 }
-
-                zipOut.closeEntry();
+            } catch (UncheckedIOException e) {
+                throw new FileStorageException("Failed to read " + provision.getParameterName());
             }
-
         }
-        zipOut.close();
 
-        log.info("Retrieving IO Archive: zipped...");
+        return archive;
+    }
 
-        return new StorageData(tempFile.toFile());
+    private static void addArchiveEntry(
+        ArchiveBuilder archive,
+        Type type,
+        StorageDataEntry current
+    ) {
+        if (!current.getStorageDataType().equals(StorageDataType.FILE)) {
+            archive.addDirectory(current.getName());
+            return;
+        }
+
+        // the archive builders decompress the files compressed at rest by the storage,
+        // already compressed content is stored as it is, deflating it again is wasted effort
+        Path data = current.getData().toPath();
+        archive.addFile(current.getName(), data, type.isPrecompressed(current));
     }
 
-    public List<TaskRunParameterValue> postOutputsZipArchive(
-        String runId,
-        String secret,
-        MultipartFile outputs
-    ) throws ProvisioningException {
-        log.info("Posting Outputs Archive: posting...");
+    /**
+     * Finds a run whose outputs may be posted by the scheduler
+     *
+     * @param runId the run identifier
+     * @param secret the secret shared with the scheduled task
+     * @return the run
+     * @throws ProvisioningException if the secret is wrong or the run is not being executed
+     */
+    public Run getRunAcceptingOutputs(String runId, String secret) throws ProvisioningException {
         Run run = getRunIfValid(runId);
         if (!run.getSecret().equals(secret)) {
             AppEngineError error = ErrorBuilder
@@ -481,6 +811,124 @@ public class TaskProvisioningService {
             AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_INVALID_TASK_RUN_STATE);
             throw new ProvisioningException(error);
         }
+
+        return run;
+    }
+
+    /**
+     * Provisions a single output of a run, without the outputs archive
+     *
+     * <p>The run is finished once all its declared outputs are provisioned. Collection outputs
+     * are made of several files and are only provisioned through the outputs archive.</p>
+     *
+     * @param runId the run identifier
+     * @param secret the secret shared with the scheduled task
+     * @param name the name of the output parameter
+     * @param value the output value, only read once the run and the output are checked
+     * @return the provisioned output
+     * @throws ProvisioningException if the output is unknown, is a collection or is invalid
+     * @throws IOException if the output value cannot be received
+     */
+    public TaskRunParameterValue provisionRunOutput(
+        String runId,
+        String secret,
+        String name,
+        InputStreamSource value
+    ) throws ProvisioningException, IOException {
+        log.info("Provisioning Output: provisioning...");
+        Run run = getRunAcceptingOutputs(runId, secret);
+        Parameter output = getParameter(name, ParameterType.OUTPUT, run);
+        if (output == null) {
+            log.info("Provisioning Output: output does not exist");
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_PARAMETER_DOES_NOT_EXIST,
+                new ParameterError(name)
+            );
+            throw new ProvisioningException(error);
+        }
+        if (output.getType() instanceof CollectionType) {
+            log.info("Provisioning Output: collection outputs are provisioned in the archive");
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_WRONG_PROVISION_STRUCTURE,
+                new ParameterError(name)
+            );
+            throw new ProvisioningException(error);
+        }
+
+        // the value is received once the sender is known to be the scheduled task
+        Path received = FileHelper.createTempFile(output.getName().replace("/", ""), null);
+        try {
+            try (InputStream in = value.getInputStream()) {
+                Files.copy(in, received, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            StorageData outputValue = new StorageData(received.toFile(), output.getName());
+            AppEngineError error = validateOutput(run, output, outputValue);
+            if (error != null) {
+                throw new ProvisioningException(error);
+            }
+            saveOutput(run, output, outputValue);
+            // the response is read from the file before the storage takes it over
+            TaskRunParameterValue provisioned = output.getType()
+                .createOutputProvisioningEndpointResponse(
+                    outputValue,
+                    run.getId(),
+                    output.getName()
+                );
+            storeOutputInFileStorage(run, output, outputValue);
+            log.info("Provisioning Output: provisioned");
+
+            finishRunIfAllOutputsProvisioned(run);
+
+            return provisioned;
+        } finally {
+            Files.deleteIfExists(received);
+        }
+    }
+
+    /* The outputs may be provisioned concurrently, the last one finishes the run */
+    private void finishRunIfAllOutputsProvisioned(Run run) throws ProvisioningException {
+        synchronized (outputsCompletionLock) {
+            Set<String> provisioned = typePersistenceRepository
+                .findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.OUTPUT)
+                .stream()
+                .map(TypePersistence::getParameterName)
+                .collect(Collectors.toSet());
+            boolean complete = run.getTask()
+                .getParameters()
+                .stream()
+                .filter(parameter -> parameter.getParameterType().equals(ParameterType.OUTPUT))
+                .allMatch(parameter -> provisioned.contains(parameter.getName()));
+            if (!complete) {
+                return;
+            }
+
+            Run current = getRunIfValid(run.getId().toString());
+            if (notInOneOfSchedulerManagedStates(current)) {
+                return;
+            }
+            current.setState(TaskRunState.FINISHED);
+            runRepository.saveAndFlush(current);
+            log.info("Provisioning Output: all outputs provisioned, updated Run state to FINISHED");
+        }
+    }
+
+    public List<TaskRunParameterValue> postOutputsZipArchive(
+        String runId,
+        String secret,
+        InputStreamSource outputs
+    ) throws ProvisioningException {
+        return postOutputsArchive(runId, secret, outputs, ArchiveFormat.ZIP);
+    }
+
+    public List<TaskRunParameterValue> postOutputsArchive(
+        String runId,
+        String secret,
+        InputStreamSource outputs,
+        ArchiveFormat format
+    ) throws ProvisioningException {
+        log.info("Posting Outputs Archive: posting {}...", format.getExtension());
+        Run run = getRunAcceptingOutputs(runId, secret);
         Set<Parameter> runTaskOutputs = run
             .getTask()
             .getParameters()
@@ -492,6 +940,7 @@ public class TaskProvisioningService {
         try {
             List<TaskRunParameterValue> outputList = processOutputFiles(
                 outputs,
+                format,
                 runTaskOutputs,
                 run
             );
@@ -504,62 +953,197 @@ public class TaskProvisioningService {
         }
     }
 
+    /**
+     * Ingests the outputs a task wrote straight to the outputs storage of its run
+     *
+     * <p>With shared volumes, the task pod has the run storages mounted and no archive is sent
+     * back. Once the pod terminates, the files found in the outputs storage are validated and
+     * saved where they are, then the run is finished. Any error fails the run.</p>
+     *
+     * @param runId the run whose pod terminated
+     * @return the provisioned outputs
+     * @throws ProvisioningException if the run is not running or its outputs are invalid
+     */
+    public List<TaskRunParameterValue> ingestOutputsInPlace(
+        String runId
+    ) throws ProvisioningException {
+        log.info("Ingesting Outputs In Place: ingesting...");
+        Run run = getRunIfValid(runId);
+        if (notInOneOfSchedulerManagedStates(run)) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_INVALID_TASK_RUN_STATE);
+            throw new ProvisioningException(error);
+        }
+
+        Set<Parameter> runTaskOutputs = run
+            .getTask()
+            .getParameters()
+            .stream()
+            .filter(parameter -> parameter.getParameterType().equals(ParameterType.OUTPUT))
+            .collect(Collectors.toSet());
+        try {
+            Map<String, StorageData> outputValues = readOutputsInPlace(run, runTaskOutputs);
+            List<TaskRunParameterValue> outputList = persistOutputs(
+                run,
+                runTaskOutputs,
+                outputValues,
+                Set.of(),
+                false
+            );
+            run.setState(TaskRunState.FINISHED);
+            runRepository.saveAndFlush(run);
+            log.info("Ingesting Outputs In Place: updated Run state to FINISHED");
+            return outputList;
+        } catch (ProvisioningException e) {
+            // no pod is left to send the outputs again
+            run.setState(TaskRunState.FAILED);
+            runRepository.saveAndFlush(run);
+            log.info("Ingesting Outputs In Place: updated Run state to FAILED");
+            throw e;
+        }
+    }
+
+    /* Groups the entries of the outputs storage by output, on the first segment of their name */
+    private Map<String, StorageData> readOutputsInPlace(
+        Run run,
+        Set<Parameter> runTaskOutputs
+    ) throws ProvisioningException {
+        Map<String, Parameter> outputsByName = runTaskOutputs
+            .stream()
+            .collect(Collectors.toMap(Parameter::getName, Function.identity()));
+        Map<String, StorageData> outputValues = new HashMap<>();
+        Map<String, StorageDataEntry> mainDirectories = new HashMap<>();
+        Map<String, StorageData> collectionContents = new HashMap<>();
+
+        // an empty name lists the whole storage, starting with its root
+        StorageData outputsStorage = new StorageData("", "task-run-outputs-" + run.getId());
+        try (Stream<StorageDataEntry> entries = fileStorageHandler
+            .streamStorageData(outputsStorage)) {
+            Iterator<StorageDataEntry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                StorageDataEntry entry = iterator.next();
+                String entryName = entry.getName();
+                if (entryName.isEmpty()) {
+                    continue;
+                }
+                int separator = entryName.indexOf('/');
+                String outputName = separator < 0
+                    ? entryName
+                    : entryName.substring(0, separator);
+                boolean isDirectory = entry.getStorageDataType() == StorageDataType.DIRECTORY;
+
+                Parameter currentOutput = outputsByName.get(outputName);
+                if (currentOutput == null || (separator > 0 && !isCollection(currentOutput))) {
+                    log.info("Ingesting Outputs In Place: output invalid (unknown output)");
+                    throw new ProvisioningException(
+                        ErrorBuilder.build(ErrorCode.INTERNAL_UNKNOWN_OUTPUT)
+                    );
+                }
+
+                if (!isDirectory && separator < 0) {
+                    outputValues.put(outputName, new StorageData(entry));
+                    continue;
+                }
+
+                // directories are named as in an archive, with a trailing separator
+                if (isDirectory) {
+                    entry.setName(entryName + "/");
+                }
+                if (isDirectory && separator < 0) {
+                    mainDirectories.put(outputName, entry);
+                } else {
+                    collectionContents
+                        .computeIfAbsent(outputName, name -> new StorageData())
+                        .add(entry);
+                }
+            }
+        } catch (FileStorageException | UncheckedIOException e) {
+            log.error("Ingesting Outputs In Place: failed to read outputs: {}", e.getMessage());
+            AppEngineError error = ErrorBuilder.build(ErrorCode.STORAGE_READING_FILE_FAILED);
+            throw new ProvisioningException(error);
+        }
+
+        for (Parameter currentOutput : runTaskOutputs) {
+            String outputName = currentOutput.getName();
+            if (isCollection(currentOutput)) {
+                outputValues.put(outputName, collectionValue(
+                    mainDirectories.get(outputName),
+                    collectionContents.get(outputName)
+                ));
+            }
+        }
+
+        return outputValues;
+    }
+
+    private static boolean isCollection(Parameter parameter) {
+        return parameter.getType() instanceof CollectionType;
+    }
+
     private List<TaskRunParameterValue> processOutputFiles(
-        MultipartFile outputs,
+        InputStreamSource outputs,
+        ArchiveFormat format,
         Set<Parameter> runTaskOutputs,
         Run run
     ) throws IOException, ProvisioningException {
-        // read files from the archive
-        try (ZipArchiveInputStream zais = new ZipArchiveInputStream(outputs.getInputStream())) {
-            log.info("Posting Outputs Archive: unzipped");
-            List<Parameter> remainingOutputs = new ArrayList<>(runTaskOutputs);
-            List<TaskRunParameterValue> taskRunParameterValues = new ArrayList<>();
-            List<StorageData> contentsOfZip = new ArrayList<>();
-            List<Parameter> remainingUnStoredOutputs = new ArrayList<>(runTaskOutputs);
-            boolean remainingOutputsAreCollections = true;
-            ZipEntry ze;
-            while ((ze = zais.getNextZipEntry()) != null) {
-                // look for output matching file name
-                Parameter currentOutput = null;
-                for (int i = 0; i < remainingOutputs.size(); i++) {
-                    currentOutput = remainingOutputs.get(i);
-                    if (currentOutput.getName().equals(ze.getName())) { // assuming it's a file
-                        remainingOutputs.remove(i);
-                        StorageData parameterZipEntryStorageData;
-                        String outputName = currentOutput.getName();
-                        Path tempFile = Files.createTempFile(outputName, null);
-                        Files.copy(zais, tempFile, StandardCopyOption.REPLACE_EXISTING);
-                        parameterZipEntryStorageData = new StorageData(
-                            tempFile.toFile(),
-                            outputName);
-                        contentsOfZip.add(parameterZipEntryStorageData);
-                        break;
-                    }
-                    // assuming it's the main directory of a collection parameter
-                    if (ze.getName().startsWith(currentOutput.getName() + "/")) {
-                        StorageData partialParameterZipEntryStorageData;
-                        if (ze.isDirectory()) {
-                            partialParameterZipEntryStorageData = new StorageData(ze.getName());
-                            contentsOfZip.add(partialParameterZipEntryStorageData);
-                        } else {
-                            Path tempFile = Files.createTempFile(ze
-                                .getName()
-                                .replace("/", ""), null);
-                            Files.copy(zais, tempFile, StandardCopyOption.REPLACE_EXISTING);
-                            partialParameterZipEntryStorageData = new StorageData(
-                                tempFile.toFile(),
-                                ze.getName());
-                            contentsOfZip.add(partialParameterZipEntryStorageData);
-                        }
+        // names of the files already written to the outputs storage, when pipelined
+        List<String> ingested = new ArrayList<>();
+        if (!isPipelinedIngestion()) {
+            return ingestOutputFiles(outputs, format, runTaskOutputs, run, ingested);
+        }
 
-                        break;
-                    }
+        Set<UUID> previousResults = typePersistenceRepository
+            .findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.OUTPUT)
+            .stream()
+            .map(TypePersistence::getId)
+            .collect(Collectors.toSet());
+        try {
+            return ingestOutputFiles(outputs, format, runTaskOutputs, run, ingested);
+        } catch (IOException | ProvisioningException | RuntimeException e) {
+            rollbackIngestedOutputs(run, ingested, previousResults);
+            throw e;
+        }
+    }
 
-                    currentOutput = null;
+    private List<TaskRunParameterValue> ingestOutputFiles(
+        InputStreamSource outputs,
+        ArchiveFormat format,
+        Set<Parameter> runTaskOutputs,
+        Run run,
+        List<String> ingested
+    ) throws IOException, ProvisioningException {
+        boolean pipelined = isPipelinedIngestion();
+        // read files from the archive
+        try (ArchiveInputStream<? extends ArchiveEntry> archive = format.openInputStream(
+            outputs.getInputStream()
+        )) {
+            log.info("Posting Outputs Archive: unzipped");
+            Map<String, Parameter> outputsByName = runTaskOutputs
+                .stream()
+                .collect(Collectors.toMap(Parameter::getName, Function.identity()));
+            // entries are grouped by output as they are read, on the first segment of their name
+            Map<String, StorageData> outputFiles = new HashMap<>();
+            Map<String, StorageDataEntry> mainDirectories = new HashMap<>();
+            Map<String, StorageData> collectionContents = new HashMap<>();
+            Set<String> validatedOutputs = new HashSet<>();
+            ArchiveEntry ze;
+            while ((ze = archive.getNextEntry()) != null) {
+                // a tar made from within the outputs folder has its entries under "./"
+                String entryName = ze.getName().startsWith("./")
+                    ? ze.getName().substring(2)
+                    : ze.getName();
+                if (entryName.isEmpty()) {
+                    continue;
                 }
+                int separator = entryName.indexOf('/');
+                boolean isFile = separator < 0;
+                String outputName = isFile ? entryName : entryName.substring(0, separator);
 
                 // there's a file that do not match any output parameter
-                if (currentOutput == null) {
+                // or a nested entry under an output that is not a collection
+                Parameter currentOutput = outputsByName.get(outputName);
+                if (currentOutput == null
+                    || (isFile && outputFiles.containsKey(outputName))
+                    || (!isFile && !isCollection(currentOutput))) {
                     AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UNKNOWN_OUTPUT);
                     log.info("Posting Outputs Archive: output invalid (unknown output)");
                     run.setState(TaskRunState.FAILED);
@@ -568,113 +1152,326 @@ public class TaskProvisioningService {
                     throw new ProvisioningException(error);
                 }
 
-            }
-
-            // check if remaining outputs are all collections
-            int numberOfCollections = remainingOutputs
-                .stream()
-                .filter(parameter -> parameter.getType() instanceof CollectionType)
-                .toList()
-                .size();
-            remainingOutputsAreCollections = numberOfCollections > 0
-                && numberOfCollections == remainingOutputs.size();
-
-            if (!remainingOutputs.isEmpty() && !remainingOutputsAreCollections) {
-                AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_MISSING_OUTPUTS);
-                log.info("Posting Outputs Archive: output invalid (missing outputs)");
-                run.setState(TaskRunState.FAILED);
-                runRepository.saveAndFlush(run);
-                log.info("Posting Outputs Archive: updated Run state to FAILED");
-                throw new ProvisioningException(error);
-            }
-
-            // a compaction step
-            // order by the length of name
-            // to make sure deeper files and directories are merged first
-            contentsOfZip = contentsOfZip
-                .stream()
-                .sorted((s1, s2) -> Integer.compare(
-                    s2.peek().getName().length(),
-                    s1.peek().getName().length())
-                )
-                .toList(); // now immutable
-            List<StorageData> sortedContentsOfZip = new CopyOnWriteArrayList<>(contentsOfZip);
-            // merge StorageData objects together
-            for (StorageData storageData : sortedContentsOfZip) {
-                for (StorageData compared : sortedContentsOfZip) {
-                    if (storageData.equals(compared)) {
-                        continue;
+                if (isFile) {
+                    StorageData value = new StorageData(
+                        ingestOutputEntry(run, currentOutput, entryName, archive, ingested),
+                        outputName
+                    );
+                    outputFiles.put(outputName, value);
+                    if (pipelined) {
+                        // a file output is complete once stored, it is validated right away
+                        AppEngineError error = validateOutput(run, currentOutput, value);
+                        if (error != null) {
+                            throw new ProvisioningException(
+                                ErrorBuilder.buildBatchError(List.of(error))
+                            );
+                        }
+                        validatedOutputs.add(outputName);
                     }
-                    if (compared
-                        .peek()
-                        .getName()
-                        .startsWith(storageData.peek().getName())) {
-                        storageData.merge(compared);
-                        sortedContentsOfZip.remove(compared);
+                    continue;
+                }
+
+                if (pipelined) {
+                    // an entry out of place is rejected before anything more is written
+                    AppEngineError error = validateCollectionEntry(
+                        currentOutput,
+                        entryName,
+                        ze.isDirectory()
+                    );
+                    if (error != null) {
+                        throw new ProvisioningException(
+                            ErrorBuilder.buildBatchError(List.of(error))
+                        );
                     }
                 }
-            }
 
-            // prepare error list just in case
-            List<AppEngineError> multipleErrors = new ArrayList<>();
+                StorageDataEntry entry;
+                if (ze.isDirectory()) {
+                    entry = new StorageDataEntry(entryName, StorageDataType.DIRECTORY);
+                } else {
+                    entry = new StorageDataEntry(
+                        ingestOutputEntry(run, currentOutput, entryName, archive, ingested),
+                        entryName,
+                        StorageDataType.FILE
+                    );
+                }
 
-            // processing of files
-            for (Parameter currentOutput : remainingUnStoredOutputs) {
-                Optional<StorageData> currentOutputStorageDataOptional = sortedContentsOfZip
-                    .stream()
-                    .filter(s -> s
-                    .peek()
-                    .getName()
-                    .equals(
-                    currentOutput.getType() instanceof CollectionType
-                    ? currentOutput.getName() + "/" : currentOutput.getName()))
-                    .findFirst();
-                StorageData currentOutputStorageData = null;
-                if (currentOutputStorageDataOptional.isPresent()) {
-                    currentOutputStorageData = currentOutputStorageDataOptional.get();
+                // the main directory of a collection parameter is the root of its value
+                if (ze.isDirectory() && separator == entryName.length() - 1) {
+                    mainDirectories.put(outputName, entry);
+                } else {
+                    collectionContents
+                        .computeIfAbsent(outputName, name -> new StorageData())
+                        .add(entry);
                 }
-                // read file
+            }
+
+            // a collection output is rooted at its main directory
+            Map<String, StorageData> outputValues = new HashMap<>(outputFiles);
+            for (Parameter currentOutput : runTaskOutputs) {
                 String outputName = currentOutput.getName();
-                // validate files/directories contents and structure
-                try {
-                    validateFiles(run, currentOutput, currentOutputStorageData);
-                } catch (TypeValidationException e) {
-                    log.info(
-                        "ProcessOutputFiles: "
-                        + "output provision is invalid value validation failed"
-                    );
-                    ParameterError parameterError = new ParameterError(outputName);
-                    AppEngineError error = ErrorBuilder.build(e.getErrorCode(), parameterError);
+                if (currentOutput.getType() instanceof CollectionType) {
+                    outputValues.put(outputName, collectionValue(
+                        mainDirectories.get(outputName),
+                        collectionContents.get(outputName)
+                    ));
+                }
+            }
+
+            List<TaskRunParameterValue> taskRunParameterValues = persistOutputs(
+                run,
+                runTaskOutputs,
+                outputValues,
+                validatedOutputs,
+                !pipelined
+            );
+            log.info("Posting Outputs Archive: posted");
+            return taskRunParameterValues;
+        }
+    }
+
+    /**
+     * Validates the outputs of a run and saves them
+     *
+     * @param outputValues the value of each output, a missing collection is mapped to null
+     * @param validatedOutputs the outputs already validated while they were read
+     * @param store whether the values are moved to the outputs storage, or are already there
+     * @return the provisioned outputs
+     */
+    private List<TaskRunParameterValue> persistOutputs(
+        Run run,
+        Set<Parameter> runTaskOutputs,
+        Map<String, StorageData> outputValues,
+        Set<String> validatedOutputs,
+        boolean store
+    ) throws ProvisioningException {
+        // check if the outputs without value are all collections
+        boolean missingOutputs = runTaskOutputs
+            .stream()
+            .filter(parameter -> outputValues.get(parameter.getName()) == null)
+            .anyMatch(parameter -> !(parameter.getType() instanceof CollectionType));
+        if (missingOutputs) {
+            AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_MISSING_OUTPUTS);
+            log.info("Posting Outputs Archive: output invalid (missing outputs)");
+            run.setState(TaskRunState.FAILED);
+            runRepository.saveAndFlush(run);
+            log.info("Posting Outputs Archive: updated Run state to FAILED");
+            throw new ProvisioningException(error);
+        }
+
+        // prepare error list just in case
+        List<AppEngineError> multipleErrors = new ArrayList<>();
+        List<TaskRunParameterValue> taskRunParameterValues = new ArrayList<>();
+
+        // processing of files
+        for (Parameter currentOutput : runTaskOutputs) {
+            String outputName = currentOutput.getName();
+            StorageData currentOutputStorageData = outputValues.get(outputName);
+            // validate files/directories contents and structure
+            if (!validatedOutputs.contains(outputName)) {
+                AppEngineError error = validateOutput(
+                    run,
+                    currentOutput,
+                    currentOutputStorageData
+                );
+                if (error != null) {
                     multipleErrors.add(error);
                     continue;
                 }
-                // saving to database does not care about the type
-                saveOutput(run, currentOutput, currentOutputStorageData);
-                // saving to the storage does not care about the type
-                storeOutputInFileStorage(run, currentOutputStorageData, outputName);
-                // based on parsed type build the response
-                taskRunParameterValues.add(currentOutput
-                    .getType()
-                    .createOutputProvisioningEndpointResponse(
-                    currentOutputStorageData,
-                    run.getId(),
-                    outputName)
-                );
             }
+            // saving to database does not care about the type
+            saveOutput(run, currentOutput, currentOutputStorageData);
+            // saving to the storage does not care about the type
+            if (store) {
+                storeOutputInFileStorage(run, currentOutput, currentOutputStorageData);
+            }
+            // based on parsed type build the response
+            taskRunParameterValues.add(currentOutput
+                .getType()
+                .createOutputProvisioningEndpointResponse(
+                currentOutputStorageData,
+                run.getId(),
+                outputName)
+            );
+        }
 
-            multipleErrors.addAll(checkAfterExecutionMatches(run));
+        multipleErrors.addAll(checkAfterExecutionMatches(run));
 
-            // throw multiple errors if exist
-            if (!multipleErrors.isEmpty()) {
-                AppEngineError error = ErrorBuilder.buildBatchError(multipleErrors);
-                throw new ProvisioningException(error);
+        // throw multiple errors if exist
+        if (!multipleErrors.isEmpty()) {
+            AppEngineError error = ErrorBuilder.buildBatchError(multipleErrors);
+            throw new ProvisioningException(error);
+        }
+
+        return taskRunParameterValues;
+    }
+
+    private boolean isPipelinedIngestion() {
+        return "pipelined".equalsIgnoreCase(outputsIngestMode);
+    }
+
+    /**
+     * Reads an output entry from the archive
+     *
+     * <p>The entry is staged to a temporary file, or written straight to the outputs storage
+     * when the ingestion is pipelined.</p>
+     *
+     * @return the file holding the content of the entry
+     */
+    private File ingestOutputEntry(
+        Run run,
+        Parameter output,
+        String entryName,
+        InputStream content,
+        List<String> ingested
+    ) throws IOException, ProvisioningException {
+        if (!isPipelinedIngestion()) {
+            Path tempFile = FileHelper.createTempFile(entryName.replace("/", ""), null);
+            Files.copy(content, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            return tempFile.toFile();
+        }
+
+        // the entry is marked as the type marks the values it stores
+        StorageDataEntry written = new StorageDataEntry(entryName, StorageDataType.FILE);
+        output.getType().markCompressible(new StorageData(written));
+        Storage outputsStorage = new Storage("task-run-outputs-" + run.getId());
+        try {
+            ingested.add(entryName);
+            // the channel is left open, the archive stream moves on to the next entry
+            fileStorageHandler.writeStorageData(
+                outputsStorage,
+                entryName,
+                Channels.newChannel(content),
+                written.isCompressible()
+            );
+            StorageData stored = fileStorageHandler.resolveStorageData(
+                new StorageData(entryName, outputsStorage.getIdStorage())
+            );
+            return stored.peek().getData();
+        } catch (FileStorageException e) {
+            run.setState(TaskRunState.FAILED);
+            runRepository.saveAndFlush(run);
+            log.info("Posting Outputs Archive: updated Run state to FAILED");
+            AppEngineError error = ErrorBuilder.buildParamRelatedError(
+                ErrorCode.STORAGE_STORING_INPUT_FAILED,
+                entryName,
+                e.getMessage()
+            );
+            throw new ProvisioningException(error);
+        }
+    }
+
+    /**
+     * Undoes a failed pipelined ingestion, no partial output is kept
+     *
+     * <p>The stored files and the directories of the collections are removed along with the
+     * results saved since the ingestion started, then the run is failed.</p>
+     *
+     * @param ingested the names of the files written to the outputs storage
+     * @param previousResults the results of the run saved before the ingestion
+     */
+    private void rollbackIngestedOutputs(
+        Run run,
+        List<String> ingested,
+        Set<UUID> previousResults
+    ) {
+        log.info("Posting Outputs Archive: rolling back {} stored files...", ingested.size());
+        String storageId = "task-run-outputs-" + run.getId();
+        // the directories created for a collection are under its main directory
+        Set<String> roots = new LinkedHashSet<>();
+        for (String name : ingested) {
+            int separator = name.indexOf('/');
+            StorageDataEntry entry = separator < 0
+                ? new StorageDataEntry(null, name, storageId, StorageDataType.FILE)
+                : new StorageDataEntry(
+                    null,
+                    storageId + "/" + name.substring(0, separator),
+                    storageId,
+                    StorageDataType.DIRECTORY
+                );
+            if (entry.getStorageDataType() == StorageDataType.DIRECTORY
+                && !roots.add(entry.getName())) {
+                continue;
             }
 
-            log.info("Posting Outputs Archive: posted");
-            return taskRunParameterValues;
+            try {
+                fileStorageHandler.deleteStorageData(new StorageData(entry));
+            } catch (FileStorageException e) {
+                log.warn("Posting Outputs Archive: failed to roll back {}: {}",
+                    name,
+                    e.getMessage());
+            }
+        }
+
+        List<TypePersistence> results = typePersistenceRepository
+            .findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.OUTPUT)
+            .stream()
+            .filter(result -> !previousResults.contains(result.getId()))
+            .toList();
+        typePersistenceRepository.deleteAll(results);
+        log.info("Posting Outputs Archive: rolled back");
+
+        if (!run.getState().equals(TaskRunState.FAILED)) {
+            run.setState(TaskRunState.FAILED);
+            runRepository.saveAndFlush(run);
+            log.info("Posting Outputs Archive: updated Run state to FAILED");
+        }
+    }
+
+    private AppEngineError validateOutput(
+        Run run,
+        Parameter currentOutput,
+        StorageData currentOutputStorageData
+    ) {
+        try {
+            validateFiles(run, currentOutput, currentOutputStorageData);
+            return null;
+        } catch (TypeValidationException e) {
+            log.info(
+                "ProcessOutputFiles: "
+                + "output provision is invalid value validation failed"
+            );
+            ParameterError parameterError = new ParameterError(currentOutput.getName());
+            return ErrorBuilder.build(e.getErrorCode(), parameterError);
         }
     }
 
+    /* Checks an entry of a collection output as soon as it is read from the archive */
+    private static AppEngineError validateCollectionEntry(
+        Parameter output,
+        String entryName,
+        boolean isDirectory
+    ) {
+        String relativeName = entryName.substring(entryName.indexOf('/') + 1);
+        if (!(output.getType() instanceof CollectionType collectionType)
+            || relativeName.isEmpty()) {
+            return null;
+        }
+
+        try {
+            collectionType.validateEntry(relativeName, isDirectory);
+            return null;
+        } catch (TypeValidationException e) {
+            log.info("Posting Outputs Archive: collection entry {} out of place", entryName);
+            ParameterError parameterError = new ParameterError(output.getName());
+            return ErrorBuilder.build(e.getErrorCode(), parameterError);
+        }
+    }
+
+    /* The value of a collection output, rooted at its main directory which comes first */
+    private static StorageData collectionValue(
+        StorageDataEntry mainDirectory,
+        StorageData contents
+    ) {
+        if (mainDirectory == null) {
+            return null;
+        }
+
+        StorageData value = new StorageData(mainDirectory);
+        value.merge(contents);
+        return value;
+    }
+
     private void validateFiles(
         Run run,
         Parameter currentOutput,
@@ -688,11 +1485,12 @@ public class TaskProvisioningService {
 
     private void storeOutputInFileStorage(
         Run run,
-        StorageData outputFileData,
-        String name
+        Parameter output,
+        StorageData outputFileData
     ) throws ProvisioningException {
         log.info("Posting Outputs Archive: storing in file storage...");
         Storage outputsStorage = new Storage("task-run-outputs-" + run.getId());
+        output.getType().markCompressible(outputFileData);
         try {
             fileStorageHandler.saveStorageData(outputsStorage, outputFileData);
         } catch (FileStorageException e) {
@@ -701,7 +1499,7 @@ public class TaskProvisioningService {
             log.info("Posting Outputs Archive: updated Run state to FAILED");
             AppEngineError error = ErrorBuilder.buildParamRelatedError(
                 ErrorCode.STORAGE_STORING_INPUT_FAILED,
-                name,
+                output.getName(),
                 e.getMessage()
             );
             throw new ProvisioningException(error);
@@ -784,7 +1582,7 @@ public class TaskProvisioningService {
 
         log.info("Get IO file from storage: read file " + parameterName + " from storage...");
         try {
-            data = fileStorageHandler.readStorageData(data);
+            data = fileStorageHandler.resolveStorageData(data);
         } catch (FileStorageException e) {
             AppEngineError error = ErrorBuilder.buildParamRelatedError(
                 ErrorCode.STORAGE_READING_FILE_FAILED,
@@ -815,7 +1613,7 @@ public class TaskProvisioningService {
 
         log.info("Get IO file from storage: read file " + collectionItem + " from storage...");
         try {
-            data = fileStorageHandler.readStorageData(data);
+            data = fileStorageHandler.resolveStorageData(data);
         } catch (FileStorageException e) {
             AppEngineError error = ErrorBuilder.buildParamRelatedError(
                 ErrorCode.STORAGE_READING_FILE_FAILED,
@@ -951,6 +1749,7 @@ public class TaskProvisioningService {
         run.setState(TaskRunState.QUEUING);
         runRepository.saveAndFlush(run);
         log.info("Running Task: updated Run state to QUEUING");
+        forgetInputsRevision(run.getId());
 
         StateAction action = createStateAction(run, TaskRunState.QUEUING);
         log.info("Running Task: scheduled");
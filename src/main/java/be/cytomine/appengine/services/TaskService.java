@@ -15,12 +15,15 @@ import com.fasterxml.jackson.databind.JsonNode;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.ObservableInputStream;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import be.cytomine.appengine.dto.handlers.filestorage.Storage;
 import be.cytomine.appengine.dto.handlers.registry.DockerImage;
+import be.cytomine.appengine.dto.handlers.registry.ImageLayer;
 import be.cytomine.appengine.dto.inputs.task.TaskAuthor;
 import be.cytomine.appengine.dto.inputs.task.TaskDescription;
 import be.cytomine.appengine.dto.inputs.task.TaskInput;
@@ -30,6 +33,7 @@ import be.cytomine.appengine.dto.inputs.task.TaskOutputFactory;
 import be.cytomine.appengine.dto.inputs.task.TaskRun;
 import be.cytomine.appengine.dto.inputs.task.UploadTaskArchive;
 import be.cytomine.appengine.dto.misc.TaskIdentifiers;
+import be.cytomine.appengine.dto.misc.TaskUploadProgress;
 import be.cytomine.appengine.dto.responses.errors.AppEngineError;
 import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
 import be.cytomine.appengine.dto.responses.errors.ErrorCode;
@@ -50,10 +54,12 @@ import be.cytomine.appengine.models.task.Parameter;
 import be.cytomine.appengine.models.task.ParameterType;
 import be.cytomine.appengine.models.task.Run;
 import be.cytomine.appengine.models.task.Task;
+import be.cytomine.appengine.models.task.TaskLayer;
 import be.cytomine.appengine.models.task.TypeFactory;
 import be.cytomine.appengine.repositories.RunRepository;
 import be.cytomine.appengine.repositories.TaskRepository;
 import be.cytomine.appengine.states.TaskRunState;
+import be.cytomine.appengine.states.TaskUploadState;
 import be.cytomine.appengine.utils.ArchiveUtils;
 
 @Slf4j
@@ -82,19 +88,60 @@ public class TaskService {
     @Value("${scheduler.task-resources.cpus}")
     private int defaultCpus;
 
+    @Value("${app-engine.bundles.image-push:file}")
+    private String imagePush = "file";
+
     @Transactional
     public Optional<TaskDescription> uploadTask(MultipartFile taskArchive)
         throws BundleArchiveException, TaskServiceException, ValidationException {
+        return uploadTask(taskArchive, new TaskUploadProgress());
+    }
+
+    /**
+     * Uploads a task, reporting the phase it reached and what was extracted and pushed so far
+     *
+     * @param taskArchive the task bundle
+     * @param progress updated as the upload goes on, left to the caller on failure
+     * @return the description of the uploaded task
+     */
+    @Transactional
+    public Optional<TaskDescription> uploadTask(
+        MultipartFile taskArchive,
+        TaskUploadProgress progress
+    ) throws BundleArchiveException, TaskServiceException, ValidationException {
 
         log.info("UploadTask: building archive...");
+        progress.setState(TaskUploadState.EXTRACTING);
+        if ("pipelined".equalsIgnoreCase(imagePush)) {
+            // the image stays in the bundle, which is kept open until the image is pushed
+            try (UploadTaskArchive uploadTaskArchive = archiveUtils.openArchive(taskArchive)) {
+                log.info("UploadTask: Archive is opened");
+                progress.addBytesExtracted(uploadTaskArchive.getDescriptorFile().length());
+                return registerTask(uploadTaskArchive, progress);
+            }
+        }
+
         UploadTaskArchive uploadTaskArchive = archiveUtils.readArchive(taskArchive);
         log.info("UploadTask: Archive is built");
+        progress.addBytesExtracted(
+            uploadTaskArchive.getDescriptorFile().length()
+            + uploadTaskArchive.getDockerImage().length()
+        );
+        return registerTask(uploadTaskArchive, progress);
+    }
+
+    private Optional<TaskDescription> registerTask(
+        UploadTaskArchive uploadTaskArchive,
+        TaskUploadProgress progress
+    ) throws TaskServiceException, ValidationException {
+        progress.setState(TaskUploadState.VALIDATING);
         validateTaskBundle(uploadTaskArchive);
         log.info("UploadTask: Archive validated");
 
         TaskIdentifiers taskIdentifiers = generateTaskIdentifiers(uploadTaskArchive);
         log.info("UploadTask: Task identifiers generated {}", taskIdentifiers);
 
+        progress.setState(TaskUploadState.STORING);
         Storage storage = new Storage(taskIdentifiers.getStorageIdentifier());
         try {
             fileStorageHandler.createStorage(storage);
@@ -127,10 +174,16 @@ public class TaskService {
         }
 
         log.info("UploadTask: pushing task image...");
-        DockerImage image =
-            new DockerImage(
-            uploadTaskArchive.getDockerImage(),
-            taskIdentifiers.getImageRegistryCompliantName());
+        progress.setState(TaskUploadState.PUSHING);
+        DockerImage image = uploadTaskArchive.isDockerImageStreamed()
+            ? new DockerImage(
+                extracting(uploadTaskArchive.getDockerImageSource(), progress),
+                taskIdentifiers.getImageRegistryCompliantName())
+            : new DockerImage(
+                uploadTaskArchive.getDockerImage(),
+                taskIdentifiers.getImageRegistryCompliantName());
+        image.setKnownLayers(getKnownLayers(uploadTaskArchive));
+        image.setPushListener(progress);
         try {
             registryHandler.pushImage(image);
         } catch (RegistryException e) {
@@ -145,16 +198,26 @@ public class TaskService {
                     .build(ErrorCode.REGISTRY_PUSHING_TASK_IMAGE_FAILED);
                 throw new TaskServiceException(error);
             }
+            // an invalid streamed image is only found out while it is pushed
+            if (e.getError() != null) {
+                throw new ValidationException(e.getError());
+            }
+            AppEngineError error = ErrorBuilder.build(ErrorCode.REGISTRY_PUSHING_TASK_IMAGE_FAILED);
+            throw new TaskServiceException(error);
         } finally {
-            uploadTaskArchive.getDockerImage().delete();
+            if (!uploadTaskArchive.isDockerImageStreamed()) {
+                uploadTaskArchive.getDockerImage().delete();
+            }
         }
         log.info("UploadTask: image pushed to registry");
 
         // save task info
+        progress.setState(TaskUploadState.SAVING);
         Task task = new Task();
         task.setIdentifier(taskIdentifiers.getLocalTaskIdentifier());
         task.setStorageReference(taskIdentifiers.getStorageIdentifier());
         task.setImageName(taskIdentifiers.getImageRegistryCompliantName());
+        task.setLayers(getTaskLayers(image));
         task.setName(uploadTaskArchive.getDescriptorFileAsJson().get("name").textValue());
         task.setNameShort(uploadTaskArchive
             .getDescriptorFileAsJson()
@@ -201,6 +264,69 @@ public class TaskService {
         return Optional.of(makeTaskDescription(task));
     }
 
+    /* The image read from the bundle while it is pushed, counted as extracted when read */
+    private static InputStreamSource extracting(
+        InputStreamSource imageSource,
+        TaskUploadProgress progress
+    ) {
+        return () -> {
+            ObservableInputStream image = new ObservableInputStream(imageSource.getInputStream());
+            image.add(new ObservableInputStream.Observer() {
+                @Override
+                public void data(int value) {
+                    progress.addBytesExtracted(1);
+                }
+
+                @Override
+                public void data(byte[] buffer, int offset, int length) {
+                    progress.addBytesExtracted(length);
+                }
+            });
+
+            return image;
+        };
+    }
+
+    /* The layers pushed with the other versions of the task, which share its image repository */
+    private List<ImageLayer> getKnownLayers(UploadTaskArchive uploadTaskArchive) {
+        String namespace = uploadTaskArchive.getDescriptorFileAsJson().get("namespace").textValue();
+        List<ImageLayer> knownLayers = new ArrayList<>();
+        for (Task version : taskRepository.findAllByNamespace(namespace)) {
+            if (Objects.isNull(version.getLayers())) {
+                continue;
+            }
+            for (TaskLayer layer : version.getLayers()) {
+                knownLayers.add(new ImageLayer(
+                    layer.getPath(),
+                    layer.getDigest(),
+                    layer.getSize(),
+                    layer.getMediaType()
+                ));
+            }
+        }
+        log.info("UploadTask: {} layers already pushed", knownLayers.size());
+
+        return knownLayers;
+    }
+
+    private List<TaskLayer> getTaskLayers(DockerImage image) {
+        List<TaskLayer> layers = new ArrayList<>();
+        if (Objects.isNull(image.getLayers())) {
+            return layers;
+        }
+
+        for (ImageLayer layer : image.getLayers()) {
+            layers.add(new TaskLayer(
+                layer.getPath(),
+                layer.getDigest(),
+                layer.getSize(),
+                layer.getMediaType()
+            ));
+        }
+
+        return layers;
+    }
+
     private List<Match> getMatches(UploadTaskArchive uploadTaskArchive, Set<Parameter> parameters) {
         log.info("UploadTask: looking for matches...");
         JsonNode descriptor = uploadTaskArchive.getDescriptorFileAsJson();
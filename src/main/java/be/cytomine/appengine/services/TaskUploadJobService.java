@@ -0,0 +1,247 @@
+package be.cytomine.appengine.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import be.cytomine.appengine.dto.inputs.task.TaskDescription;
+import be.cytomine.appengine.dto.misc.TaskUploadJob;
+import be.cytomine.appengine.dto.responses.errors.AppEngineError;
+import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
+import be.cytomine.appengine.dto.responses.errors.ErrorCode;
+import be.cytomine.appengine.exceptions.BundleArchiveException;
+import be.cytomine.appengine.exceptions.TaskServiceException;
+import be.cytomine.appengine.exceptions.ValidationException;
+import be.cytomine.appengine.states.TaskUploadState;
+
+/**
+ * Uploads the task bundles in the background, so that the upload request ends as soon as the
+ * bundle is received.
+ *
+ * <p>The bundle is moved out of the request, which deletes its files once it ends, and is
+ * uploaded by a bounded pool of workers. The jobs are kept in memory with their progress, and
+ * are forgotten some time after they ended.</p>
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class TaskUploadJobService {
+
+    private final TaskService taskService;
+
+    private final Map<String, TaskUploadJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${app-engine.task-uploads.workers:2}")
+    private int workers = 2;
+
+    @Value("${app-engine.task-uploads.queue-capacity:8}")
+    private int queueCapacity = 8;
+
+    @Value("${app-engine.task-uploads.path:/tmp/appengine/uploads/tasks}")
+    private String uploadsPath = "/tmp/appengine/uploads/tasks";
+
+    @Value("${app-engine.task-uploads.job-retention:PT1H}")
+    private Duration jobRetention = Duration.ofHours(1);
+
+    private ThreadPoolExecutor uploadExecutor;
+
+    /**
+     * Queues the upload of a task bundle
+     *
+     * @param taskArchive the task bundle, moved out of the request
+     * @return the queued job, empty if too many uploads are already waiting
+     * @throws TaskServiceException if the bundle cannot be moved out of the request
+     */
+    public Optional<TaskUploadJob> submit(MultipartFile taskArchive) throws TaskServiceException {
+        TaskUploadJob job = new TaskUploadJob();
+        job.setJobId(UUID.randomUUID().toString());
+        job.setCreatedAt(LocalDateTime.now());
+
+        Path bundle = Paths.get(uploadsPath, job.getJobId() + ".zip");
+        try {
+            Files.createDirectories(bundle.getParent());
+            taskArchive.transferTo(bundle);
+        } catch (IOException e) {
+            log.error("Task Upload Job: failed to receive bundle [{}]", e.getMessage());
+            throw new TaskServiceException(ErrorBuilder.buildServerError(e));
+        }
+
+        BundleFile bundleFile = new BundleFile(
+            bundle,
+            taskArchive.getOriginalFilename(),
+            taskArchive.getContentType()
+        );
+        jobs.put(job.getJobId(), job);
+        try {
+            uploadExecutor().execute(() -> run(job, bundleFile));
+        } catch (RejectedExecutionException e) {
+            log.info("Task Upload Job: queue full, rejecting job {}", job.getJobId());
+            jobs.remove(job.getJobId());
+            deleteBundle(bundle);
+            return Optional.empty();
+        }
+
+        log.info("Task Upload Job: queued job {}", job.getJobId());
+        return Optional.of(job);
+    }
+
+    public Optional<TaskUploadJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    @Scheduled(
+        fixedDelayString = "${app-engine.task-uploads.job-retention:PT1H}",
+        initialDelayString = "${app-engine.task-uploads.job-retention:PT1H}"
+    )
+    public void forgetEndedJobs() {
+        LocalDateTime before = LocalDateTime.now().minus(jobRetention);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null
+            && job.getFinishedAt().isBefore(before));
+    }
+
+    private void run(TaskUploadJob job, BundleFile bundle) {
+        log.info("Task Upload Job: running job {}...", job.getJobId());
+        try {
+            Optional<TaskDescription> task = taskService.uploadTask(bundle, job.getProgress());
+            if (task.isEmpty()) {
+                fail(job, ErrorBuilder.build(ErrorCode.STORAGE_STORING_TASK_DEFINITION_FAILED));
+                return;
+            }
+
+            job.setTask(task.get());
+            job.getProgress().setState(TaskUploadState.FINISHED);
+            log.info("Task Upload Job: job {} finished", job.getJobId());
+        } catch (BundleArchiveException e) {
+            fail(job, e.getError() == null ? ErrorBuilder.buildServerError(e) : e.getError());
+        } catch (TaskServiceException e) {
+            fail(job, e.getError() == null ? ErrorBuilder.buildServerError(e) : e.getError());
+        } catch (ValidationException e) {
+            fail(job, e.getError() == null ? ErrorBuilder.buildServerError(e) : e.getError());
+        } catch (RuntimeException e) {
+            log.error("Task Upload Job: job {} failed", job.getJobId(), e);
+            fail(job, ErrorBuilder.buildServerError(e));
+        } finally {
+            job.setFinishedAt(LocalDateTime.now());
+            deleteBundle(bundle.path);
+        }
+    }
+
+    private static void fail(TaskUploadJob job, AppEngineError error) {
+        log.info("Task Upload Job: job {} failed [{}]", job.getJobId(), error);
+        job.setError(error);
+        job.getProgress().setState(TaskUploadState.FAILED);
+    }
+
+    private static void deleteBundle(Path bundle) {
+        try {
+            Files.deleteIfExists(bundle);
+        } catch (IOException e) {
+            log.warn("Task Upload Job: failed to delete bundle {}", bundle);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor uploadExecutor() {
+        if (uploadExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            uploadExecutor = new ThreadPoolExecutor(
+                workers,
+                workers,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    String name = "task-uploader-" + threadCount.incrementAndGet();
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            );
+        }
+
+        return uploadExecutor;
+    }
+
+    /* A bundle received by an ended request, read as if it was still uploaded */
+    private static class BundleFile implements MultipartFile {
+
+        private final Path path;
+
+        private final String originalFilename;
+
+        private final String contentType;
+
+        BundleFile(Path path, String originalFilename, String contentType) {
+            this.path = path;
+            this.originalFilename = originalFilename;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public String getName() {
+            return "task";
+        }
+
+        @Override
+        public String getOriginalFilename() {
+            return originalFilename;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return getSize() == 0;
+        }
+
+        @Override
+        public long getSize() {
+            return path.toFile().length();
+        }
+
+        @Override
+        public byte[] getBytes() throws IOException {
+            return Files.readAllBytes(path);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Files.newInputStream(path);
+        }
+
+        @Override
+        public void transferTo(File dest) throws IOException {
+            transferTo(dest.toPath());
+        }
+
+        // moved like a multipart file already on disk, it can only be transferred once
+        @Override
+        public void transferTo(Path dest) throws IOException {
+            Files.move(path, dest, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -52,6 +52,11 @@ public class TaskValidationService {
     }
 
     public void validateImage(UploadTaskArchive task) throws ValidationException {
+        // a streamed image is read once, its manifest is checked while it is pushed
+        if (task.isDockerImageStreamed()) {
+            return;
+        }
+
         checkManifestJsonExists(task);
     }
 
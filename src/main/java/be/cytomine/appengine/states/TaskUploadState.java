@@ -0,0 +1,12 @@
+package be.cytomine.appengine.states;
+
+public enum TaskUploadState {
+    QUEUED,     // bundle received, waiting for an upload worker
+    EXTRACTING, // reading the descriptor and the image from the bundle
+    VALIDATING, // checking the descriptor and the image
+    STORING,    // storing the descriptor in the task storage
+    PUSHING,    // pushing the image to the registry
+    SAVING,     // saving the task definition
+    FINISHED,   // task uploaded, its description is available (terminal state)
+    FAILED      // an error stopped the upload (terminal state)
+}
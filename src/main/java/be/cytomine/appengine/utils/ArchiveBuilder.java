@@ -0,0 +1,34 @@
+package be.cytomine.appengine.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Builds an IO archive from the files of a storage, the entries being written in the order
+ * they were added.
+ */
+public interface ArchiveBuilder {
+
+    ArchiveBuilder addDirectory(String name);
+
+    /**
+     * Adds a file entry
+     *
+     * @param name the name of the entry
+     * @param data the file holding the content of the entry
+     * @param stored true if the content is already compressed and is to be written as it is
+     * @return this builder
+     */
+    ArchiveBuilder addFile(String name, Path data, boolean stored);
+
+    int size();
+
+    /**
+     * Writes the archive, finishing it without closing the output stream
+     *
+     * @param out the stream to write the archive to
+     * @throws IOException if an entry cannot be read or the archive cannot be written
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
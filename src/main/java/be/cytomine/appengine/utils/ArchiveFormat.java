@@ -0,0 +1,70 @@
+package be.cytomine.appengine.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+/**
+ * Formats of the IO archives exchanged with the scheduled tasks.
+ *
+ * <p>Unlike zip, whose central directory comes last, tar is written and read in a single
+ * forward pass, it can be piped between the storage and the task without a temporary file.</p>
+ */
+public enum ArchiveFormat {
+    ZIP("zip", "application/zip"),
+    TAR("tar", "application/x-tar"),
+    TAR_ZSTD("tar.zst", "application/zstd");
+
+    private final String extension;
+
+    private final String mediaType;
+
+    ArchiveFormat(String extension, String mediaType) {
+        this.extension = extension;
+        this.mediaType = mediaType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public boolean isTar() {
+        return this != ZIP;
+    }
+
+    /**
+     * Reads the entries of an archive in this format as they are received
+     *
+     * @param in the stream of the archive
+     * @return the stream of the entries
+     * @throws IOException if the compressed stream cannot be opened
+     */
+    public ArchiveInputStream<? extends ArchiveEntry> openInputStream(
+        InputStream in
+    ) throws IOException {
+        return switch (this) {
+            case ZIP -> new ZipArchiveInputStream(in);
+            case TAR -> new TarArchiveInputStream(in);
+            case TAR_ZSTD -> new TarArchiveInputStream(new ZstdCompressorInputStream(in));
+        };
+    }
+
+    public static ArchiveFormat fromExtension(String extension) {
+        for (ArchiveFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(extension)) {
+                return format;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown archive format: " + extension);
+    }
+}
@@ -1,15 +1,24 @@
 package be.cytomine.appengine.utils;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
-import java.util.zip.ZipEntry;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
-import org.apache.commons.io.IOUtils;
-import org.apache.tika.Tika;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -19,40 +28,271 @@ import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
 import be.cytomine.appengine.dto.responses.errors.ErrorCode;
 import be.cytomine.appengine.exceptions.BundleArchiveException;
 
+/**
+ * Extracts the descriptor and the image of a task bundle, reading the upload once.
+ *
+ * <p>The bundle is recognised from its first bytes. By default, it is spooled to disk, which
+ * moves the file the upload is already buffered in, and the two entries are read through the
+ * zip central directory. Otherwise, the upload is read in a single forward scan, in which the
+ * entries met before the descriptor are kept until it tells which one is the image.</p>
+ */
 @Slf4j
 @Component
 public class ArchiveUtils {
 
     private static final String DEFAULT_IMAGE_NAME = "image.tar";
 
-    private boolean isZip(MultipartFile archive) throws BundleArchiveException {
-        Tika tika = new Tika();
+    private static final String DESCRIPTOR_PATTERN = "descriptor\\.(yml|yaml)";
+
+    private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+    private static final byte[] EMPTY_ZIP_MAGIC = { 'P', 'K', 5, 6 };
+
+    @Value("${app-engine.bundles.read-mode:central-directory}")
+    private String readMode = "central-directory";
+
+    private static boolean isZip(byte[] magic) {
+        return Arrays.equals(magic, ZIP_MAGIC) || Arrays.equals(magic, EMPTY_ZIP_MAGIC);
+    }
+
+    private static boolean isDescriptor(String entryName) {
+        return entryName.toLowerCase().matches(DESCRIPTOR_PATTERN);
+    }
+
+    public UploadTaskArchive readArchive(MultipartFile archive) throws BundleArchiveException {
+        if (readMode.equalsIgnoreCase("forward-scan")) {
+            return readZipArchive(archive);
+        }
+
+        return readSpooledZipArchive(archive);
+    }
+
+    /**
+     * Reads a bundle in a single forward scan of the upload
+     *
+     * @param archive the uploaded bundle
+     * @return the descriptor and the image of the bundle, in temporary files
+     * @throws BundleArchiveException if the bundle is not a zip or misses an entry
+     */
+    public UploadTaskArchive readZipArchive(MultipartFile archive) throws BundleArchiveException {
+        log.info("ArchiveUtils: scanning archive...");
+        File descriptorData = null;
+        File imageData = null;
+        String imageName = null;
+        // the entries met before the descriptor, one of them may be the image
+        Map<String, File> candidates = new HashMap<>();
+
+        try (InputStream in = new BufferedInputStream(archive.getInputStream())) {
+            in.mark(ZIP_MAGIC.length);
+            byte[] magic = in.readNBytes(ZIP_MAGIC.length);
+            in.reset();
+            if (!isZip(magic)) {
+                AppEngineError error = ErrorBuilder.build(
+                    ErrorCode.INTERNAL_UNKNOWN_BUNDLE_ARCHIVE_FORAMT
+                );
+                throw new BundleArchiveException(error);
+            }
+
+            try (ZipArchiveInputStream zais = new ZipArchiveInputStream(in)) {
+                ZipArchiveEntry entry;
+                while ((entry = zais.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+
+                    String entryName = entry.getName();
+                    if (descriptorData == null && isDescriptor(entryName)) {
+                        descriptorData = extractDescriptor(zais);
+                        log.info("ArchiveUtils: descriptor file successfully extracted");
+
+                        imageName = normalize(getCustomImageName(descriptorData));
+                        log.info("ArchiveUtils: read image from location [{}]", imageName);
+                        imageData = candidates.remove(imageName.toLowerCase());
+                        deleteAll(candidates);
+                        if (imageData != null) {
+                            break;
+                        }
+                    } else if (descriptorData == null) {
+                        File candidate = extract(zais, "docker-image-", ".tar");
+                        candidates.put(entryName.toLowerCase(), candidate);
+                    } else if (entryName.equalsIgnoreCase(imageName)) {
+                        imageData = extract(zais, "docker-image-", ".tar");
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            deleteAll(candidates);
+            log.error("Failed to scan archive: {}", archive.getOriginalFilename(), e);
+            AppEngineError error = ErrorBuilder.build(descriptorData == null
+                ? ErrorCode.INTERNAL_DESCRIPTOR_EXTRACTION_FAILED
+                : ErrorCode.INTERNAL_DOCKER_IMAGE_EXTRACTION_FAILED);
+            throw new BundleArchiveException(error);
+        }
+
+        deleteAll(candidates);
+        return toUploadTaskArchive(archive, descriptorData, imageData, imageName);
+    }
+
+    /**
+     * Reads a bundle spooled to disk, through the zip central directory
+     *
+     * @param archive the uploaded bundle
+     * @return the descriptor and the image of the bundle, in temporary files
+     * @throws BundleArchiveException if the bundle is not a zip or misses an entry
+     */
+    public UploadTaskArchive readSpooledZipArchive(
+        MultipartFile archive
+    ) throws BundleArchiveException {
+        try (SpooledBundle bundle = spool(archive)) {
+            File descriptorData = readDescriptor(bundle.zip);
+            String imageName = descriptorData == null
+                ? null
+                : normalize(getCustomImageName(descriptorData));
+            ZipArchiveEntry imageEntry = findImage(bundle.zip, imageName);
+            File imageData = null;
+            if (imageEntry != null) {
+                try (InputStream in = bundle.zip.getInputStream(imageEntry)) {
+                    imageData = extract(in, "docker-image-", ".tar");
+                }
+            }
+
+            return toUploadTaskArchive(archive, descriptorData, imageData, imageName);
+        } catch (IOException e) {
+            log.error("Failed to read archive: {}", archive.getOriginalFilename(), e);
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_DOCKER_IMAGE_EXTRACTION_FAILED
+            );
+            throw new BundleArchiveException(error);
+        }
+    }
+
+    /**
+     * Opens a bundle spooled to disk, without extracting its image
+     *
+     * <p>Only the descriptor is extracted. The image is read from the spooled bundle when it is
+     * pushed, the bundle is deleted once the returned archive is closed.</p>
+     *
+     * @param archive the uploaded bundle
+     * @return the descriptor of the bundle, and the source of its image
+     * @throws BundleArchiveException if the bundle is not a zip or misses an entry
+     */
+    public UploadTaskArchive openArchive(MultipartFile archive) throws BundleArchiveException {
+        SpooledBundle bundle = spool(archive);
         try {
-            String type = tika.detect(archive.getInputStream());
-            log.info("ArchiveUtils: archive detected {}", type);
+            File descriptorData = readDescriptor(bundle.zip);
+            String imageName = descriptorData == null
+                ? null
+                : normalize(getCustomImageName(descriptorData));
+            ZipArchiveEntry imageEntry = findImage(bundle.zip, imageName);
+            if (descriptorData == null || imageEntry == null) {
+                bundle.close();
+                return toUploadTaskArchive(archive, descriptorData, null, imageName);
+            }
 
-            return type.equalsIgnoreCase("application/zip");
+            log.info("ArchiveUtils: image left in the bundle, read when pushed");
+            return new UploadTaskArchive(
+                descriptorData,
+                () -> bundle.zip.getInputStream(imageEntry),
+                bundle
+            );
         } catch (IOException e) {
+            bundle.close();
+            log.error("Failed to read archive: {}", archive.getOriginalFilename(), e);
             AppEngineError error = ErrorBuilder.build(
-                ErrorCode.INTERNAL_UNKNOWN_IMAGE_ARCHIVE_FORMAT
+                ErrorCode.INTERNAL_DESCRIPTOR_EXTRACTION_FAILED
             );
             throw new BundleArchiveException(error);
         }
     }
 
-    public UploadTaskArchive readArchive(MultipartFile archive) throws BundleArchiveException {
-        if (isZip(archive)) {
-            return readZipArchive(archive);
+    /* Moves the upload to a temporary file, and opens it as a zip once its magic is checked */
+    private SpooledBundle spool(MultipartFile archive) throws BundleArchiveException {
+        log.info("ArchiveUtils: spooling archive...");
+        Path directory = null;
+        try {
+            directory = FileHelper.createTempDirectory("bundle-");
+            // the container moves its own buffer file when the upload is already on disk
+            File bundle = directory.resolve("bundle.zip").toFile();
+            archive.transferTo(bundle);
+            log.info("ArchiveUtils: archive spooled");
+
+            byte[] magic;
+            try (InputStream in = Files.newInputStream(bundle.toPath())) {
+                magic = in.readNBytes(ZIP_MAGIC.length);
+            }
+            if (!isZip(magic)) {
+                FileUtils.deleteQuietly(directory.toFile());
+                AppEngineError error = ErrorBuilder.build(
+                    ErrorCode.INTERNAL_UNKNOWN_BUNDLE_ARCHIVE_FORAMT
+                );
+                throw new BundleArchiveException(error);
+            }
+
+            return new SpooledBundle(directory, ZipFile.builder().setFile(bundle).get());
+        } catch (IOException e) {
+            if (directory != null) {
+                FileUtils.deleteQuietly(directory.toFile());
+            }
+            log.error("Failed to spool archive: {}", archive.getOriginalFilename(), e);
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_DESCRIPTOR_EXTRACTION_FAILED
+            );
+            throw new BundleArchiveException(error);
+        }
+    }
+
+    private static File readDescriptor(ZipFile zip) throws IOException {
+        for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+            if (!entry.isDirectory() && isDescriptor(entry.getName())) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    log.info("ArchiveUtils: descriptor file successfully extracted");
+                    return extractDescriptor(in);
+                }
+            }
         }
 
-        AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_UNKNOWN_BUNDLE_ARCHIVE_FORAMT);
-        throw new BundleArchiveException(error);
+        return null;
     }
 
-    public UploadTaskArchive readZipArchive(MultipartFile archive) throws BundleArchiveException {
-        File descriptorData = getDescriptorFileFromZip(archive);
-        File imageData = getDockerImageFromZip(archive, getCustomImageName(descriptorData));
+    private static ZipArchiveEntry findImage(ZipFile zip, String imageName) {
+        if (imageName == null) {
+            return null;
+        }
+
+        log.info("ArchiveUtils: read image from location [{}]", imageName);
+        for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+            if (!entry.isDirectory() && entry.getName().equalsIgnoreCase(imageName)) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
 
+    private UploadTaskArchive toUploadTaskArchive(
+        MultipartFile archive,
+        File descriptorData,
+        File imageData,
+        String imageName
+    ) throws BundleArchiveException {
+        if (descriptorData == null) {
+            log.error("Descriptor file not found in archive: {}", archive.getOriginalFilename());
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_DESCRIPTOR_NOT_IN_DEFAULT_LOCATION
+            );
+            throw new BundleArchiveException(error);
+        }
+
+        if (imageData == null) {
+            log.error("Docker image not found in archive: {}", imageName);
+            AppEngineError error = ErrorBuilder.build(
+                ErrorCode.INTERNAL_DOCKER_IMAGE_TAR_NOT_FOUND
+            );
+            throw new BundleArchiveException(error);
+        }
+
+        log.info("ArchiveUtils: Image successfully extracted");
         return new UploadTaskArchive(descriptorData, imageData);
     }
 
@@ -74,81 +314,44 @@ public class ArchiveUtils {
         return DEFAULT_IMAGE_NAME;
     }
 
-    private File getDescriptorFileFromZip(MultipartFile archive) throws BundleArchiveException {
-        log.info("ArchiveUtils: parse descriptor file...");
+    private static String normalize(String imageName) {
+        return imageName.startsWith("/") ? imageName.substring(1) : imageName;
+    }
 
-        ZipEntry entry;
-        try (ZipArchiveInputStream zais = new ZipArchiveInputStream(archive.getInputStream())) {
-            while ((entry = zais.getNextZipEntry()) != null) {
-                if (entry.getName().toLowerCase().matches("descriptor\\.(yml|yaml)")) {
-                    File tempFile = Files.createTempFile("descriptor-", ".yaml").toFile();
-                    tempFile.deleteOnExit(); 
+    private static File extract(InputStream in, String prefix, String suffix) throws IOException {
+        File tempFile = FileHelper.createTempFile(prefix, suffix).toFile();
+        Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 
-                    try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                        zais.transferTo(fos);
-                    }
+        return tempFile;
+    }
 
-                    log.info("ArchiveUtils: descriptor file successfully extracted");
-                    return tempFile;
-                }
-            }
-        } catch (Exception e) {
-            log.error(
-                "Failed to extract descriptor file from archive: {}",
-                archive.getOriginalFilename(),
-                e
-            );
-            AppEngineError error = ErrorBuilder.build(
-                ErrorCode.INTERNAL_DESCRIPTOR_EXTRACTION_FAILED
-            );
-            throw new BundleArchiveException(error);
-        }
+    private static File extractDescriptor(InputStream in) throws IOException {
+        File descriptor = extract(in, "descriptor-", ".yaml");
+        descriptor.deleteOnExit();
 
-        log.error("Descriptor file not found in archive: {}", archive.getOriginalFilename());
-        AppEngineError error = ErrorBuilder.build(
-            ErrorCode.INTERNAL_DESCRIPTOR_NOT_IN_DEFAULT_LOCATION
-        );
-        throw new BundleArchiveException(error);
+        return descriptor;
     }
 
-    private File getDockerImageFromZip(
-        MultipartFile archive,
-        String imageName
-    ) throws BundleArchiveException {
-        log.info("ArchiveUtils: read image from location [{}]", imageName);
+    private static void deleteAll(Map<String, File> files) {
+        files.values().forEach(FileUtils::deleteQuietly);
+        files.clear();
+    }
 
-        if (imageName.startsWith("/")) {
-            imageName = imageName.substring(1);
-        }
+    private static class SpooledBundle implements Closeable {
 
-        ZipEntry entry;
-        try (ZipArchiveInputStream zais = new ZipArchiveInputStream(archive.getInputStream())) {
-            while ((entry = zais.getNextZipEntry()) != null) {
-                if (entry.getName().equalsIgnoreCase(imageName)) {
-                    File dockerImage = File.createTempFile("docker-image-", ".tar");
+        private final Path directory;
 
-                    try (FileOutputStream fos = new FileOutputStream(dockerImage)) {
-                        IOUtils.copyLarge(zais, fos);
-                    }
+        private final ZipFile zip;
 
-                    log.info("ArchiveUtils: Image successfully extracted");
-                    return dockerImage;
-                }
-            }
-        } catch (IOException e) {
-            log.error(
-                "Failed to extract Docker image from archive: {}",
-                archive.getOriginalFilename(),
-                e
-            );
-            AppEngineError error = ErrorBuilder.build(
-                ErrorCode.INTERNAL_DOCKER_IMAGE_EXTRACTION_FAILED
-            );
-            throw new BundleArchiveException(error);
+        SpooledBundle(Path directory, ZipFile zip) {
+            this.directory = directory;
+            this.zip = zip;
         }
 
-        log.error("Docker image not found in archive: {}", imageName);
-        AppEngineError error = ErrorBuilder.build(ErrorCode.INTERNAL_DOCKER_IMAGE_TAR_NOT_FOUND);
-        throw new BundleArchiveException(error);
+        @Override
+        public void close() {
+            ZipFile.closeQuietly(zip);
+            FileUtils.deleteQuietly(directory.toFile());
+        }
     }
 }
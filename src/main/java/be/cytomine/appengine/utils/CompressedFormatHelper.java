@@ -0,0 +1,227 @@
+package be.cytomine.appengine.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * Detects from their magic bytes the files whose content is already compressed.
+ *
+ * <p>Such files do not shrink when deflated, they are stored as they are in the archives. The
+ * TIFF and DICOM containers may hold raw pixels, their compression is read from the first IFD
+ * and from the transfer syntax of the file meta information respectively.</p>
+ */
+public class CompressedFormatHelper {
+
+    private static final int HEADER_SIZE = 132;
+
+    private static final int DICOM_META_SIZE = 4096;
+
+    private static final int TIFF_COMPRESSION_TAG = 259;
+
+    private static final int TIFF_NO_COMPRESSION = 1;
+
+    private static final int TIFF_MAX_TAGS = 512;
+
+    private static final byte[][] SIGNATURES = {
+        { (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // JPEG
+        { (byte) 0x89, 'P', 'N', 'G' }, // PNG
+        { 'G', 'I', 'F', '8' }, // GIF
+        { 0x00, 0x00, 0x00, 0x0c, 'j', 'P', ' ', ' ' }, // JPEG 2000
+        { (byte) 0xff, 0x4f, (byte) 0xff, 0x51 }, // JPEG 2000 codestream
+        { 'P', 'K', 0x03, 0x04 }, // zip
+        { 0x1f, (byte) 0x8b }, // gzip
+        { 'B', 'Z', 'h' }, // bzip2
+        { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 }, // xz
+        { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, // zstd
+        { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c }, // 7z
+    };
+
+    private static final Set<String> DICOM_LONG_VRS = Set.of(
+        "OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV", "UC", "UN", "UR", "UT", "UV"
+    );
+
+    private static final Set<String> DICOM_UNCOMPRESSED_SYNTAXES = Set.of(
+        "1.2.840.10008.1.2", // implicit VR little endian
+        "1.2.840.10008.1.2.1", // explicit VR little endian
+        "1.2.840.10008.1.2.2" // explicit VR big endian
+    );
+
+    /**
+     * Tells whether the content of a file is in a compressed format
+     *
+     * @param file the file to sniff
+     * @return true if the file is known to be compressed, false if it is not or cannot be read
+     */
+    public static boolean isCompressed(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            for (byte[] signature : SIGNATURES) {
+                if (startsWith(header, 0, signature)) {
+                    return true;
+                }
+            }
+
+            if (isRiff(header, "WEBP") || isIsoMedia(header)) {
+                return true;
+            }
+            if (isTiff(header)) {
+                return isCompressedTiff(channel, header);
+            }
+            if (startsWith(header, 128, "DICM".getBytes(StandardCharsets.US_ASCII))) {
+                return isCompressedDicom(channel);
+            }
+
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isRiff(ByteBuffer header, String form) {
+        return startsWith(header, 0, "RIFF".getBytes(StandardCharsets.US_ASCII))
+            && startsWith(header, 8, form.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /* HEIF, AVIF and the other ISO base media files start with a file type box */
+    private static boolean isIsoMedia(ByteBuffer header) {
+        return startsWith(header, 4, "ftyp".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static boolean isTiff(ByteBuffer header) {
+        if (header.limit() < 8) {
+            return false;
+        }
+
+        byte first = header.get(0);
+        if (first != header.get(1) || (first != 'I' && first != 'M')) {
+            return false;
+        }
+
+        header.order(first == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int version = header.getShort(2);
+        return version == 42 || (version == 43 && header.limit() >= 16);
+    }
+
+    /* Reads the compression tag of the first IFD, classic or BigTIFF */
+    private static boolean isCompressedTiff(
+        FileChannel channel,
+        ByteBuffer header
+    ) throws IOException {
+        ByteOrder order = header.order();
+        boolean big = header.getShort(2) == 43;
+        long ifd = big ? header.getLong(8) : Integer.toUnsignedLong(header.getInt(4));
+        if (ifd < 0) {
+            return false;
+        }
+
+        int countSize = big ? 8 : 2;
+        ByteBuffer count = read(channel, ifd, countSize).order(order);
+        if (count.limit() < countSize) {
+            return false;
+        }
+
+        long tags = big ? count.getLong(0) : Short.toUnsignedInt(count.getShort(0));
+        int tagSize = big ? 20 : 12;
+        int length = (int) Math.min(Math.max(tags, 0), TIFF_MAX_TAGS) * tagSize;
+        ByteBuffer entries = read(channel, ifd + countSize, length).order(order);
+        for (int offset = 0; offset + tagSize <= entries.limit(); offset += tagSize) {
+            if (Short.toUnsignedInt(entries.getShort(offset)) == TIFF_COMPRESSION_TAG) {
+                // the SHORT value is left-justified in the value field
+                int value = Short.toUnsignedInt(entries.getShort(offset + (big ? 12 : 8)));
+                return value != TIFF_NO_COMPRESSION;
+            }
+        }
+
+        // without compression tag, the image data is not compressed
+        return false;
+    }
+
+    /* Reads the transfer syntax from the explicit VR little endian file meta information */
+    private static boolean isCompressedDicom(FileChannel channel) throws IOException {
+        ByteBuffer meta = read(channel, HEADER_SIZE, DICOM_META_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        while (meta.remaining() >= 8) {
+            int group = Short.toUnsignedInt(meta.getShort());
+            int element = Short.toUnsignedInt(meta.getShort());
+            if (group != 0x0002) {
+                break;
+            }
+
+            String vr = new String(
+                new byte[] { meta.get(), meta.get() },
+                StandardCharsets.US_ASCII
+            );
+            long length;
+            if (DICOM_LONG_VRS.contains(vr)) {
+                if (meta.remaining() < 6) {
+                    break;
+                }
+                meta.getShort();
+                length = Integer.toUnsignedLong(meta.getInt());
+            } else {
+                length = Short.toUnsignedInt(meta.getShort());
+            }
+
+            if (length > meta.remaining()) {
+                break;
+            }
+
+            if (element == 0x0010) {
+                byte[] uid = new byte[(int) length];
+                meta.get(uid);
+                String syntax = new String(uid, StandardCharsets.US_ASCII)
+                    .replace("\0", "")
+                    .trim();
+                return !DICOM_UNCOMPRESSED_SYNTAXES.contains(syntax);
+            }
+
+            meta.position(meta.position() + (int) length);
+        }
+
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, byte[] signature) {
+        if (buffer.limit() < offset + signature.length) {
+            return false;
+        }
+
+        for (int i = 0; i < signature.length; i++) {
+            if (buffer.get(offset + i) != signature[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /* Reads up to length bytes at a position, fewer if the end of the file is reached */
+    private static ByteBuffer read(
+        FileChannel channel,
+        long position,
+        int length
+    ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                break;
+            }
+            offset += read;
+        }
+
+        return buffer.flip();
+    }
+}
@@ -3,13 +3,45 @@ package be.cytomine.appengine.utils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class FileHelper {
+
+    private static volatile Path tempDirectory;
+
+    /* Sets where the temporary files are created, the JVM temporary directory when not set */
+    public static void setTempDirectory(Path directory) {
+        tempDirectory = directory;
+    }
+
+    public static Path createTempFile(String prefix, String suffix) throws IOException {
+        Path directory = tempDirectory;
+        if (directory == null) {
+            return Files.createTempFile(prefix, suffix);
+        }
+
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, prefix, suffix);
+    }
+
+    public static Path createTempDirectory(String prefix) throws IOException {
+        Path directory = tempDirectory;
+        if (directory == null) {
+            return Files.createTempDirectory(prefix);
+        }
+
+        Files.createDirectories(directory);
+        return Files.createTempDirectory(directory, prefix);
+    }
+
     public static String read(File file, Charset charset) {
         try {
-            return Files.readString(file.toPath(), charset).trim();
+            try (InputStream in = GzipHelper.open(file.toPath())) {
+                return new String(in.readAllBytes(), charset).trim();
+            }
         } catch (IOException e) {
             throw new RuntimeException("Failed to read file content", e);
         }
@@ -17,7 +49,7 @@ public class FileHelper {
 
     public static File write(String filename, String suffix, byte[] content) {
         try {
-            File data = Files.createTempFile(filename, null).toFile();
+            File data = createTempFile(filename, null).toFile();
             try (FileOutputStream fos = new FileOutputStream(data)) {
                 fos.write(content);
             }
@@ -0,0 +1,124 @@
+package be.cytomine.appengine.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gzip encoding of the files compressed at rest by the storage.
+ *
+ * <p>The files are standard gzip members whose header carries an extra field identifying them,
+ * so that they are told apart from gzip files provisioned as they are. The header has no
+ * modification time, identical contents are thus compressed to identical files.</p>
+ */
+public class GzipHelper {
+
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, // gzip magic
+        0x08, // deflate
+        0x04, // extra field
+        0x00, 0x00, 0x00, 0x00, // no modification time
+        0x00, // no extra flags
+        (byte) 0xff, // unknown OS
+        0x04, 0x00, // extra field length
+        'C', 'Y', 0x00, 0x00 // empty subfield identifying the files compressed at rest
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static boolean isCompressed(Path file) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) < HEADER.length) {
+            return false;
+        }
+
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(in.readNBytes(HEADER.length), HEADER);
+        }
+    }
+
+    public static void compress(Path source, Path target) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+            out.write(HEADER);
+
+            CRC32 crc = new CRC32();
+            long size = 0;
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                deflated.write(buffer, 0, read);
+                size += read;
+            }
+            deflated.finish();
+
+            writeInt(out, crc.getValue());
+            writeInt(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static void decompress(Path source, Path target) throws IOException {
+        try (InputStream in = open(source)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if it was compressed at rest
+     *
+     * @param file the file to read
+     * @return the stream of the plain content of the file
+     * @throws IOException if the file cannot be opened
+     */
+    public static InputStream open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (!isCompressed(file)) {
+            return in;
+        }
+
+        try {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tells the size of the plain content of a file, decompressing it if it was compressed at rest
+     *
+     * @param file the file to measure
+     * @return the size of the plain content of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static long size(Path file) throws IOException {
+        if (!isCompressed(file)) {
+            return Files.size(file);
+        }
+
+        // the size in the trailer is modulo 4 GiB, the content is counted instead
+        try (InputStream in = open(file)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /* Writes the 4 low-order bytes of a value, in little-endian order */
+    private static void writeInt(OutputStream out, long value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >>> (8 * i)) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package be.cytomine.appengine.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Builds a tar archive from files, optionally compressed as a whole with zstd.
+ *
+ * <p>The entries are written one after the other in a single forward pass. Names longer than
+ * the ustar limit and files larger than 8 GiB are written with PAX headers. The stored flag of
+ * the entries is ignored, a compressed tar compresses every entry. Files compressed at rest by
+ * the storage are written with their plain content.</p>
+ */
+public class TarArchiveBuilder implements ArchiveBuilder {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean zstd;
+
+    private final int level;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public TarArchiveBuilder(boolean zstd, int level) {
+        this.zstd = zstd;
+        this.level = level;
+    }
+
+    @Override
+    public TarArchiveBuilder addDirectory(String name) {
+        entries.add(new Entry(name.endsWith("/") ? name : name + "/", null));
+        return this;
+    }
+
+    @Override
+    public TarArchiveBuilder addFile(String name, Path data, boolean stored) {
+        entries.add(new Entry(name, data));
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // closing the compressor ends its frame, the response stream is left open
+        OutputStream shielded = CloseShieldOutputStream.wrap(out);
+        try (OutputStream target = zstd
+            ? new ZstdCompressorOutputStream(shielded, level)
+            : shielded;
+             TarArchiveOutputStream tarOut = new TarArchiveOutputStream(target, BUFFER_SIZE)) {
+            tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            for (Entry entry : entries) {
+                TarArchiveEntry tarEntry = new TarArchiveEntry(entry.name);
+                if (entry.data != null) {
+                    tarEntry.setSize(GzipHelper.size(entry.data));
+                }
+                tarOut.putArchiveEntry(tarEntry);
+
+                if (entry.data != null) {
+                    try (InputStream in = GzipHelper.open(entry.data)) {
+                        in.transferTo(tarOut);
+                    }
+                }
+
+                tarOut.closeArchiveEntry();
+            }
+            tarOut.finish();
+        }
+        out.flush();
+    }
+
+    private static class Entry {
+
+        private final String name;
+
+        private final Path data;
+
+        Entry(String name, Path data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package be.cytomine.appengine.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+
+/**
+ * Builds a zip archive from files, compressing the entries on several threads.
+ *
+ * <p>With a parallelism above one, the entries are compressed in memory by each thread and
+ * then merged into the archive, in the order they were added. The archives whose files add up
+ * to more than the parallel limit are compressed one after the other straight into the
+ * archive instead, as with a parallelism of one, so that the memory held stays bounded.
+ * Entries flagged as stored are written without compression. Files compressed at rest by the
+ * storage are written with their plain content.</p>
+ */
+public class ZipArchiveBuilder implements ArchiveBuilder {
+
+    public static final long DEFAULT_PARALLEL_MAX_SIZE = 256L * 1024 * 1024;
+
+    private final int parallelism;
+
+    private final int level;
+
+    private final long parallelMaxSize;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public ZipArchiveBuilder(int parallelism, int level) {
+        this(parallelism, level, DEFAULT_PARALLEL_MAX_SIZE);
+    }
+
+    /**
+     * Creates a builder compressing in parallel the archives up to a size
+     *
+     * @param parallelism the number of threads compressing the entries
+     * @param level the deflate level of the entries
+     * @param parallelMaxSize the size on disk of the files above which the archive is
+     *     compressed on a single thread, as the compressed entries are held in memory
+     */
+    public ZipArchiveBuilder(int parallelism, int level, long parallelMaxSize) {
+        this.parallelism = Math.max(1, parallelism);
+        this.level = level;
+        this.parallelMaxSize = parallelMaxSize;
+    }
+
+    @Override
+    public ZipArchiveBuilder addDirectory(String name) {
+        entries.add(new Entry(name.endsWith("/") ? name : name + "/", null, true));
+        return this;
+    }
+
+    @Override
+    public ZipArchiveBuilder addFile(String name, Path data, boolean stored) {
+        entries.add(new Entry(name, data, stored));
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (parallelism == 1 || totalSize() > parallelMaxSize) {
+            writeSequentially(out);
+        } else {
+            writeInParallel(out);
+        }
+        out.flush();
+    }
+
+    private void writeSequentially(OutputStream out) throws IOException {
+        ZipOutputStream zipOut = new ZipOutputStream(out);
+        zipOut.setLevel(level);
+        for (Entry entry : entries) {
+            ZipEntry zipEntry = new ZipEntry(entry.name);
+            if (entry.data != null && entry.stored) {
+                // a stored entry has its size and checksum in its local header
+                long size = GzipHelper.size(entry.data);
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(size);
+                zipEntry.setCompressedSize(size);
+                zipEntry.setCrc(checksum(entry.data));
+            }
+            zipOut.putNextEntry(zipEntry);
+
+            if (entry.data != null) {
+                try (InputStream in = GzipHelper.open(entry.data)) {
+                    in.transferTo(zipOut);
+                }
+            }
+
+            zipOut.closeEntry();
+        }
+        zipOut.finish();
+    }
+
+    private void writeInParallel(OutputStream out) throws IOException {
+        ParallelScatterZipCreator creator = new ParallelScatterZipCreator(
+            newExecutor(),
+            InMemoryBackingStore::new,
+            level
+        );
+        for (Entry entry : entries) {
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.name);
+            zipEntry.setMethod(entry.stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            creator.addArchiveEntry(zipEntry, () -> open(entry.data));
+        }
+
+        // the creator shuts its executor down once the entries are compressed
+        ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(out);
+        try {
+            creator.writeTo(zipOut);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing the archive");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException unchecked
+                ? unchecked.getCause()
+                : e.getCause();
+            throw new IOException("Failed to compress the archive: " + cause.getMessage(), cause);
+        }
+        zipOut.finish();
+    }
+
+    /* The size of the files as stored, close to the size of their compressed entries */
+    private long totalSize() throws IOException {
+        long size = 0;
+        for (Entry entry : entries) {
+            if (entry.data != null) {
+                size += Files.size(entry.data);
+            }
+        }
+
+        return size;
+    }
+
+    private ExecutorService newExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "zip-builder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static InputStream open(Path data) {
+        if (data == null) {
+            return InputStream.nullInputStream();
+        }
+
+        try {
+            return GzipHelper.open(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long checksum(Path data) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = new CheckedInputStream(GzipHelper.open(data), crc)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+
+        return crc.getValue();
+    }
+
+    /* The entries compressed by a thread, kept until they are merged into the archive */
+    private static class InMemoryBackingStore implements ScatterGatherBackingStore {
+
+        private Buffer buffer = new Buffer();
+
+        @Override
+        public InputStream getInputStream() {
+            return buffer.toInputStream();
+        }
+
+        @Override
+        public void writeOut(byte[] data, int offset, int length) {
+            buffer.write(data, offset, length);
+        }
+
+        @Override
+        public void closeForWriting() {
+            // nothing to flush, the entries are already in memory
+        }
+
+        @Override
+        public void close() {
+            buffer = new Buffer();
+        }
+    }
+
+    /* Reads the written bytes back without copying them */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    private static class Entry {
+
+        private final String name;
+
+        private final Path data;
+
+        private final boolean stored;
+
+        Entry(String name, Path data, boolean stored) {
+            this.name = name;
+            this.data = data;
+            this.stored = stored;
+        }
+    }
+}
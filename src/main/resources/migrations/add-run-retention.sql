@@ -0,0 +1,5 @@
+ALTER TABLE public.run
+    ADD COLUMN IF NOT EXISTS inputs_purged_at timestamp(6) without time zone;
+
+ALTER TABLE public.run
+    ADD COLUMN IF NOT EXISTS outputs_purged_at timestamp(6) without time zone;
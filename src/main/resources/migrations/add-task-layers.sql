@@ -0,0 +1,21 @@
+CREATE TABLE IF NOT EXISTS public.task_layer (
+    id uuid NOT NULL,
+    created_date timestamp(6) without time zone,
+    last_modified_date timestamp(6) without time zone,
+    vrsn bigint,
+    path character varying(255),
+    digest character varying(255),
+    size bigint NOT NULL,
+    media_type character varying(255),
+    CONSTRAINT task_layer_pkey PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS public.task_layers (
+    task_identifier uuid NOT NULL,
+    layers_id uuid NOT NULL,
+    CONSTRAINT uk_task_layers_layers_id UNIQUE (layers_id),
+    CONSTRAINT fk_task_layers_task FOREIGN KEY (task_identifier)
+        REFERENCES public.task (identifier) ON DELETE CASCADE,
+    CONSTRAINT fk_task_layers_layer FOREIGN KEY (layers_id)
+        REFERENCES public.task_layer (id)
+);
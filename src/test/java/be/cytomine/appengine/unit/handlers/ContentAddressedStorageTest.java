@@ -0,0 +1,107 @@
+package be.cytomine.appengine.unit.handlers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import be.cytomine.appengine.dto.handlers.filestorage.Storage;
+import be.cytomine.appengine.exceptions.FileStorageException;
+import be.cytomine.appengine.handlers.StorageData;
+import be.cytomine.appengine.handlers.storage.impl.ContentAddressedStorageHandler;
+import be.cytomine.appengine.utils.FileHelper;
+
+public class ContentAddressedStorageTest {
+
+    @TempDir
+    private Path basePath;
+
+    private ContentAddressedStorageHandler storageHandler;
+
+    @BeforeEach
+    public void setUp() {
+        storageHandler = new ContentAddressedStorageHandler(basePath.toString());
+    }
+
+    private StorageData createData(String name, String content) throws IOException {
+        return new StorageData(
+            FileHelper.write(name, content.getBytes(StandardCharsets.UTF_8)),
+            name
+        );
+    }
+
+    @Test
+    @DisplayName("Testing identical contents are stored once")
+    public void identicalContentsShareTheSameBlob() throws IOException, FileStorageException {
+        Storage first = new Storage("task-run-inputs-first");
+        Storage second = new Storage("task-run-inputs-second");
+        storageHandler.createStorage(first);
+        storageHandler.createStorage(second);
+
+        storageHandler.saveStorageData(first, createData("image", "same content"));
+        storageHandler.saveStorageData(second, createData("image", "same content"));
+
+        Path firstFile = basePath.resolve("task-run-inputs-first/image");
+        Path secondFile = basePath.resolve("task-run-inputs-second/image");
+        Assertions.assertTrue(Files.isSameFile(firstFile, secondFile));
+        Assertions.assertEquals("same content", Files.readString(secondFile));
+    }
+
+    @Test
+    @DisplayName("Testing blobs are removed with their last reference")
+    public void blobIsRemovedWithLastReference() throws IOException, FileStorageException {
+        Storage first = new Storage("task-run-inputs-first");
+        Storage second = new Storage("task-run-inputs-second");
+        storageHandler.createStorage(first);
+        storageHandler.createStorage(second);
+        storageHandler.saveStorageData(first, createData("image", "shared content"));
+        storageHandler.saveStorageData(second, createData("image", "shared content"));
+
+        Path blob;
+        try (Stream<Path> blobs = Files.walk(basePath.resolve(".blobs"), 2)) {
+            blob = blobs.filter(Files::isRegularFile).findFirst().orElseThrow();
+        }
+        Assertions.assertEquals(blob, storageHandler.blobPath(blob.getFileName().toString()));
+
+        storageHandler.deleteStorage(first);
+        Assertions.assertTrue(Files.exists(blob));
+
+        storageHandler.deleteStorage(second);
+        Assertions.assertFalse(Files.exists(blob));
+    }
+
+    @Test
+    @DisplayName("Testing blobs are collected after the sweep in tombstone mode")
+    public void blobIsCollectedAfterSweepInTombstoneMode() throws Exception {
+        storageHandler.setDeleteMode("tombstone");
+        storageHandler.setSweepDelay(Duration.ofMillis(50));
+        Storage first = new Storage("task-run-inputs-first");
+        Storage second = new Storage("task-run-inputs-second");
+        storageHandler.createStorage(first);
+        storageHandler.createStorage(second);
+        storageHandler.saveStorageData(first, createData("image", "shared content"));
+        storageHandler.saveStorageData(second, createData("image", "shared content"));
+
+        Path blob;
+        try (Stream<Path> blobs = Files.walk(basePath.resolve(".blobs"), 2)) {
+            blob = blobs.filter(Files::isRegularFile).findFirst().orElseThrow();
+        }
+
+        storageHandler.deleteStorage(first);
+        storageHandler.deleteStorageData(new StorageData("image", second.getIdStorage()));
+        Assertions.assertFalse(Files.exists(basePath.resolve("task-run-inputs-second/image")));
+
+        for (int i = 0; i < 100 && Files.exists(blob); i++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertFalse(Files.exists(blob));
+    }
+}
@@ -0,0 +1,140 @@
+package be.cytomine.appengine.unit.handlers;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import be.cytomine.appengine.handlers.StorageData;
+import be.cytomine.appengine.handlers.StorageDataEntry;
+import be.cytomine.appengine.handlers.StorageDataType;
+
+public class StorageDataTest {
+
+    private StorageData collection;
+
+    @BeforeEach
+    public void setUp() {
+        collection = new StorageData();
+        collection.add(new StorageDataEntry("output/1/0", StorageDataType.FILE));
+        collection.add(new StorageDataEntry("output/", StorageDataType.DIRECTORY));
+        collection.add(new StorageDataEntry("output/array.yml", StorageDataType.FILE));
+        collection.add(new StorageDataEntry("output/0", StorageDataType.FILE));
+        collection.add(new StorageDataEntry("output/1/", StorageDataType.DIRECTORY));
+        collection.add(new StorageDataEntry("other", StorageDataType.FILE));
+    }
+
+    private static List<String> names(List<StorageDataEntry> entries) {
+        return entries.stream().map(StorageDataEntry::getName).toList();
+    }
+
+    @Test
+    @DisplayName("Testing entries are looked up by name")
+    public void entriesAreLookedUpByName() {
+        Assertions.assertEquals(6, collection.size());
+        Assertions.assertEquals("output/1/0", collection.peek().getName());
+        Assertions.assertEquals(StorageDataType.DIRECTORY, collection.get("output/1/").getStorageDataType());
+        Assertions.assertNull(collection.get("output/2"));
+    }
+
+    @Test
+    @DisplayName("Testing children are listed per path")
+    public void childrenAreListedPerPath() {
+        Assertions.assertEquals(List.of("output/", "other"), names(collection.children("")));
+        Assertions.assertEquals(
+            List.of("output/1/", "output/array.yml", "output/0"),
+            names(collection.children("output/"))
+        );
+        Assertions.assertEquals(List.of("output/1/0"), names(collection.children("output/1")));
+        Assertions.assertTrue(collection.children("other").isEmpty());
+    }
+
+    @Test
+    @DisplayName("Testing subtrees list parents before their children")
+    public void subtreeListsParentsFirst() {
+        List<String> subtree = names(collection.subtree("output"));
+
+        Assertions.assertEquals(5, subtree.size());
+        Assertions.assertEquals("output/", subtree.get(0));
+        Assertions.assertTrue(subtree.indexOf("output/1/") < subtree.indexOf("output/1/0"));
+        Assertions.assertFalse(subtree.contains("other"));
+    }
+
+    @Test
+    @DisplayName("Testing removed entries leave the hierarchy")
+    public void removedEntriesLeaveTheHierarchy() {
+        collection.removeIf(entry -> entry.getName().startsWith("output/1"));
+
+        Assertions.assertEquals(4, collection.size());
+        Assertions.assertEquals(
+            List.of("output/array.yml", "output/0"),
+            names(collection.children("output"))
+        );
+    }
+
+    @Test
+    @DisplayName("Testing entries are sorted from shallow to deep")
+    public void entriesAreSortedShallowToDeep() {
+        collection.sortShallowToDeep();
+
+        Assertions.assertEquals(
+            List.of("other", "output/", "output/array.yml", "output/0", "output/1/0", "output/1/"),
+            names(collection.getEntryList())
+        );
+        Assertions.assertEquals("other", collection.peek().getName());
+    }
+
+    @Test
+    @DisplayName("Testing entries with the same name are all kept")
+    public void entriesWithTheSameNameAreAppended() {
+        StorageDataEntry duplicate = new StorageDataEntry("output/0", StorageDataType.FILE);
+        collection.add(duplicate);
+
+        Assertions.assertEquals(7, collection.size());
+        Assertions.assertNotSame(duplicate, collection.get("output/0"));
+        Assertions.assertEquals(4, collection.children("output").size());
+
+        collection.remove("output/0");
+
+        Assertions.assertEquals(5, collection.size());
+        Assertions.assertNull(collection.get("output/0"));
+    }
+
+    @Test
+    @DisplayName("Testing renamed entries are indexed under their new name")
+    public void renamedEntriesAreReindexed() {
+        StorageDataEntry entry = collection.get("output/1/0");
+        collection.rename(entry, "output/2");
+
+        Assertions.assertSame(entry, collection.peek());
+        Assertions.assertNull(collection.get("output/1/0"));
+        Assertions.assertSame(entry, collection.get("output/2"));
+        Assertions.assertTrue(collection.children("output/1").isEmpty());
+        Assertions.assertEquals(
+            List.of("output/1/", "output/array.yml", "output/0", "output/2"),
+            names(collection.children("output"))
+        );
+    }
+
+    @Test
+    @DisplayName("Testing changes made through the entry list are indexed")
+    public void entryListChangesAreIndexed() {
+        List<StorageDataEntry> entries = collection.getEntryList();
+        entries.removeIf(entry -> entry.getName().startsWith("output/1"));
+        entries.add(0, new StorageDataEntry("output/2/0", StorageDataType.FILE));
+
+        Assertions.assertEquals(5, collection.size());
+        Assertions.assertNull(collection.get("output/1/"));
+        Assertions.assertEquals("output/2/0", collection.peek().getName());
+        Assertions.assertEquals(List.of("output/2/0"), names(collection.subtree("output/2")));
+
+        collection.sortShallowToDeep();
+
+        Assertions.assertEquals(
+            List.of("other", "output/", "output/array.yml", "output/0", "output/2/0"),
+            names(entries)
+        );
+    }
+}
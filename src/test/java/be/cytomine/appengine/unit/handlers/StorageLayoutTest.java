@@ -0,0 +1,93 @@
+package be.cytomine.appengine.unit.handlers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import be.cytomine.appengine.dto.handlers.filestorage.Storage;
+import be.cytomine.appengine.exceptions.FileStorageException;
+import be.cytomine.appengine.handlers.StorageData;
+import be.cytomine.appengine.handlers.storage.impl.FileSystemStorageHandler;
+import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.repositories.RunRepository;
+import be.cytomine.appengine.states.TaskRunState;
+import be.cytomine.appengine.utils.FileHelper;
+
+public class StorageLayoutTest {
+
+    @TempDir
+    private Path basePath;
+
+    @Test
+    @DisplayName("Testing storages are created under their hash prefix")
+    public void storageIsCreatedUnderHashPrefix() throws FileStorageException {
+        FileSystemStorageHandler storageHandler = new FileSystemStorageHandler(basePath.toString());
+        storageHandler.setLayout("sharded");
+
+        Storage storage = new Storage("task-run-inputs-sharded");
+        storageHandler.createStorage(storage);
+
+        Path sharded = storageHandler.shardedPath("task-run-inputs-sharded");
+        Assertions.assertEquals(basePath, sharded.getParent().getParent().getParent());
+        Assertions.assertTrue(Files.isDirectory(sharded));
+        Assertions.assertFalse(Files.exists(basePath.resolve("task-run-inputs-sharded")));
+        Assertions.assertTrue(storageHandler.checkStorageExists(storage));
+    }
+
+    @Test
+    @DisplayName("Testing flat storages stay reachable through the migration")
+    public void flatStorageIsMigrated() throws IOException, FileStorageException {
+        FileSystemStorageHandler flatHandler = new FileSystemStorageHandler(basePath.toString());
+        Storage storage = new Storage("task-run-outputs-flat");
+        flatHandler.createStorage(storage);
+        flatHandler.saveStorageData(
+            storage,
+            new StorageData(FileHelper.write("out", "out".getBytes(StandardCharsets.UTF_8)), "out")
+        );
+
+        FileSystemStorageHandler storageHandler = new FileSystemStorageHandler(basePath.toString());
+        storageHandler.setLayout("sharded");
+        Assertions.assertTrue(storageHandler.checkStorageExists(storage));
+
+        Assertions.assertEquals(0, storageHandler.migrateLayout());
+
+        Path sharded = storageHandler.shardedPath("task-run-outputs-flat");
+        Assertions.assertEquals("out", Files.readString(sharded.resolve("out")));
+        Assertions.assertFalse(Files.exists(basePath.resolve("task-run-outputs-flat")));
+        Assertions.assertTrue(storageHandler.checkStorageExists(storage));
+        Assertions.assertTrue(flatHandler.checkStorageExists(storage));
+    }
+
+    @Test
+    @DisplayName("Testing the storages of a run are migrated once the run is over")
+    public void runningStorageIsMigratedOnceOver() throws FileStorageException {
+        UUID runId = UUID.randomUUID();
+        Storage storage = new Storage("task-run-outputs-" + runId);
+        new FileSystemStorageHandler(basePath.toString()).createStorage(storage);
+
+        Run run = new Run(runId, TaskRunState.RUNNING, null);
+        RunRepository runRepository = Mockito.mock(RunRepository.class);
+        Mockito.when(runRepository.findById(runId)).thenReturn(Optional.of(run));
+        FileSystemStorageHandler storageHandler = new FileSystemStorageHandler(basePath.toString());
+        storageHandler.setLayout("sharded");
+        ReflectionTestUtils.setField(storageHandler, "runRepository", runRepository);
+
+        Assertions.assertEquals(1, storageHandler.migrateLayout());
+        Assertions.assertTrue(Files.isDirectory(basePath.resolve(storage.getIdStorage())));
+
+        run.setState(TaskRunState.FINISHED);
+        Assertions.assertEquals(0, storageHandler.migrateLayout());
+        Assertions.assertFalse(Files.exists(basePath.resolve(storage.getIdStorage())));
+        Assertions.assertTrue(Files.isDirectory(storageHandler.shardedPath(storage.getIdStorage())));
+    }
+}
@@ -1,13 +1,20 @@
 package be.cytomine.appengine.unit.handlers;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.AfterAll;
@@ -26,6 +33,7 @@ import be.cytomine.appengine.handlers.StorageDataType;
 import be.cytomine.appengine.handlers.StorageHandler;
 import be.cytomine.appengine.handlers.storage.impl.FileSystemStorageHandler;
 import be.cytomine.appengine.utils.FileHelper;
+import be.cytomine.appengine.utils.GzipHelper;
 
 public class StorageTest {
 
@@ -193,4 +201,194 @@ public class StorageTest {
         Assertions.assertTrue(Files.exists(randomPath));
         Assertions.assertTrue(Files.exists(orderedPath));
     }
+
+    @Test
+    @DisplayName("Testing successful file storage by moving the staged file")
+    public void successfulFileStorageDataMove() throws IOException, FileStorageException {
+        StorageHandler movingStorageHandler = new FileSystemStorageHandler(basePath, "move");
+        File staged = FileHelper.write("moved", "moved content".getBytes(StandardCharsets.UTF_8));
+
+        StorageData storageData = new StorageData(staged, "moved");
+        Storage dir = new Storage("main");
+        movingStorageHandler.createStorage(dir);
+        movingStorageHandler.saveStorageData(dir, storageData);
+
+        Path filePath = Paths.get(basePath, dir.getIdStorage(), "moved");
+        Assertions.assertTrue(Files.exists(filePath));
+        Assertions.assertFalse(staged.exists());
+        Assertions.assertEquals(filePath.toFile(), storageData.peek().getData());
+    }
+
+    @Test
+    @DisplayName("Testing successful storage data write and read through channels")
+    public void successfulChannelStorageDataRoundTrip() throws IOException, FileStorageException {
+        byte[] content = "streamed content".getBytes(StandardCharsets.UTF_8);
+        Storage dir = new Storage("main");
+
+        long written = storageHandler.writeStorageData(
+            dir,
+            "streamed/value",
+            Channels.newChannel(new ByteArrayInputStream(content))
+        );
+        Assertions.assertEquals(content.length, written);
+
+        try (SeekableByteChannel channel = storageHandler.openStorageData(dir, "streamed/value")) {
+            Assertions.assertEquals(content.length, channel.size());
+            channel.position(9);
+            ByteBuffer buffer = ByteBuffer.allocate(content.length);
+            channel.read(buffer);
+            Assertions.assertEquals("content", new String(buffer.array(), 0, buffer.position()));
+        }
+    }
+
+    @Test
+    @DisplayName("Testing failed parallel storage removes what was written")
+    public void failedParallelStorageDataSaveRollsBack() throws IOException {
+        FileSystemStorageHandler parallelStorageHandler = new FileSystemStorageHandler(basePath);
+        parallelStorageHandler.setWriteMode("parallel");
+        parallelStorageHandler.setWriteParallelism(2);
+
+        StorageData collection = new StorageData();
+        collection.add(new StorageDataEntry("parallel", StorageDataType.DIRECTORY));
+        for (int i = 0; i < 8; i++) {
+            collection.add(new StorageDataEntry(
+                FileHelper.write("item" + i, ("item " + i).getBytes(StandardCharsets.UTF_8)),
+                "parallel/" + i,
+                StorageDataType.FILE
+            ));
+        }
+        collection.add(new StorageDataEntry(
+            new File(basePath, "missing"),
+            "parallel/missing",
+            StorageDataType.FILE
+        ));
+
+        Storage dir = new Storage("main");
+        Assertions.assertThrows(
+            FileStorageException.class,
+            () -> parallelStorageHandler.saveStorageData(dir, collection)
+        );
+        Assertions.assertFalse(Files.exists(Paths.get(basePath, "main", "parallel")));
+    }
+
+    @Test
+    @DisplayName("Testing storage deletion through a tombstone")
+    public void successfulTombstoneStorageDelete() throws Exception {
+        FileSystemStorageHandler tombstoneStorageHandler = new FileSystemStorageHandler(basePath);
+        tombstoneStorageHandler.setDeleteMode("tombstone");
+        tombstoneStorageHandler.setSweepDelay(Duration.ofMillis(50));
+
+        Storage dir = new Storage("tombstoned");
+        tombstoneStorageHandler.createStorage(dir);
+        tombstoneStorageHandler.saveStorageData(
+            dir,
+            new StorageData(FileHelper.write("a", "a".getBytes(StandardCharsets.UTF_8)), "a")
+        );
+
+        tombstoneStorageHandler.deleteStorage(dir);
+        Assertions.assertFalse(tombstoneStorageHandler.checkStorageExists(dir));
+
+        Path tombstones = Paths.get(basePath, ".tombstones");
+        for (int i = 0; i < 100 && !isEmptyDirectory(tombstones); i++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(isEmptyDirectory(tombstones));
+    }
+
+    private static boolean isEmptyDirectory(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.findAny().isEmpty();
+        }
+    }
+
+    @Test
+    @DisplayName("Testing lazy storage data read and single file resolution")
+    public void successfulLazyStorageDataRead() throws IOException, FileStorageException {
+        StorageData collection = new StorageData();
+        collection.add(new StorageDataEntry("lazy", StorageDataType.DIRECTORY));
+        collection.add(new StorageDataEntry(
+            FileHelper.write("item", "item".getBytes(StandardCharsets.UTF_8)),
+            "lazy/0",
+            StorageDataType.FILE
+        ));
+        Storage dir = new Storage("main");
+        storageHandler.saveStorageData(dir, collection);
+
+        List<String> names;
+        try (Stream<StorageDataEntry> entries = storageHandler.streamStorageData(
+            new StorageData("lazy", dir.getIdStorage()))) {
+            names = entries.map(StorageDataEntry::getName).toList();
+        }
+        Assertions.assertEquals(List.of("lazy", "lazy/0"), names);
+
+        StorageData item = storageHandler.resolveStorageData(
+            new StorageData("lazy/0", dir.getIdStorage())
+        );
+        Assertions.assertEquals(1, item.size());
+        Assertions.assertEquals(StorageDataType.FILE, item.peek().getStorageDataType());
+        Assertions.assertEquals(
+            "item",
+            FileHelper.read(item.peek().getData(), StandardCharsets.UTF_8)
+        );
+    }
+
+    @Test
+    @DisplayName("Testing text entries are compressed at rest and read back transparently")
+    public void successfulCompressedStorageDataSave() throws IOException, FileStorageException {
+        FileSystemStorageHandler compressingStorageHandler = new FileSystemStorageHandler(basePath);
+        compressingStorageHandler.setCompression(true);
+        compressingStorageHandler.setCompressionMinSize(0);
+
+        String content = "{\"type\": \"FeatureCollection\", \"features\": []}".repeat(100);
+        StorageDataEntry geometry = new StorageDataEntry(
+            FileHelper.write("geometry", content.getBytes(StandardCharsets.UTF_8)),
+            "geometry",
+            StorageDataType.FILE
+        );
+        geometry.setCompressible(true);
+        Storage dir = new Storage("main");
+        compressingStorageHandler.saveStorageData(dir, new StorageData(geometry));
+
+        Path stored = Paths.get(basePath, "main", "geometry");
+        Assertions.assertTrue(GzipHelper.isCompressed(stored));
+        Assertions.assertTrue(Files.size(stored) < content.length());
+        Assertions.assertEquals(content, FileHelper.read(stored.toFile(), StandardCharsets.UTF_8));
+
+        StorageData read = storageHandler.resolveStorageData(
+            new StorageData("geometry", dir.getIdStorage())
+        );
+        // the stored file is read in place, without a decompressed copy
+        Assertions.assertEquals(stored, read.peek().getData().toPath());
+        Assertions.assertEquals(
+            content,
+            FileHelper.read(read.peek().getData(), StandardCharsets.UTF_8)
+        );
+        Assertions.assertEquals(content.length(), GzipHelper.size(stored));
+    }
+
+    @Test
+    @DisplayName("Testing compressible entries written through channels are compressed at rest")
+    public void successfulCompressedChannelStorageDataWrite()
+        throws IOException, FileStorageException {
+        FileSystemStorageHandler compressingStorageHandler = new FileSystemStorageHandler(basePath);
+        compressingStorageHandler.setCompression(true);
+        compressingStorageHandler.setCompressionMinSize(0);
+
+        String content = "42\n".repeat(1000);
+        Storage dir = new Storage("main");
+        long written = compressingStorageHandler.writeStorageData(
+            dir,
+            "streamed/text",
+            Channels.newChannel(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))),
+            true
+        );
+
+        Path stored = Paths.get(basePath, "main", "streamed", "text");
+        Assertions.assertEquals(content.length(), written);
+        Assertions.assertTrue(GzipHelper.isCompressed(stored));
+        Assertions.assertEquals(
+            content.trim(),
+            FileHelper.read(stored.toFile(), StandardCharsets.UTF_8)
+        );
+    }
 }
@@ -0,0 +1,383 @@
+package be.cytomine.appengine.unit.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import be.cytomine.appengine.dto.handlers.registry.ImageLayer;
+import be.cytomine.appengine.dto.handlers.registry.ImagePushListener;
+import be.cytomine.appengine.dto.misc.TaskUploadProgress;
+import be.cytomine.appengine.handlers.registry.impl.utils.RegistryApiClient;
+import be.cytomine.appengine.handlers.registry.impl.utils.StreamingImagePusher;
+import be.cytomine.appengine.utils.FakeRegistry;
+
+public class StreamingImagePusherTest {
+
+    @TempDir
+    private Path tempDir;
+
+    private static final String IMAGE_MANIFEST = "[{\"Config\":\"config.json\","
+        + "\"RepoTags\":[\"namespace/task:1.0.0\"],"
+        + "\"Layers\":[\"large/layer.tar\",\"small/layer.tar\"]}]";
+
+    @Test
+    @DisplayName("Testing an image is pushed from its tar in a single pass")
+    public void imageIsPushedWhileRead() throws Exception {
+        byte[] large = new byte[3 * 1024 * 1024];
+        new Random(42).nextBytes(large);
+        byte[] small = "small layer".getBytes(StandardCharsets.UTF_8);
+        byte[] config = "{\"architecture\":\"amd64\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] image = imageTar(
+            "large/layer.tar", large,
+            "small/layer.tar", small,
+            "config.json", config,
+            "manifest.json", IMAGE_MANIFEST.getBytes(StandardCharsets.UTF_8)
+        );
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), null, null)
+            );
+            pusher.push(new ByteArrayInputStream(image), "namespace/task:1.0.0");
+
+            byte[] pushed = registry.getManifest("namespace/task", "1.0.0");
+            Assertions.assertNotNull(pushed);
+
+            JsonNode manifest = new ObjectMapper().readTree(pushed);
+            Assertions.assertEquals(
+                FakeRegistry.digest(config),
+                manifest.at("/config/digest").asText()
+            );
+            Assertions.assertEquals(2, manifest.path("layers").size());
+            Assertions.assertEquals(
+                FakeRegistry.digest(large),
+                manifest.at("/layers/0/digest").asText()
+            );
+            Assertions.assertEquals(large.length, manifest.at("/layers/0/size").asLong());
+            Assertions.assertEquals(
+                FakeRegistry.digest(small),
+                manifest.at("/layers/1/digest").asText()
+            );
+            Assertions.assertArrayEquals(
+                large,
+                registry.getBlobs().get(FakeRegistry.digest(large))
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Testing an image without manifest is not pushed")
+    public void imageWithoutManifestIsRejected() throws Exception {
+        byte[] image = imageTar(
+            "config.json", "{}".getBytes(StandardCharsets.UTF_8)
+        );
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), null, null)
+            );
+
+            Assertions.assertThrows(
+                NoSuchFileException.class,
+                () -> pusher.push(new ByteArrayInputStream(image), "namespace/task:1.0.0")
+            );
+            Assertions.assertNull(registry.getManifest("namespace/task", "1.0.0"));
+        }
+    }
+
+    @Test
+    @DisplayName("Testing only the changed layers of a new image version are uploaded")
+    public void knownLayersAreSkipped() throws Exception {
+        byte[] base = new byte[2 * 1024 * 1024];
+        new Random(1).nextBytes(base);
+        byte[] top = new byte[2 * 1024 * 1024];
+        new Random(2).nextBytes(top);
+        byte[] changedTop = new byte[2 * 1024 * 1024];
+        new Random(3).nextBytes(changedTop);
+        byte[] manifest = ("[{\"Config\":\"config.json\","
+            + "\"Layers\":[\"base/layer.tar\",\"top/layer.tar\"]}]")
+            .getBytes(StandardCharsets.UTF_8);
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), null, null)
+            );
+            List<ImageLayer> layers = pusher.push(
+                new ByteArrayInputStream(imageTar(
+                    "base/layer.tar", base,
+                    "top/layer.tar", top,
+                    "config.json", "{\"v\":1}".getBytes(StandardCharsets.UTF_8),
+                    "manifest.json", manifest
+                )),
+                "namespace/task:1.0.0"
+            );
+            Assertions.assertEquals(3, registry.getBlobUploads());
+
+            // the base layer is known from the first version, the top one has changed
+            Map<String, ImageLayer> knownLayers = new HashMap<>();
+            knownLayers.put("base/layer.tar", layers.get(0));
+            pusher.push(
+                new ByteArrayInputStream(imageTar(
+                    "base/layer.tar", base,
+                    "top/layer.tar", changedTop,
+                    "config.json", "{\"v\":2}".getBytes(StandardCharsets.UTF_8),
+                    "manifest.json", manifest
+                )),
+                "namespace/task:1.0.1",
+                knownLayers,
+                ImagePushListener.NONE
+            );
+
+            Assertions.assertEquals(5, registry.getBlobUploads());
+            JsonNode pushed = new ObjectMapper().readTree(
+                registry.getManifest("namespace/task", "1.0.1")
+            );
+            Assertions.assertEquals(
+                FakeRegistry.digest(base),
+                pushed.at("/layers/0/digest").asText()
+            );
+            Assertions.assertEquals(
+                FakeRegistry.digest(changedTop),
+                pushed.at("/layers/1/digest").asText()
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Testing known layers the registry no longer has are uploaded again")
+    public void lostKnownLayersAreUploadedAgain() throws Exception {
+        byte[] base = new byte[2 * 1024 * 1024];
+        new Random(6).nextBytes(base);
+        byte[] top = new byte[2 * 1024 * 1024];
+        new Random(7).nextBytes(top);
+        File image = Files.write(tempDir.resolve("image.tar"), imageTar(
+            "base/layer.tar", base,
+            "top/layer.tar", top,
+            "config.json", "{}".getBytes(StandardCharsets.UTF_8),
+            "manifest.json", ("[{\"Config\":\"config.json\","
+                + "\"Layers\":[\"base/layer.tar\",\"top/layer.tar\"]}]")
+                .getBytes(StandardCharsets.UTF_8)
+        )).toFile();
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), null, null),
+                2,
+                0,
+                0
+            );
+            List<ImageLayer> layers = pusher.push(
+                image,
+                "namespace/task:1.0.0",
+                Map.of(),
+                ImagePushListener.NONE
+            );
+            Assertions.assertEquals(3, registry.getBlobUploads());
+
+            // the registry was cleaned up since, the base layer is gone
+            registry.getBlobs().remove(FakeRegistry.digest(base));
+            Map<String, ImageLayer> knownLayers = new HashMap<>();
+            layers.forEach(layer -> knownLayers.put(layer.getPath(), layer));
+            pusher.push(image, "namespace/task:1.0.1", knownLayers, ImagePushListener.NONE);
+
+            Assertions.assertEquals(4, registry.getBlobUploads());
+            Assertions.assertArrayEquals(
+                base,
+                registry.getBlobs().get(FakeRegistry.digest(base))
+            );
+            Assertions.assertNotNull(registry.getManifest("namespace/task", "1.0.1"));
+        }
+    }
+
+    @Test
+    @DisplayName("Testing a registry asking for a token is pushed to with that token")
+    public void tokenIsRequestedWhenChallenged() throws Exception {
+        byte[] layer = new byte[2 * 1024 * 1024];
+        new Random(8).nextBytes(layer);
+        byte[] image = imageTar(
+            "layer/layer.tar", layer,
+            "config.json", "{}".getBytes(StandardCharsets.UTF_8),
+            "manifest.json", ("[{\"Config\":\"config.json\","
+                + "\"Layers\":[\"layer/layer.tar\"]}]").getBytes(StandardCharsets.UTF_8)
+        );
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            registry.requireToken("token", "user", "password");
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), "user", "password")
+            );
+            pusher.push(new ByteArrayInputStream(image), "namespace/task:1.0.0");
+
+            Assertions.assertNotNull(registry.getManifest("namespace/task", "1.0.0"));
+            Assertions.assertEquals(
+                List.of("repository:namespace/task:pull,push"),
+                registry.getTokenScopes()
+            );
+        }
+    }
+
+    @Test
+    @DisplayName("Testing blobs named after their digest are not uploaded when in the registry")
+    public void existingBlobsAreSkipped() throws Exception {
+        byte[] layer = new byte[2 * 1024 * 1024];
+        new Random(4).nextBytes(layer);
+        String path = "blobs/sha256/" + FakeRegistry.digest(layer).substring(7);
+        byte[] config = "{}".getBytes(StandardCharsets.UTF_8);
+        byte[] manifest = ("[{\"Config\":\"config.json\",\"Layers\":[\"" + path + "\"]}]")
+            .getBytes(StandardCharsets.UTF_8);
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), null, null)
+            );
+            for (String tag : List.of("1.0.0", "1.0.1")) {
+                pusher.push(
+                    new ByteArrayInputStream(imageTar(
+                        path, layer,
+                        "config.json", config,
+                        "manifest.json", manifest
+                    )),
+                    "namespace/task:" + tag
+                );
+            }
+
+            Assertions.assertEquals(2, registry.getBlobUploads());
+            Assertions.assertNotNull(registry.getManifest("namespace/task", "1.0.1"));
+        }
+    }
+
+    @Test
+    @DisplayName("Testing the layers of an image on disk are uploaded concurrently")
+    public void layersAreUploadedConcurrently() throws Exception {
+        List<Object> entries = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        StringBuilder layerNames = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            byte[] layer = new byte[2 * 1024 * 1024];
+            new Random(i).nextBytes(layer);
+            contents.add(layer);
+            entries.add("layer" + i + "/layer.tar");
+            entries.add(layer);
+            layerNames.append(i == 0 ? "" : ",").append("\"layer").append(i).append("/layer.tar\"");
+        }
+        entries.add("config.json");
+        entries.add("{}".getBytes(StandardCharsets.UTF_8));
+        entries.add("manifest.json");
+        entries.add(("[{\"Config\":\"config.json\",\"Layers\":[" + layerNames + "]}]")
+            .getBytes(StandardCharsets.UTF_8));
+        File image = Files.write(tempDir.resolve("image.tar"), imageTar(entries.toArray()))
+            .toFile();
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            registry.setUploadDelay(200);
+            StreamingImagePusher pusher = new StreamingImagePusher(
+                new RegistryApiClient(registry.getUrl(), null, null),
+                4,
+                0,
+                0
+            );
+            TaskUploadProgress progress = new TaskUploadProgress();
+            List<ImageLayer> layers = pusher.push(
+                image,
+                "namespace/task:1.0.0",
+                Map.of(),
+                progress
+            );
+
+            Assertions.assertTrue(registry.getMaxActiveUploads() > 1);
+            Assertions.assertEquals(6, progress.getLayers());
+            Assertions.assertEquals(6, progress.getLayersPushed());
+            JsonNode manifest = new ObjectMapper().readTree(
+                registry.getManifest("namespace/task", "1.0.0")
+            );
+            Assertions.assertEquals(6, layers.size());
+            for (int i = 0; i < 6; i++) {
+                Assertions.assertEquals(
+                    FakeRegistry.digest(contents.get(i)),
+                    manifest.at("/layers/" + i + "/digest").asText()
+                );
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Testing a failed blob upload is retried before the manifest is pushed")
+    public void failedUploadsAreRetried() throws Exception {
+        byte[] layer = new byte[2 * 1024 * 1024];
+        new Random(5).nextBytes(layer);
+        byte[] tar = imageTar(
+            "layer/layer.tar", layer,
+            "config.json", "{}".getBytes(StandardCharsets.UTF_8),
+            "manifest.json", ("[{\"Config\":\"config.json\","
+                + "\"Layers\":[\"layer/layer.tar\"]}]").getBytes(StandardCharsets.UTF_8)
+        );
+        File image = Files.write(tempDir.resolve("image.tar"), tar).toFile();
+
+        try (FakeRegistry registry = new FakeRegistry()) {
+            RegistryApiClient client = new RegistryApiClient(registry.getUrl(), null, null);
+
+            registry.failNextUploads(1);
+            StreamingImagePusher noRetry = new StreamingImagePusher(client, 1, 0, 0);
+            Assertions.assertThrows(
+                IOException.class,
+                () -> noRetry.push(
+                    image,
+                    "namespace/task:1.0.0",
+                    Map.of(),
+                    ImagePushListener.NONE
+                )
+            );
+            Assertions.assertNull(registry.getManifest("namespace/task", "1.0.0"));
+
+            registry.failNextUploads(2);
+            StreamingImagePusher pusher = new StreamingImagePusher(client, 2, 3, 10);
+            pusher.push(
+                image,
+                "namespace/task:1.0.0",
+                Map.of(),
+                ImagePushListener.NONE
+            );
+
+            Assertions.assertNotNull(registry.getManifest("namespace/task", "1.0.0"));
+            Assertions.assertArrayEquals(
+                layer,
+                registry.getBlobs().get(FakeRegistry.digest(layer))
+            );
+        }
+    }
+
+    private static byte[] imageTar(Object... entries) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(output)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                byte[] content = (byte[]) entries[i + 1];
+                TarArchiveEntry entry = new TarArchiveEntry((String) entries[i]);
+                entry.setSize(content.length);
+                tar.putArchiveEntry(entry);
+                tar.write(content);
+                tar.closeArchiveEntry();
+            }
+        }
+
+        return output.toByteArray();
+    }
+}
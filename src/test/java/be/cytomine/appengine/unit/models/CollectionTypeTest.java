@@ -0,0 +1,58 @@
+package be.cytomine.appengine.unit.models;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import be.cytomine.appengine.exceptions.TypeValidationException;
+import be.cytomine.appengine.models.task.collection.CollectionType;
+import be.cytomine.appengine.models.task.integer.IntegerType;
+
+public class CollectionTypeTest {
+
+    private static CollectionType matrix() {
+        CollectionType row = new CollectionType();
+        row.setSubType(new IntegerType());
+        CollectionType matrix = new CollectionType();
+        matrix.setSubType(row);
+        return matrix;
+    }
+
+    @DisplayName("Successfully accept the entries in place in a collection")
+    @ParameterizedTest
+    @CsvSource({
+        "array.yml, false",
+        "0, true",
+        "0/array.yml, false",
+        "0/1, false",
+    })
+    public void validateEntryShouldAcceptEntriesInPlace(String name, boolean isDirectory) {
+        Assertions.assertDoesNotThrow(() -> matrix().validateEntry(name, isDirectory));
+    }
+
+    @DisplayName("Fail to accept the entries out of place in a collection")
+    @ParameterizedTest
+    @CsvSource({
+        "item, false",
+        "0/1, true",
+        "0/1/2, false",
+        "0/array.yml/1, false",
+    })
+    public void validateEntryShouldRejectEntriesOutOfPlace(String name, boolean isDirectory) {
+        Assertions.assertThrows(
+            TypeValidationException.class,
+            () -> matrix().validateEntry(name, isDirectory)
+        );
+    }
+
+    @DisplayName("Fail to accept a nested collection in a flat collection")
+    @Test
+    public void validateEntryShouldRejectDirectoryInFlatCollection() {
+        CollectionType list = new CollectionType();
+        list.setSubType(new IntegerType());
+
+        Assertions.assertThrows(TypeValidationException.class, () -> list.validateEntry("0", true));
+    }
+}
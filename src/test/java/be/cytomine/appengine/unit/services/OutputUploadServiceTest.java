@@ -0,0 +1,166 @@
+package be.cytomine.appengine.unit.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import be.cytomine.appengine.dto.misc.OutputUpload;
+import be.cytomine.appengine.exceptions.ProvisioningException;
+import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.models.task.Task;
+import be.cytomine.appengine.services.OutputUploadService;
+import be.cytomine.appengine.services.TaskProvisioningService;
+import be.cytomine.appengine.states.TaskRunState;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class OutputUploadServiceTest {
+
+    private static final String SECRET = "secret";
+
+    @Mock
+    private TaskProvisioningService taskProvisioningService;
+
+    @TempDir
+    private Path uploadsPath;
+
+    private OutputUploadService outputUploadService;
+
+    private String runId;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        outputUploadService = new OutputUploadService(taskProvisioningService);
+        ReflectionTestUtils.setField(outputUploadService, "uploadsPath", uploadsPath.toString());
+
+        Run run = new Run(UUID.randomUUID(), TaskRunState.RUNNING, new Task());
+        runId = run.getId().toString();
+        when(taskProvisioningService.getRunAcceptingOutputs(runId, SECRET)).thenReturn(run);
+    }
+
+    @DisplayName("Successfully resume an upload from its offset and ingest it once complete")
+    @Test
+    public void uploadShouldResumeFromOffset() throws Exception {
+        byte[] archive = "outputs archive content".getBytes(StandardCharsets.UTF_8);
+        OutputUpload upload = outputUploadService.createUpload(runId, SECRET, 23L);
+        String uploadId = upload.getUploadId();
+
+        outputUploadService.appendChunk(runId, SECRET, uploadId, 0, checksum(archive, 0, 8),
+            new ByteArrayInputStream(archive, 0, 8));
+        assertThrows(ProvisioningException.class, () -> outputUploadService.appendChunk(
+            runId, SECRET, uploadId, 0, null, new ByteArrayInputStream(archive, 0, 8)
+        ));
+
+        long offset = outputUploadService.getUpload(runId, SECRET, uploadId).getOffset();
+        assertEquals(8, offset);
+        assertThrows(ProvisioningException.class, () -> outputUploadService.completeUpload(
+            runId, SECRET, uploadId
+        ));
+
+        upload = outputUploadService.appendChunk(runId, SECRET, uploadId, offset,
+            checksum(archive, 8, 15), new ByteArrayInputStream(archive, 8, 15));
+        assertEquals(23, upload.getOffset());
+
+        when(taskProvisioningService.postOutputsZipArchive(eq(runId), eq(SECRET), any()))
+            .thenAnswer(invocation -> {
+                InputStreamSource outputs = invocation.getArgument(2);
+                try (InputStream in = outputs.getInputStream()) {
+                    assertArrayEquals(archive, in.readAllBytes());
+                }
+                return List.of();
+            });
+        outputUploadService.completeUpload(runId, SECRET, uploadId);
+
+        verify(taskProvisioningService).postOutputsZipArchive(eq(runId), eq(SECRET), any());
+        assertThrows(ProvisioningException.class, () -> outputUploadService.getUpload(
+            runId, SECRET, uploadId
+        ));
+    }
+
+    @DisplayName("Successfully roll back a chunk that does not match its checksum")
+    @Test
+    public void appendChunkShouldRollbackOnChecksumMismatch() throws Exception {
+        byte[] chunk = "chunk".getBytes(StandardCharsets.UTF_8);
+        String uploadId = outputUploadService.createUpload(runId, SECRET, null).getUploadId();
+
+        String wrong = checksum("other".getBytes(StandardCharsets.UTF_8), 0, 5);
+        assertThrows(ProvisioningException.class, () -> outputUploadService.appendChunk(
+            runId, SECRET, uploadId, 0, wrong, new ByteArrayInputStream(chunk)
+        ));
+        assertEquals(0, outputUploadService.getUpload(runId, SECRET, uploadId).getOffset());
+
+        OutputUpload upload = outputUploadService.appendChunk(runId, SECRET, uploadId, 0,
+            checksum(chunk, 0, chunk.length), new ByteArrayInputStream(chunk));
+        assertEquals(chunk.length, upload.getOffset());
+    }
+
+    @DisplayName("Successfully remove an upload whose ingestion failed")
+    @Test
+    public void completeUploadShouldRemoveUploadOnFailure() throws Exception {
+        String uploadId = outputUploadService.createUpload(runId, SECRET, null).getUploadId();
+        when(taskProvisioningService.postOutputsZipArchive(eq(runId), eq(SECRET), any()))
+            .thenThrow(new ProvisioningException("invalid outputs"));
+
+        assertThrows(ProvisioningException.class, () -> outputUploadService.completeUpload(
+            runId, SECRET, uploadId
+        ));
+        assertThrows(ProvisioningException.class, () -> outputUploadService.getUpload(
+            runId, SECRET, uploadId
+        ));
+    }
+
+    @DisplayName("Fail to grow an upload without declared length beyond the maximum length")
+    @Test
+    public void appendChunkShouldRejectChunksBeyondMaxLength() throws Exception {
+        ReflectionTestUtils.setField(outputUploadService, "maxLength", 4L);
+        byte[] chunk = "chunk".getBytes(StandardCharsets.UTF_8);
+        String uploadId = outputUploadService.createUpload(runId, SECRET, null).getUploadId();
+
+        assertThrows(ProvisioningException.class, () -> outputUploadService.appendChunk(
+            runId, SECRET, uploadId, 0, null, new ByteArrayInputStream(chunk)
+        ));
+        assertEquals(0, outputUploadService.getUpload(runId, SECRET, uploadId).getOffset());
+        assertThrows(ProvisioningException.class, () -> outputUploadService.createUpload(
+            runId, SECRET, 5L
+        ));
+    }
+
+    @DisplayName("Successfully reject the unknown upload identifiers")
+    @Test
+    public void getUploadShouldRejectUnknownIdentifiers() {
+        assertThrows(ProvisioningException.class, () -> outputUploadService.getUpload(
+            runId, SECRET, "../" + runId
+        ));
+        assertThrows(ProvisioningException.class, () -> outputUploadService.getUpload(
+            runId, SECRET, UUID.randomUUID().toString()
+        ));
+    }
+
+    private static String checksum(byte[] data, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, offset, length);
+        return "sha256 " + HexFormat.of().formatHex(digest.digest());
+    }
+}
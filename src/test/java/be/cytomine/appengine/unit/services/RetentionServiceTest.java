@@ -0,0 +1,229 @@
+package be.cytomine.appengine.unit.services;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import be.cytomine.appengine.config.RetentionProperties;
+import be.cytomine.appengine.dto.handlers.filestorage.Storage;
+import be.cytomine.appengine.dto.misc.RetentionReport;
+import be.cytomine.appengine.handlers.StorageHandler;
+import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.models.task.Task;
+import be.cytomine.appengine.repositories.RunRepository;
+import be.cytomine.appengine.services.RetentionService;
+import be.cytomine.appengine.services.RunService;
+import be.cytomine.appengine.services.TaskProvisioningService;
+import be.cytomine.appengine.states.TaskRunState;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class RetentionServiceTest {
+
+    @Mock
+    private RunRepository runRepository;
+
+    @Mock
+    private RunService runService;
+
+    @Mock
+    private StorageHandler storageHandler;
+
+    @Mock
+    private TaskProvisioningService taskProvisioningService;
+
+    @TempDir
+    private Path tempPath;
+
+    private RetentionProperties properties;
+
+    private RetentionService retentionService;
+
+    private Run run;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        properties = new RetentionProperties();
+        properties.setTempPath(tempPath.resolve("tmp").toString());
+        retentionService = new RetentionService(
+            properties,
+            runRepository,
+            runService,
+            taskProvisioningService,
+            storageHandler
+        );
+        ReflectionTestUtils.setField(
+            retentionService,
+            "outputUploadsPath",
+            tempPath.resolve("uploads/outputs").toString()
+        );
+        ReflectionTestUtils.setField(
+            retentionService,
+            "taskUploadsPath",
+            tempPath.resolve("uploads/tasks").toString()
+        );
+
+        Task task = new Task();
+        task.setNamespace("com.cytomine.dummy");
+        run = new Run(UUID.randomUUID(), TaskRunState.FINISHED, task);
+        run.setLastStateTransitionAt(LocalDateTime.now().minusDays(10));
+
+        lenient().when(runRepository.findRetentionCandidates(any(), any(), any(), any(), any()))
+            .thenReturn(List.of(run));
+        lenient().when(storageHandler.checkStorageExists(any(Storage.class))).thenReturn(true);
+        lenient().when(storageHandler.getStorageSize(any(Storage.class))).thenReturn(42L);
+    }
+
+    @DisplayName("Successfully purge the inputs before the outputs")
+    @Test
+    public void purgeShouldRemoveExpiredInputsOnly() throws Exception {
+        RetentionReport report = retentionService.purge(false);
+
+        String inputs = "task-run-inputs-" + run.getId();
+        String archives = "task-run-archives-" + run.getId();
+        assertEquals(List.of(inputs, archives), report.getPurgedStorages());
+        assertEquals(84L, report.getReclaimedBytes());
+        assertNotNull(run.getInputsPurgedAt());
+        assertNull(run.getOutputsPurgedAt());
+        verify(storageHandler).deleteStorage(argThat(s -> s.getIdStorage().equals(inputs)));
+        verify(runRepository).save(run);
+    }
+
+    @DisplayName("Successfully report the expired storages of a task without purging them")
+    @Test
+    public void dryRunShouldOnlyReport() throws Exception {
+        RetentionProperties.TaskRetention retention = new RetentionProperties.TaskRetention();
+        retention.setOutputsTtl(Duration.ofDays(1));
+        properties.getTasks().put("com.cytomine.dummy", retention);
+        properties.setDeleteRuns(true);
+
+        RetentionReport report = retentionService.purge(true);
+
+        assertEquals(3, report.getPurgedStorages().size());
+        assertEquals(List.of(run.getId()), report.getDeletedRuns());
+        assertEquals(126L, report.getReclaimedBytes());
+        verify(storageHandler, never()).deleteStorage(any(Storage.class));
+        verify(runService, never()).delete(any());
+        assertNull(run.getInputsPurgedAt());
+    }
+
+    @DisplayName("Successfully delete the expired runs and forget their inputs revision")
+    @Test
+    public void purgeShouldDeleteExpiredRuns() throws Exception {
+        RetentionProperties.TaskRetention retention = new RetentionProperties.TaskRetention();
+        retention.setOutputsTtl(Duration.ofDays(1));
+        properties.getTasks().put("com.cytomine.dummy", retention);
+        properties.setDeleteRuns(true);
+
+        RetentionReport report = retentionService.purge(false);
+
+        assertEquals(List.of(run.getId()), report.getDeletedRuns());
+        verify(runService).delete(run.getId());
+        verify(taskProvisioningService).forgetInputsRevision(run.getId());
+    }
+
+    @DisplayName("Successfully resume after the last run of a batch sharing its transition time")
+    @Test
+    public void purgeShouldPageByTransitionTimeAndId() throws Exception {
+        properties.setBatchSize(1);
+        Run next = new Run(UUID.randomUUID(), TaskRunState.FAILED, run.getTask());
+        next.setLastStateTransitionAt(run.getLastStateTransitionAt());
+        when(runRepository.findRetentionCandidates(
+            any(),
+            eq(run.getLastStateTransitionAt()),
+            eq(run.getId()),
+            any(),
+            any()
+        )).thenReturn(List.of(next));
+        when(runRepository.findRetentionCandidates(
+            any(),
+            eq(next.getLastStateTransitionAt()),
+            eq(next.getId()),
+            any(),
+            any()
+        )).thenReturn(List.of());
+
+        RetentionReport report = retentionService.purge(false);
+
+        assertEquals(4, report.getPurgedStorages().size());
+        assertNotNull(run.getInputsPurgedAt());
+        assertNotNull(next.getInputsPurgedAt());
+    }
+
+    @DisplayName("Successfully purge the stale temporary files and the abandoned uploads")
+    @Test
+    public void purgeShouldAgeOutAbandonedUploads() throws Exception {
+        FileTime stale = FileTime.from(Instant.now().minus(Duration.ofDays(2)));
+        Path temporary = tempPath.resolve("tmp/staged.tmp");
+        Path abandoned = tempPath.resolve("uploads/outputs/run/abandoned.part");
+        Path abandonedLength = tempPath.resolve("uploads/outputs/run/abandoned.part.length");
+        Path awaited = tempPath.resolve("uploads/outputs/run/awaited.part");
+        Path awaitedLength = tempPath.resolve("uploads/outputs/run/awaited.part.length");
+        Path bundle = tempPath.resolve("uploads/tasks/job.zip");
+        List<Path> files = List.of(
+            temporary,
+            abandoned,
+            abandonedLength,
+            awaited,
+            awaitedLength,
+            bundle
+        );
+        for (Path file : files) {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "content");
+            if (!file.equals(awaited)) {
+                Files.setLastModifiedTime(file, stale);
+            }
+        }
+
+        RetentionReport report = retentionService.purge(false);
+
+        assertEquals(4, report.getPurgedTemporaryFiles());
+        assertFalse(Files.exists(temporary));
+        assertFalse(Files.exists(abandoned));
+        assertFalse(Files.exists(abandonedLength));
+        assertFalse(Files.exists(bundle));
+        assertTrue(Files.exists(awaited));
+        assertTrue(Files.exists(awaitedLength));
+    }
+
+    @DisplayName("Fail to start when the temporary files are in the storages")
+    @Test
+    public void checkPathsShouldRefuseTempPathInStorage() {
+        properties.setTempPath(tempPath.resolve("storage/tmp").toString());
+        ReflectionTestUtils.setField(
+            retentionService,
+            "storageBasePath",
+            tempPath.resolve("storage").toString()
+        );
+
+        assertThrows(IllegalStateException.class, () -> retentionService.checkPaths());
+    }
+}
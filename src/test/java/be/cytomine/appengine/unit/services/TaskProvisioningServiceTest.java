@@ -1,11 +1,17 @@
 package be.cytomine.appengine.unit.services;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import be.cytomine.appengine.models.task.Parameter;
 import be.cytomine.appengine.models.task.Task;
@@ -22,20 +28,26 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.context.ApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import be.cytomine.appengine.dto.handlers.filestorage.Storage;
 import be.cytomine.appengine.dto.inputs.task.State;
 import be.cytomine.appengine.dto.inputs.task.StateAction;
 import be.cytomine.appengine.dto.inputs.task.TaskRunParameterValue;
 import be.cytomine.appengine.dto.inputs.task.TaskRunResponse;
+import be.cytomine.appengine.dto.misc.CachedArchive;
 import be.cytomine.appengine.exceptions.FileStorageException;
 import be.cytomine.appengine.exceptions.ProvisioningException;
 import be.cytomine.appengine.handlers.SchedulerHandler;
 import be.cytomine.appengine.handlers.StorageData;
+import be.cytomine.appengine.handlers.StorageDataEntry;
+import be.cytomine.appengine.handlers.StorageDataType;
 import be.cytomine.appengine.handlers.StorageHandler;
 import be.cytomine.appengine.models.task.ParameterType;
 import be.cytomine.appengine.models.task.Run;
+import be.cytomine.appengine.models.task.file.FilePersistence;
 import be.cytomine.appengine.models.task.integer.IntegerPersistence;
 import be.cytomine.appengine.repositories.RunRepository;
 import be.cytomine.appengine.repositories.TypePersistenceRepository;
@@ -45,14 +57,18 @@ import be.cytomine.appengine.services.TaskProvisioningService;
 import be.cytomine.appengine.services.TaskService;
 import be.cytomine.appengine.states.TaskRunState;
 import be.cytomine.appengine.utils.AppEngineApplicationContext;
+import be.cytomine.appengine.utils.FileHelper;
 import be.cytomine.appengine.utils.TaskUtils;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -227,7 +243,7 @@ public class TaskProvisioningServiceTest {
         persistedProvision.setValue(42);
         persistedProvision.setProvisioned(true);
 
-        when(storageHandler.readStorageData(any(StorageData.class))).thenReturn(mockStorageData);
+        when(storageHandler.streamStorageData(any(StorageData.class))).thenReturn(mockStorageData.entries().stream());
         when(runRepository.findById(run.getId())).thenReturn(Optional.of(run));
         when(typePersistenceRepository.findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.INPUT))
             .thenReturn(List.of(persistedProvision));
@@ -237,10 +253,97 @@ public class TaskProvisioningServiceTest {
         assertEquals(mockStorageData.getEntryList().size(), result.getEntryList().size());
         assertTrue(result.peek().getData().getName().matches("inputs-archive-\\d*" + run.getId()));
         verify(runRepository, times(1)).findById(run.getId());
-        verify(storageHandler, times(1)).readStorageData(any(StorageData.class));
+        verify(storageHandler, times(1)).streamStorageData(any(StorageData.class));
         verify(typePersistenceRepository, times(1)).findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.INPUT);
     }
 
+    @DisplayName("Successfully stream a zip archive")
+    @Test
+    public void streamIOZipArchiveShouldWriteZipEntries() throws Exception {
+        Run run = TaskUtils.createTestRun(false);
+        run.setState(TaskRunState.PROVISIONED);
+
+        String name = run.getTask().getParameters().stream().filter(parameter -> parameter.getParameterType().equals(ParameterType.INPUT)).iterator().next().getName();
+        StorageData mockStorageData = TaskUtils.createTestStorageData(name, "task-run-inputs-" + run.getId());
+
+        IntegerPersistence persistedProvision = new IntegerPersistence();
+        persistedProvision.setParameterType(ParameterType.INPUT);
+        persistedProvision.setParameterName(name);
+        persistedProvision.setRunId(run.getId());
+
+        when(runRepository.findById(run.getId())).thenReturn(Optional.of(run));
+        when(typePersistenceRepository.findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.INPUT))
+            .thenReturn(List.of(persistedProvision));
+        when(storageHandler.streamStorageData(any(StorageData.class))).thenReturn(mockStorageData.entries().stream());
+
+        StreamingResponseBody body = taskProvisioningService.streamIOZipArchive(run.getId().toString(), ParameterType.INPUT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertNotNull(entry);
+            assertEquals(name, entry.getName());
+            assertArrayEquals(Files.readAllBytes(mockStorageData.peek().getData().toPath()), zip.readAllBytes());
+        }
+    }
+
+    @DisplayName("Successfully store the already compressed entries without deflating them")
+    @Test
+    public void streamIOZipArchiveShouldStoreCompressedEntries() throws Exception {
+        Run run = TaskUtils.createTestRun(true);
+        run.setState(TaskRunState.PROVISIONED);
+
+        String name = run.getTask().getParameters().stream().filter(parameter -> parameter.getParameterType().equals(ParameterType.INPUT)).iterator().next().getName();
+        StorageData mockStorageData = TaskUtils.createTestStorageData(name, "task-run-inputs-" + run.getId());
+        byte[] jpeg = { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0x00, 0x10 };
+        Files.write(mockStorageData.peek().getData().toPath(), jpeg);
+
+        FilePersistence persistedProvision = new FilePersistence();
+        persistedProvision.setParameterType(ParameterType.INPUT);
+        persistedProvision.setParameterName(name);
+        persistedProvision.setRunId(run.getId());
+
+        when(runRepository.findById(run.getId())).thenReturn(Optional.of(run));
+        when(typePersistenceRepository.findTypePersistenceByRunIdAndParameterType(run.getId(), ParameterType.INPUT))
+            .thenReturn(List.of(persistedProvision));
+        when(storageHandler.streamStorageData(any(StorageData.class))).thenReturn(mockStorageData.entries().stream());
+
+        StreamingResponseBody body = taskProvisioningService.streamIOZipArchive(run.getId().toString(), ParameterType.INPUT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertNotNull(entry);
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertArrayEquals(jpeg, zip.readAllBytes());
+        }
+    }
+
+    @DisplayName("Successfully retrieve the cached inputs archive with its digest")
+    @Test
+    public void retrieveCachedInputsArchiveShouldReturnArchiveAndDigest() throws Exception {
+        Run run = TaskUtils.createTestRun(false);
+        run.setState(TaskRunState.PROVISIONED);
+        String storageId = "task-run-archives-" + run.getId();
+        StorageData archive = TaskUtils.createTestStorageData("inputs.zip", storageId);
+        StorageData digest = new StorageData(FileHelper.write("digest", "abc123".getBytes()), "inputs.zip.sha256");
+
+        when(runRepository.findById(run.getId())).thenReturn(Optional.of(run));
+        when(storageHandler.checkStorageExists(any(Storage.class))).thenReturn(true);
+        when(storageHandler.resolveStorageData(any(StorageData.class))).thenAnswer(invocation -> {
+            StorageData requested = invocation.getArgument(0);
+            return requested.peek().getName().endsWith(".sha256") ? digest : archive;
+        });
+
+        CachedArchive cached = taskProvisioningService.retrieveCachedInputsArchive(run.getId().toString());
+
+        assertNotNull(cached);
+        assertEquals("abc123", cached.getDigest());
+        assertEquals(archive.peek().getData(), cached.getArchive());
+    }
+
     @DisplayName("Failed to retrieve a zip archive and throw 'ProvisioningException' when run state is invalid")
     @Test
     public void retrieveIOZipArchiveShouldThrowProvisioningExceptionWhenInvalidRunState() throws Exception {
@@ -293,6 +396,165 @@ public class TaskProvisioningServiceTest {
         verify(runRepository, times(1)).saveAndFlush(any(Run.class));
     }
 
+    @DisplayName("Successfully store the outputs while unzipping the outputs archive")
+    @Test
+    public void postOutputsZipArchiveShouldStoreOutputsWhenPipelined() throws Exception {
+        ReflectionTestUtils.setField(taskProvisioningService, "outputsIngestMode", "pipelined");
+        Task task = TaskUtils.createTestTask(false);
+        task.setMatches(new ArrayList<>());
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setTask(task);
+        localRun.setState(TaskRunState.RUNNING);
+        StorageData stored = new StorageData(FileHelper.write("out", "42".getBytes()), "out");
+
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+        when(storageHandler.resolveStorageData(any(StorageData.class))).thenReturn(stored);
+
+        List<TaskRunParameterValue> results = taskProvisioningService.postOutputsZipArchive(
+            localRun.getId().toString(),
+            localRun.getSecret(),
+            () -> new ByteArrayInputStream(TaskUtils.createFakeOutputsZip("out"))
+        );
+
+        assertEquals(1, results.size());
+        assertEquals(TaskRunState.FINISHED, localRun.getState());
+        verify(storageHandler, times(1))
+            .writeStorageData(any(Storage.class), eq("out"), any(), eq(true));
+        verify(storageHandler, never()).saveStorageData(any(Storage.class), any(StorageData.class));
+    }
+
+    @DisplayName("Failed to save the outputs archive and roll back the stored outputs when invalid")
+    @Test
+    public void postOutputsZipArchiveShouldRollbackWhenPipelinedOutputIsInvalid() throws Exception {
+        ReflectionTestUtils.setField(taskProvisioningService, "outputsIngestMode", "pipelined");
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setState(TaskRunState.RUNNING);
+        StorageData stored = new StorageData(FileHelper.write("out", " ".getBytes()), "out");
+        IntegerPersistence previous = new IntegerPersistence();
+        previous.setId(UUID.randomUUID());
+        IntegerPersistence saved = new IntegerPersistence();
+        saved.setId(UUID.randomUUID());
+
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+        when(storageHandler.resolveStorageData(any(StorageData.class))).thenReturn(stored);
+        when(typePersistenceRepository.findTypePersistenceByRunIdAndParameterType(
+            localRun.getId(),
+            ParameterType.OUTPUT
+        )).thenReturn(List.of(previous), List.of(previous, saved));
+
+        assertThrows(
+            ProvisioningException.class,
+            () -> taskProvisioningService.postOutputsZipArchive(
+                localRun.getId().toString(),
+                localRun.getSecret(),
+                () -> new ByteArrayInputStream(TaskUtils.createFakeOutputsZip("out"))
+            )
+        );
+        verify(storageHandler, times(1)).deleteStorageData(any(StorageData.class));
+        verify(typePersistenceRepository, times(1)).deleteAll(List.of(saved));
+        assertEquals(TaskRunState.FAILED, localRun.getState());
+    }
+
+    @DisplayName("Successfully provision the outputs one by one and finish the run with the last one")
+    @Test
+    public void provisionRunOutputShouldFinishRunOnceAllOutputsProvisioned() throws Exception {
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setTask(TaskUtils.createTestTaskWithMultipleIO());
+        localRun.setState(TaskRunState.RUNNING);
+        IntegerPersistence first = new IntegerPersistence();
+        first.setParameterName("out 1");
+        IntegerPersistence second = new IntegerPersistence();
+        second.setParameterName("out 2");
+
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+        when(typePersistenceRepository.findTypePersistenceByRunIdAndParameterType(
+            localRun.getId(),
+            ParameterType.OUTPUT
+        )).thenReturn(List.of(first), List.of(first, second));
+
+        TaskRunParameterValue result = taskProvisioningService.provisionRunOutput(
+            localRun.getId().toString(),
+            localRun.getSecret(),
+            "out 1",
+            () -> new ByteArrayInputStream("42".getBytes())
+        );
+        assertEquals("out 1", result.getParameterName());
+        assertEquals(TaskRunState.RUNNING, localRun.getState());
+
+        taskProvisioningService.provisionRunOutput(
+            localRun.getId().toString(),
+            localRun.getSecret(),
+            "out 2",
+            () -> new ByteArrayInputStream("7".getBytes())
+        );
+        assertEquals(TaskRunState.FINISHED, localRun.getState());
+        verify(storageHandler, times(2)).saveStorageData(any(Storage.class), any(StorageData.class));
+    }
+
+    @DisplayName("Fail to provision an output with a wrong secret without reading its value")
+    @Test
+    public void provisionRunOutputShouldNotReadValueOfUnauthenticatedSender() throws Exception {
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setTask(TaskUtils.createTestTaskWithMultipleIO());
+        localRun.setState(TaskRunState.RUNNING);
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+
+        assertThrows(
+            ProvisioningException.class,
+            () -> taskProvisioningService.provisionRunOutput(
+                localRun.getId().toString(),
+                "wrong secret",
+                "out 1",
+                () -> {
+                    throw new AssertionError("the value of the output was read");
+                }
+            )
+        );
+        verify(storageHandler, never()).saveStorageData(any(Storage.class), any(StorageData.class));
+    }
+
+    @DisplayName("Successfully ingest the outputs found in the outputs storage and finish the run")
+    @Test
+    public void ingestOutputsInPlaceShouldFinishRunWithoutStoring() throws Exception {
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setTask(TaskUtils.createTestTaskWithMultipleIO());
+        localRun.setState(TaskRunState.RUNNING);
+        localRun.getTask().setMatches(new ArrayList<>());
+
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+        when(storageHandler.streamStorageData(any(StorageData.class))).thenReturn(Stream.of(
+            new StorageDataEntry("", StorageDataType.DIRECTORY),
+            new StorageDataEntry(FileHelper.write("out 1", "42".getBytes()), "out 1", StorageDataType.FILE),
+            new StorageDataEntry(FileHelper.write("out 2", "7".getBytes()), "out 2", StorageDataType.FILE)
+        ));
+
+        List<TaskRunParameterValue> results = taskProvisioningService.ingestOutputsInPlace(localRun.getId().toString());
+
+        assertEquals(2, results.size());
+        assertEquals(TaskRunState.FINISHED, localRun.getState());
+        verify(storageHandler, never()).saveStorageData(any(Storage.class), any(StorageData.class));
+    }
+
+    @DisplayName("Failed to ingest the outputs in place and fail the run when an output is unknown")
+    @Test
+    public void ingestOutputsInPlaceShouldFailRunWhenUnknownOutput() throws Exception {
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setState(TaskRunState.RUNNING);
+
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+        when(storageHandler.streamStorageData(any(StorageData.class))).thenReturn(Stream.of(
+            new StorageDataEntry("", StorageDataType.DIRECTORY),
+            new StorageDataEntry(FileHelper.write("invalid", "42".getBytes()), "invalid", StorageDataType.FILE)
+        ));
+
+        ProvisioningException exception = assertThrows(
+            ProvisioningException.class,
+            () -> taskProvisioningService.ingestOutputsInPlace(localRun.getId().toString())
+        );
+        assertEquals("unexpected output, did not match an actual task output", exception.getMessage());
+        assertEquals(TaskRunState.FAILED, localRun.getState());
+    }
+
     @DisplayName("Failed to save the outputs archive and throw 'ProvisioningException' when not authenticated")
     @Test
     public void postOutputsZipArchiveShouldThrowProvisioningExceptionWhenNotAuth() throws Exception {
@@ -343,6 +605,24 @@ public class TaskProvisioningServiceTest {
         verify(runRepository, times(1)).findById(localRun.getId());
     }
 
+    @DisplayName("Failed to save the outputs archive and throw 'ProvisioningException' when nested under a non-collection output")
+    @Test
+    public void postOutputsZipArchiveShouldThrowProvisioningExceptionWhenNestedUnderNonCollection() throws Exception {
+        Run localRun = TaskUtils.createTestRun(false);
+        localRun.setState(TaskRunState.RUNNING);
+        MultipartFile outputs = mock(MultipartFile.class);
+
+        when(outputs.getInputStream()).thenReturn(new ByteArrayInputStream(TaskUtils.createFakeOutputsZip("out/nested")));
+        when(runRepository.findById(localRun.getId())).thenReturn(Optional.of(localRun));
+
+        ProvisioningException exception = assertThrows(
+            ProvisioningException.class,
+            () -> taskProvisioningService.postOutputsZipArchive(localRun.getId().toString(), localRun.getSecret(), outputs)
+        );
+        assertEquals("unexpected output, did not match an actual task output", exception.getMessage());
+        assertEquals(TaskRunState.FAILED, localRun.getState());
+    }
+
     @DisplayName("Failed to save the outputs archive and throw 'ProvisioningException' when missing output")
     @Test
     public void postOutputsZipArchiveShouldThrowProvisioningExceptionWhenMissingOutput() throws Exception {
@@ -456,7 +736,7 @@ public class TaskProvisioningServiceTest {
         input.setParameterName(parameterName);
         StorageData mockStorageData = TaskUtils.createTestStorageData(parameterName, storageId);
 
-        when(storageHandler.readStorageData(any(StorageData.class))).thenReturn(mockStorageData);
+        when(storageHandler.resolveStorageData(any(StorageData.class))).thenReturn(mockStorageData);
 
         File result =  taskProvisioningService.retrieveSingleRunIO(run.getId().toString(), input.getParameterName(), ParameterType.INPUT);
 
@@ -476,7 +756,7 @@ public class TaskProvisioningServiceTest {
             .next()
             .getName();
 
-        when(storageHandler.readStorageData(any(StorageData.class))).thenThrow(new FileStorageException("failed to read file from storage service"));
+        when(storageHandler.resolveStorageData(any(StorageData.class))).thenThrow(new FileStorageException("failed to read file from storage service"));
 
         ProvisioningException exception = assertThrows(
             ProvisioningException.class,
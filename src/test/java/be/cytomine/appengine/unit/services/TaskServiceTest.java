@@ -20,6 +20,7 @@ import be.cytomine.appengine.dto.inputs.task.TaskDescription;
 import be.cytomine.appengine.dto.inputs.task.TaskRun;
 import be.cytomine.appengine.dto.inputs.task.UploadTaskArchive;
 import be.cytomine.appengine.exceptions.FileStorageException;
+import be.cytomine.appengine.exceptions.RegistryException;
 import be.cytomine.appengine.exceptions.RunTaskServiceException;
 import be.cytomine.appengine.exceptions.TaskNotFoundException;
 import be.cytomine.appengine.exceptions.TaskServiceException;
@@ -43,6 +44,8 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -98,6 +101,22 @@ public class TaskServiceTest {
         verify(taskRepository, times(1)).save(any(Task.class));
     }
 
+    @DisplayName("Fail to upload a task bundle when the registry fails and throw TaskServiceException")
+    @Test
+    public void uploadTaskShouldThrowTaskServiceExceptionWhenPushFails() throws Exception {
+        ClassPathResource resource = TestTaskBuilder.buildCustomImageLocationTask();
+        MockMultipartFile testAppBundle = new MockMultipartFile("test_custom_image_location_task.zip", resource.getInputStream());
+
+        when(archiveUtils.readArchive(testAppBundle)).thenReturn(uploadTaskArchive);
+        doThrow(new RegistryException("registry unavailable"))
+            .when(registryHandler)
+            .pushImage(any(DockerImage.class));
+
+        assertThrows(TaskServiceException.class, () -> taskService.uploadTask(testAppBundle));
+        verify(storageHandler, times(1)).deleteStorage(any(Storage.class));
+        verify(taskRepository, never()).save(any(Task.class));
+    }
+
     @DisplayName("Successfully retrieve the descriptor by namespace and version")
     @Test
     public void retrieveYmlDescriptorByNamespaceAndVersionShouldReturnDescriptor() throws Exception {
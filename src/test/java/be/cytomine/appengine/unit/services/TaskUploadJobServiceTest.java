@@ -0,0 +1,134 @@
+package be.cytomine.appengine.unit.services;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import be.cytomine.appengine.dto.inputs.task.TaskDescription;
+import be.cytomine.appengine.dto.misc.TaskUploadJob;
+import be.cytomine.appengine.dto.responses.errors.ErrorBuilder;
+import be.cytomine.appengine.dto.responses.errors.ErrorCode;
+import be.cytomine.appengine.exceptions.ValidationException;
+import be.cytomine.appengine.services.TaskService;
+import be.cytomine.appengine.services.TaskUploadJobService;
+import be.cytomine.appengine.states.TaskUploadState;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class TaskUploadJobServiceTest {
+
+    @Mock
+    private TaskService taskService;
+
+    @TempDir
+    private Path uploadsPath;
+
+    private TaskUploadJobService taskUploadJobService;
+
+    @BeforeEach
+    public void setUp() {
+        taskUploadJobService = new TaskUploadJobService(taskService);
+        ReflectionTestUtils.setField(taskUploadJobService, "uploadsPath", uploadsPath.toString());
+    }
+
+    @Test
+    @DisplayName("Testing an asynchronous upload ends with the description of the task")
+    public void uploadJobFinishes() throws Exception {
+        TaskDescription description = new TaskDescription(
+            UUID.randomUUID(),
+            "task",
+            "namespace",
+            "1.0.0",
+            "description"
+        );
+        when(taskService.uploadTask(any(), any())).thenReturn(Optional.of(description));
+
+        TaskUploadJob job = taskUploadJobService.submit(bundle()).orElseThrow();
+        awaitEnd(job);
+
+        assertEquals(TaskUploadState.FINISHED, job.getState());
+        assertEquals(description, job.getTask());
+        assertNull(job.getError());
+        assertEquals(job, taskUploadJobService.getJob(job.getJobId()).orElseThrow());
+        try (var bundles = Files.list(uploadsPath)) {
+            assertEquals(0, bundles.count());
+        }
+    }
+
+    @Test
+    @DisplayName("Testing an asynchronous upload failing keeps the cause of its failure")
+    public void uploadJobFails() throws Exception {
+        ValidationException invalid = new ValidationException(
+            ErrorBuilder.build(ErrorCode.INTERNAL_INVALID_BUNDLE_FORMAT),
+            false
+        );
+        when(taskService.uploadTask(any(), any())).thenThrow(invalid);
+
+        TaskUploadJob job = taskUploadJobService.submit(bundle()).orElseThrow();
+        awaitEnd(job);
+
+        assertEquals(TaskUploadState.FAILED, job.getState());
+        assertNull(job.getTask());
+        assertEquals(invalid.getError(), job.getError());
+    }
+
+    @Test
+    @DisplayName("Testing asynchronous uploads are refused once the queue is full")
+    public void uploadJobsAreBounded() throws Exception {
+        ReflectionTestUtils.setField(taskUploadJobService, "workers", 1);
+        ReflectionTestUtils.setField(taskUploadJobService, "queueCapacity", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(taskService.uploadTask(any(), any())).thenAnswer(invocation -> {
+            release.await(10, TimeUnit.SECONDS);
+            return Optional.empty();
+        });
+
+        Optional<TaskUploadJob> running = taskUploadJobService.submit(bundle());
+        Optional<TaskUploadJob> queued = taskUploadJobService.submit(bundle());
+        Optional<TaskUploadJob> refused = taskUploadJobService.submit(bundle());
+        release.countDown();
+
+        assertTrue(running.isPresent());
+        assertTrue(queued.isPresent());
+        assertFalse(refused.isPresent());
+        awaitEnd(queued.get());
+        assertEquals(TaskUploadState.FAILED, queued.get().getState());
+    }
+
+    private static MockMultipartFile bundle() {
+        return new MockMultipartFile(
+            "task",
+            "task.zip",
+            "application/zip",
+            "bundle".getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    private static void awaitEnd(TaskUploadJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (job.getFinishedAt() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.getFinishedAt() != null, "upload job did not end");
+    }
+}
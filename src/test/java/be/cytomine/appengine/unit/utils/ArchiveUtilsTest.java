@@ -10,8 +10,14 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class ArchiveUtilsTest {
 
@@ -61,4 +67,41 @@ public class ArchiveUtilsTest {
         });
         Assertions.assertTrue(bae.getError().getMessage().equalsIgnoreCase("unknown task bundle archive format"));
     }
+
+    @Test
+    public void readArchiveTest_testForwardScan() throws IOException, BundleArchiveException {
+        String bundleFilename = "test_custom_image_location_task.zip";
+        ClassPathResource resource = TestTaskBuilder.buildByBundleFilename(bundleFilename);
+
+        MockMultipartFile testAppBundle = new MockMultipartFile(bundleFilename, resource.getInputStream());
+        ArchiveUtils archiveUtils = new ArchiveUtils();
+        ReflectionTestUtils.setField(archiveUtils, "readMode", "forward-scan");
+        UploadTaskArchive test = archiveUtils.readArchive(testAppBundle);
+
+        Assertions.assertNotNull(test.getDockerImage());
+        Assertions.assertNotNull(test.getDescriptorFileAsJson());
+    }
+
+    @Test
+    public void readArchiveTest_testForwardScanImageBeforeDescriptor() throws IOException, BundleArchiveException {
+        byte[] image = "image content".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bundle)) {
+            zos.putNextEntry(new ZipEntry("other.tar"));
+            zos.write("other content".getBytes(StandardCharsets.UTF_8));
+            zos.putNextEntry(new ZipEntry("image.tar"));
+            zos.write(image);
+            zos.putNextEntry(new ZipEntry("descriptor.yml"));
+            zos.write("name: test\n".getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+        }
+
+        MockMultipartFile testAppBundle = new MockMultipartFile("bundle.zip", bundle.toByteArray());
+        ArchiveUtils archiveUtils = new ArchiveUtils();
+        ReflectionTestUtils.setField(archiveUtils, "readMode", "forward-scan");
+        UploadTaskArchive test = archiveUtils.readArchive(testAppBundle);
+
+        Assertions.assertArrayEquals(image, Files.readAllBytes(test.getDockerImage().toPath()));
+        Assertions.assertEquals("test", test.getDescriptorFileAsJson().get("name").textValue());
+    }
 }
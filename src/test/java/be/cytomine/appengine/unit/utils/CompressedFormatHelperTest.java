@@ -0,0 +1,73 @@
+package be.cytomine.appengine.unit.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import be.cytomine.appengine.utils.CompressedFormatHelper;
+
+public class CompressedFormatHelperTest {
+
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    @DisplayName("Testing compressed formats are detected from their signature")
+    public void signatureIsDetected() throws IOException {
+        byte[] jpeg = { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0x00, 0x10 };
+        Path image = Files.write(tempDir.resolve("image.jpg"), jpeg);
+        Path text = Files.writeString(tempDir.resolve("value.txt"), "42");
+
+        Assertions.assertTrue(CompressedFormatHelper.isCompressed(image));
+        Assertions.assertFalse(CompressedFormatHelper.isCompressed(text));
+    }
+
+    @Test
+    @DisplayName("Testing the TIFF compression is read from the first IFD")
+    public void tiffCompressionIsRead() throws IOException {
+        Path raw = Files.write(tempDir.resolve("raw.tif"), tiff(1));
+        Path lzw = Files.write(tempDir.resolve("lzw.tif"), tiff(5));
+
+        Assertions.assertFalse(CompressedFormatHelper.isCompressed(raw));
+        Assertions.assertTrue(CompressedFormatHelper.isCompressed(lzw));
+    }
+
+    @Test
+    @DisplayName("Testing the DICOM compression is read from the transfer syntax")
+    public void dicomTransferSyntaxIsRead() throws IOException {
+        Path raw = Files.write(tempDir.resolve("raw.dcm"), dicom("1.2.840.10008.1.2.1"));
+        Path jpeg = Files.write(tempDir.resolve("jpeg.dcm"), dicom("1.2.840.10008.1.2.4.50"));
+
+        Assertions.assertFalse(CompressedFormatHelper.isCompressed(raw));
+        Assertions.assertTrue(CompressedFormatHelper.isCompressed(jpeg));
+    }
+
+    private static byte[] tiff(int compression) {
+        ByteBuffer buffer = ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 259).putShort((short) 3).putInt(1).putShort((short) compression);
+        buffer.putShort((short) 0).putInt(0);
+        return buffer.array();
+    }
+
+    private static byte[] dicom(String transferSyntax) {
+        byte[] uid = (transferSyntax + (transferSyntax.length() % 2 == 0 ? "" : "\0"))
+            .getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(140 + uid.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(128);
+        buffer.put("DICM".getBytes(StandardCharsets.US_ASCII));
+        buffer.putShort((short) 0x0002).putShort((short) 0x0010);
+        buffer.put("UI".getBytes(StandardCharsets.US_ASCII)).putShort((short) uid.length);
+        buffer.put(uid);
+        return buffer.array();
+    }
+}
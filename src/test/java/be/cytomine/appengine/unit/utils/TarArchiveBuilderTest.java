@@ -0,0 +1,81 @@
+package be.cytomine.appengine.unit.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import be.cytomine.appengine.utils.ArchiveFormat;
+import be.cytomine.appengine.utils.GzipHelper;
+import be.cytomine.appengine.utils.TarArchiveBuilder;
+
+public class TarArchiveBuilderTest {
+
+    @TempDir
+    private Path tempDir;
+
+    @ParameterizedTest
+    @EnumSource(value = ArchiveFormat.class, names = {"TAR", "TAR_ZSTD"})
+    @DisplayName("Testing the entries are archived in order and read back in a single pass")
+    public void entriesAreArchivedInOrder(ArchiveFormat format) throws IOException {
+        TarArchiveBuilder archive = new TarArchiveBuilder(format == ArchiveFormat.TAR_ZSTD, 3);
+        archive.addDirectory("collection");
+        for (int i = 0; i < 10; i++) {
+            Path item = Files.writeString(tempDir.resolve("item-" + i), "value " + i);
+            archive.addFile("collection/item-" + i, item, false);
+        }
+        String longName = "collection/" + "a".repeat(150);
+        archive.addFile(longName, Files.writeString(tempDir.resolve("long"), "long"), false);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.writeTo(out);
+
+        try (ArchiveInputStream<? extends ArchiveEntry> tar = format.openInputStream(
+            new ByteArrayInputStream(out.toByteArray())
+        )) {
+            ArchiveEntry entry = tar.getNextEntry();
+            Assertions.assertNotNull(entry);
+            Assertions.assertEquals("collection/", entry.getName());
+            Assertions.assertTrue(entry.isDirectory());
+            for (int i = 0; i < 10; i++) {
+                entry = tar.getNextEntry();
+                Assertions.assertNotNull(entry);
+                Assertions.assertEquals("collection/item-" + i, entry.getName());
+                Assertions.assertEquals("value " + i, new String(tar.readAllBytes()));
+            }
+            entry = tar.getNextEntry();
+            Assertions.assertEquals(longName, entry.getName());
+            Assertions.assertNull(tar.getNextEntry());
+        }
+    }
+
+    @Test
+    @DisplayName("Testing the files compressed at rest are archived with their plain content")
+    public void compressedFilesAreArchivedPlain() throws IOException {
+        String content = "plain text value ".repeat(1000);
+        Path plain = Files.writeString(tempDir.resolve("plain"), content);
+        Path compressed = tempDir.resolve("compressed");
+        GzipHelper.compress(plain, compressed);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TarArchiveBuilder(false, 3).addFile("value", compressed, false).writeTo(out);
+
+        try (ArchiveInputStream<? extends ArchiveEntry> tar = ArchiveFormat.TAR.openInputStream(
+            new ByteArrayInputStream(out.toByteArray())
+        )) {
+            ArchiveEntry entry = tar.getNextEntry();
+            Assertions.assertEquals(content.length(), entry.getSize());
+            Assertions.assertEquals(content, new String(tar.readAllBytes()));
+        }
+    }
+}
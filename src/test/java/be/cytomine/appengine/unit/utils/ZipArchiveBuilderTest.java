@@ -0,0 +1,78 @@
+package be.cytomine.appengine.unit.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import be.cytomine.appengine.utils.ZipArchiveBuilder;
+
+public class ZipArchiveBuilderTest {
+
+    @TempDir
+    private Path tempDir;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    @DisplayName("Testing the entries are archived in order, stored or deflated")
+    public void entriesAreArchivedInOrder(int parallelism) throws IOException {
+        ZipArchiveBuilder archive = new ZipArchiveBuilder(parallelism, 6);
+        archive.addDirectory("collection");
+        for (int i = 0; i < 10; i++) {
+            Path item = Files.writeString(tempDir.resolve("item-" + i), "value " + i);
+            archive.addFile("collection/item-" + i, item, i % 2 == 0);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.writeTo(out);
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            Assertions.assertNotNull(entry);
+            Assertions.assertEquals("collection/", entry.getName());
+            for (int i = 0; i < 10; i++) {
+                entry = zip.getNextEntry();
+                Assertions.assertNotNull(entry);
+                Assertions.assertEquals("collection/item-" + i, entry.getName());
+                int method = i % 2 == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                Assertions.assertEquals(method, entry.getMethod());
+                Assertions.assertEquals("value " + i, new String(zip.readAllBytes()));
+            }
+            Assertions.assertNull(zip.getNextEntry());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = {0, Long.MAX_VALUE})
+    @DisplayName("Testing the archives above the parallel limit are compressed on one thread")
+    public void entriesAreArchivedWhateverTheParallelLimit(long parallelMaxSize)
+        throws IOException {
+        ZipArchiveBuilder archive = new ZipArchiveBuilder(4, 6, parallelMaxSize);
+        for (int i = 0; i < 10; i++) {
+            Path item = Files.writeString(tempDir.resolve("item-" + i), "value " + i);
+            archive.addFile("item-" + i, item, false);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.writeTo(out);
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (int i = 0; i < 10; i++) {
+                ZipEntry entry = zip.getNextEntry();
+                Assertions.assertNotNull(entry);
+                Assertions.assertEquals("item-" + i, entry.getName());
+                Assertions.assertEquals("value " + i, new String(zip.readAllBytes()));
+            }
+            Assertions.assertNull(zip.getNextEntry());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package be.cytomine.appengine.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the blob and manifest endpoints of a Docker registry
+ */
+public class FakeRegistry implements AutoCloseable {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+    private final Map<String, byte[]> manifests = new ConcurrentHashMap<>();
+
+    private final AtomicInteger blobUploads = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    private final AtomicInteger maxActiveUploads = new AtomicInteger();
+
+    private final List<String> tokenScopes = new CopyOnWriteArrayList<>();
+
+    private volatile long uploadDelay;
+
+    private volatile String token;
+
+    private volatile String tokenAuthorization;
+
+    public FakeRegistry() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/", this::handle);
+        server.createContext("/token", this::handleToken);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Makes the registry refuse the next blob uploads
+     *
+     * @param count the number of blob uploads refused
+     */
+    public void failNextUploads(int count) {
+        failures.set(count);
+    }
+
+    /**
+     * Slows the blob uploads down, to observe how many are sent at once
+     *
+     * @param millis the time each blob upload takes at least
+     */
+    public void setUploadDelay(long millis) {
+        uploadDelay = millis;
+    }
+
+    /**
+     * Makes the registry challenge the requests without a token, handed out by its token service
+     *
+     * @param token the token required
+     * @param username the user the token service hands the token to
+     * @param password the password of the user
+     */
+    public void requireToken(String token, String username, String password) {
+        this.tokenAuthorization = "Basic " + Base64.getEncoder().encodeToString(
+            (username + ":" + password).getBytes(StandardCharsets.UTF_8)
+        );
+        this.token = token;
+    }
+
+    /* The scopes the token service was asked for */
+    public List<String> getTokenScopes() {
+        return tokenScopes;
+    }
+
+    public int getMaxActiveUploads() {
+        return maxActiveUploads.get();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public Map<String, byte[]> getBlobs() {
+        return blobs;
+    }
+
+    public byte[] getManifest(String repository, String reference) {
+        return manifests.get(repository + ":" + reference);
+    }
+
+    public int getBlobUploads() {
+        return blobUploads.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+
+        int uploadsIndex = path.indexOf("/blobs/uploads/");
+        int blobsIndex = path.indexOf("/blobs/");
+        int manifestsIndex = path.indexOf("/manifests/");
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (token != null && !("Bearer " + token).equals(authorization)) {
+            exchange.getResponseHeaders().add(
+                "WWW-Authenticate",
+                "Bearer realm=\"" + getUrl() + "/token\",service=\"fake-registry\""
+            );
+            respond(exchange, 401, null);
+            return;
+        }
+
+        if (uploadsIndex > 0 && method.equals("POST")) {
+            if (failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                respond(exchange, 503, null);
+                return;
+            }
+            String id = UUID.randomUUID().toString();
+            uploads.put(id, new ByteArrayOutputStream());
+            respond(exchange, 202, path + id);
+        } else if (uploadsIndex > 0 && method.equals("PATCH")) {
+            maxActiveUploads.accumulateAndGet(activeUploads.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(uploadDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                activeUploads.decrementAndGet();
+            }
+            uploads.get(uploadId(path)).write(body);
+            respond(exchange, 202, path);
+        } else if (uploadsIndex > 0 && method.equals("PUT")) {
+            ByteArrayOutputStream upload = uploads.remove(uploadId(path));
+            upload.write(body);
+            String query = URLDecoder.decode(
+                exchange.getRequestURI().getRawQuery(),
+                StandardCharsets.UTF_8
+            );
+            String digest = query.substring(query.indexOf("digest=") + 7);
+            if (!digest.equals(digest(upload.toByteArray()))) {
+                respond(exchange, 400, null);
+                return;
+            }
+            blobs.put(digest, upload.toByteArray());
+            blobUploads.incrementAndGet();
+            respond(exchange, 201, null);
+        } else if (blobsIndex > 0 && method.equals("HEAD")) {
+            respond(exchange, blobs.containsKey(path.substring(blobsIndex + 7)) ? 200 : 404, null);
+        } else if (manifestsIndex > 0 && method.equals("PUT")) {
+            String repository = path.substring(4, manifestsIndex);
+            manifests.put(repository + ":" + path.substring(manifestsIndex + 11), body);
+            respond(exchange, 201, null);
+        } else {
+            respond(exchange, 404, null);
+        }
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (!tokenAuthorization.equals(authorization)) {
+            respond(exchange, 401, null);
+            return;
+        }
+
+        String query = URLDecoder.decode(
+            exchange.getRequestURI().getRawQuery(),
+            StandardCharsets.UTF_8
+        );
+        tokenScopes.add(query.substring(query.indexOf("scope=") + 6));
+        byte[] body = ("{\"token\":\"" + token + "\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static String uploadId(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static void respond(
+        HttpExchange exchange,
+        int status,
+        String location
+    ) throws IOException {
+        if (location != null) {
+            exchange.getResponseHeaders().add("Location", location);
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    public static String digest(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return "sha256:" + HexFormat.of().formatHex(digest.digest(content));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}